@@ -0,0 +1,99 @@
+/**
+ * ============================================================
+ * BIBLIOMAP - RICOSTRUZIONE READ MODEL BOOK_MAP
+ * ============================================================
+ *
+ * Ricostruisce da zero la collection book_map usata dalla
+ * ricerca sulla mappa (/api/books/nearby).
+ *
+ * Ogni documento rappresenta una copia e contiene gia':
+ *  - posizione della libreria (GeoJSON, indice 2dsphere)
+ *  - visibilita', nome e blur effettivo della libreria
+ *  - posizione pubblica gia' sfocata (libraries.fuzzedLocation)
+ *  - id e username del proprietario
+ *  - titolo, autore e copertina del libro, tag e stato della copia
+ *
+ * Da eseguire dopo un import massivo o se il read model
+ * risulta disallineato. La stessa pipeline e' usata
+ * dall'applicazione (BookMapRepository.rebuild) al primo avvio
+ * o con book-map.rebuild-on-startup=true.
+ *
+ * Ambiente di esecuzione: mongosh
+ * ============================================================
+ */
+
+const dbName = "bibliomap";
+const database = db.getSiblingDB(dbName);
+
+/**
+ * Indici necessari alla ricerca: $out li mantiene
+ * quando sostituisce il contenuto della collection.
+ */
+database.book_map.createIndex({ geolocation: "2dsphere" });
+// ricerca paginata per titolo / autore (il prefisso libraryId serve anche alle sync per libreria)
+database.book_map.createIndex({ libraryId: 1, title: 1, _id: 1 });
+database.book_map.createIndex({ libraryId: 1, author: 1, _id: 1 });
+database.book_map.createIndex({ ownerId: 1 });
+
+// le join portano solo i campi usati nella $project finale (MongoDB 5.0+)
+database.copies.aggregate([
+  {
+    $lookup: {
+      from: "libraries", localField: "libraryId", foreignField: "_id",
+      pipeline: [{ $project: { name: 1, ownerId: 1, locationId: 1, visibility: 1, blurRadius: 1, fuzzedLocation: 1 } }],
+      as: "library"
+    }
+  },
+  { $unwind: "$library" },
+  {
+    $lookup: {
+      from: "locations", localField: "library.locationId", foreignField: "_id",
+      pipeline: [{ $project: { geolocation: 1 } }],
+      as: "location"
+    }
+  },
+  { $unwind: "$location" },
+  {
+    $lookup: {
+      from: "users", localField: "library.ownerId", foreignField: "_id",
+      pipeline: [{ $project: { username: 1, visibility: 1, blurRadius: 1 } }],
+      as: "owner"
+    }
+  },
+  { $unwind: { path: "$owner", preserveNullAndEmptyArrays: true } },
+  {
+    $lookup: {
+      from: "books", localField: "book_isbn", foreignField: "_id",
+      pipeline: [{ $project: { title: 1, author: 1, cover: 1 } }],
+      as: "book"
+    }
+  },
+  { $unwind: "$book" },
+  {
+    $project: {
+      geolocation: "$location.geolocation",
+      libraryId: 1,
+      libraryName: "$library.name",
+      visibility: "$library.visibility",
+      blurRadius: {
+        $max: [
+          { $ifNull: ["$library.blurRadius", 0] },
+          { $ifNull: ["$owner.blurRadius", 0] }
+        ]
+      },
+      fuzzedLocation: "$library.fuzzedLocation",
+      ownerId: "$library.ownerId",
+      ownerUsername: "$owner.username",
+      book_isbn: 1,
+      title: "$book.title",
+      author: "$book.author",
+      cover: "$book.cover",
+      status: 1,
+      tags: 1,
+      views_counter: { $ifNull: ["$views_counter", NumberLong(0)] }
+    }
+  },
+  { $out: "book_map" }
+]);
+
+print("book_map ricostruita: " + database.book_map.countDocuments() + " copie.");
@@ -259,6 +259,24 @@ database.createCollection("locations", {
  */
 database.locations.createIndex({ geolocation: "2dsphere" });
 
+/**
+ * ============================================================
+ * COLLECTION: BOOK_MAP
+ * ============================================================
+ *
+ * Read model denormalizzato usato dalla ricerca sulla mappa:
+ * un documento per copia con posizione della libreria,
+ * visibilita', proprietario e metadati del libro.
+ * Viene mantenuto dall'applicazione e puo' essere ricostruito
+ * con bibliomap-book-map-rebuild.js.
+ */
+database.createCollection("book_map");
+database.book_map.createIndex({ geolocation: "2dsphere" });
+// ricerca paginata per titolo / autore (il prefisso libraryId serve anche alle sync per libreria)
+database.book_map.createIndex({ libraryId: 1, title: 1, _id: 1 });
+database.book_map.createIndex({ libraryId: 1, author: 1, _id: 1 });
+database.book_map.createIndex({ ownerId: 1 });
+
 /**
  * ============================================================
  * FINE SCRIPT
@@ -0,0 +1,12 @@
+package it.unipegaso.api.dto;
+
+import java.util.List;
+
+public record BookClusterDTO(
+    double lat,             // Centroide (coordinate gia' sfocate)
+    double lng,
+    long count,             // Copie nel cluster
+    long available,         // Copie disponibili
+    int libraries,          // Librerie nel cluster
+    List<String> topTags    // Tag piu' frequenti
+) {}
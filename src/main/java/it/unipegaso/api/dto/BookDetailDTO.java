@@ -13,6 +13,7 @@ public record BookDetailDTO(
 		String author,
 		String coverUrl,
 		String customCover,
+		Boolean coverPending, // copertina caricata ma formati ancora in elaborazione
 		Integer publicationYear,
 		String language,
 		String coverType,
@@ -196,8 +196,7 @@ public class AuthResource {
                 int durationSeconds = sessionDurationMinutes * 60;
                 registrationFlowService.saveAuthenticatedUser(
                         authenticatedSessionId,
-                        newUser.getId(),
-                        newUser.getUsername(),
+                        newUser,
                         durationSeconds);
 
                 boolean isSecure = isRequestSecure(uriInfo, headers);
@@ -267,7 +266,7 @@ public class AuthResource {
         String authenticatedSessionId = UUID.randomUUID().toString();
         int durationSeconds = sessionDurationMinutes * 60;
 
-        registrationFlowService.saveAuthenticatedUser(authenticatedSessionId, user.getId(), user.getUsername(), durationSeconds);
+        registrationFlowService.saveAuthenticatedUser(authenticatedSessionId, user, durationSeconds);
 
         boolean isSecure = uriInfo.getBaseUri().getScheme().equals("https");
 
@@ -1,23 +1,35 @@
 package it.unipegaso.api.resources;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.unipegaso.api.dto.BookClusterDTO;
 import it.unipegaso.api.dto.BookDetailDTO;
-import it.unipegaso.api.dto.BookMapDTO;
 import it.unipegaso.api.dto.BookMultipartBody;
 import it.unipegaso.api.dto.ErrorResponse;
+import it.unipegaso.api.util.ConditionalGet;
 import it.unipegaso.api.util.SessionIDProvider;
 import it.unipegaso.database.BooksRepository;
 import it.unipegaso.database.model.Book;
-import it.unipegaso.database.model.User;
+import it.unipegaso.service.BookClusterService;
 import it.unipegaso.service.BookService;
 import it.unipegaso.service.GoogleBooksService;
 import it.unipegaso.service.LibraryService;
+import it.unipegaso.service.NearbyCursor;
+import it.unipegaso.service.SessionPrincipal;
 import it.unipegaso.service.UserService;
+import it.unipegaso.service.ViewCounterService;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
@@ -27,14 +39,43 @@ import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 
 @Path("/api/books")
 @Produces(MediaType.APPLICATION_JSON)
 public class BookResource {
 
+	public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+	public static final String NDJSON = "application/x-ndjson";
+
+	private static final int STREAM_FLUSH_EVERY = 100;
+
+	// il dettaglio si rivalida sempre: ogni apertura conta come visualizzazione, anche quando finisce in 304
+	private static final String DETAIL_CACHE = "public, no-cache";
+	// la mappa viene ridisegnata spesso sulla stessa zona, mezzo minuto di ritardo sui nuovi libri va bene
+	private static final String NEARBY_CACHE = "public, max-age=30";
+
+	private static final int DEFAULT_SIMILAR = 5;
+	private static final int MAX_SIMILAR = 20;
+
+	@ConfigProperty(name = "book-search.page-size", defaultValue = "100")
+	int defaultPageSize;
+
+	@ConfigProperty(name = "book-search.max-page-size", defaultValue = "500")
+	int maxPageSize;
+
+	@ConfigProperty(name = "book-details.max-batch", defaultValue = "50")
+	int maxDetailsBatch;
+
 	@Inject
 	BookService bookService;
 
+	@Inject
+	ObjectMapper objectMapper;
+
+	@Inject
+	BookClusterService bookClusterService;
+
 	@Inject
 	GoogleBooksService googleBooksService;
 
@@ -47,6 +88,9 @@ public class BookResource {
 	@Inject
 	LibraryService libraryService;
 
+	@Inject
+	ViewCounterService viewCounterService;
+
 
 	@GET
 	@Path("/nearby")
@@ -57,7 +101,10 @@ public class BookResource {
 			@QueryParam("visibility") String visibility,
 			@QueryParam("exclude_user") String excludeUserId,
 			@QueryParam("search") String searchText,
-			@QueryParam("sort") String sortBy
+			@QueryParam("sort") String sortBy,
+			@QueryParam("cursor") String cursor,
+			@QueryParam("limit") Integer limit,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch
 			) {
 
 		if (lat == null || lng == null) {
@@ -67,11 +114,128 @@ public class BookResource {
 		}
 		if (radius == null) radius = 10.0; 
 		if (visibility == null) visibility = "public";
-		if (sortBy == null) sortBy = "distance"; // Default sorting
+		sortBy = NearbyCursor.normalizeSort(sortBy); // Default sorting: distance
+
+		// pagina limitata lato server, il client puo' solo chiederne una piu' piccola
+		int pageSize = (limit == null || limit < 1) ? defaultPageSize : Math.min(limit, maxPageSize);
+
+		NearbyCursor after = null;
+		if (cursor != null && !cursor.isBlank()) {
+			try {
+				after = NearbyCursor.decode(cursor, sortBy);
+			} catch (IllegalArgumentException e) {
+				return Response.status(Response.Status.BAD_REQUEST)
+						.entity(new ErrorResponse("BAD_REQUEST", "Cursore non valido"))
+						.build();
+			}
+		}
+
+		BookService.NearbyPage page = bookService.searchBooks(lat, lng, radius, visibility, excludeUserId, searchText, sortBy, after, pageSize);
+
+		// la pagina arriva gia' da cache o indici: qui il tag e' l'hash del corpo e il 304 risparmia il trasferimento.
+		// Nel tag entra anche il cursore: a parita' di corpo la pagina successiva puo' essere cambiata
+		byte[] body;
+		try {
+			body = objectMapper.writeValueAsBytes(page.books());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		String tag = ConditionalGet.tag(body, page.nextCursor());
+
+		// il corpo resta la lista di copie, il cursore della pagina successiva va nell'header (anche sul 304)
+		Response.ResponseBuilder response = ConditionalGet.matches(ifNoneMatch, tag)
+				? ConditionalGet.notModified(tag, NEARBY_CACHE)
+				: ConditionalGet.ok(body, tag, NEARBY_CACHE).type(MediaType.APPLICATION_JSON);
+		if (page.nextCursor() != null) {
+			response.header(NEXT_CURSOR_HEADER, page.nextCursor());
+		}
+		return response.build();
+	}
+
+	/**
+	 * Cluster di copie per la vista corrente della mappa (zoom bassi).
+	 * Per i singoli marker a zoom alto resta /nearby.
+	 */
+	@GET
+	@Path("/clusters")
+	public Response getClusters(
+			@QueryParam("minLat") Double minLat,
+			@QueryParam("minLng") Double minLng,
+			@QueryParam("maxLat") Double maxLat,
+			@QueryParam("maxLng") Double maxLng,
+			@QueryParam("zoom") Integer zoom,
+			@QueryParam("visibility") String visibility,
+			@QueryParam("exclude_user") String excludeUserId,
+			@QueryParam("search") String searchText
+			) {
+
+		if (minLat == null || minLng == null || maxLat == null || maxLng == null || zoom == null) {
+			return Response.status(Response.Status.BAD_REQUEST)
+					.entity(new ErrorResponse("BAD_REQUEST", "Vista o zoom mancanti"))
+					.build();
+		}
+		if (minLat > maxLat || minLng > maxLng || zoom < 0 || zoom > 22) {
+			return Response.status(Response.Status.BAD_REQUEST)
+					.entity(new ErrorResponse("BAD_REQUEST", "Vista o zoom non validi"))
+					.build();
+		}
+		if (visibility == null) visibility = "public";
+
+		List<BookClusterDTO> clusters = bookClusterService.getClusters(minLat, minLng, maxLat, maxLng, zoom, visibility, excludeUserId, searchText);
+
+		return Response.ok(clusters).build();
+	}
+
+	/**
+	 * Variante streaming di /nearby per chi vuole tutte le copie di una zona (es. pre-caching offline della mappa).
+	 * Una riga JSON per copia, scritta appena Mongo la restituisce: nessuna paginazione e nessuna lista in memoria.
+	 * Path separato invece della negoziazione su Accept, cosi' i client che accettano qualsiasi tipo restano sulla lista JSON.
+	 */
+	@GET
+	@Path("/nearby/stream")
+	@Produces(NDJSON)
+	public Response streamNearbyBooks(
+			@QueryParam("lat") Double lat, 
+			@QueryParam("lng") Double lng, 
+			@QueryParam("radius") Double radius,
+			@QueryParam("visibility") String visibility,
+			@QueryParam("exclude_user") String excludeUserId,
+			@QueryParam("search") String searchText,
+			@QueryParam("sort") String sortBy
+			) {
 
-		List<BookMapDTO> books = bookService.searchBooks(lat, lng, radius, visibility, excludeUserId, searchText, sortBy);
+		if (lat == null || lng == null) {
+			return Response.status(Response.Status.BAD_REQUEST)
+					.type(MediaType.APPLICATION_JSON)
+					.entity(new ErrorResponse("BAD_REQUEST", "Coordinate mancanti"))
+					.build();
+		}
+		double r = (radius == null) ? 10.0 : radius;
+		String vis = (visibility == null) ? "public" : visibility;
+
+		StreamingOutput stream = output -> {
+			int[] written = {0};
+			try {
+				bookService.streamBooks(lat, lng, r, vis, excludeUserId, searchText, sortBy, book -> {
+					try {
+						output.write(objectMapper.writeValueAsBytes(book));
+						output.write('\n');
+						// il primo risultato parte subito, poi si svuota il buffer a blocchi
+						if (++written[0] == 1 || written[0] % STREAM_FLUSH_EVERY == 0) {
+							output.flush();
+						}
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (UncheckedIOException e) {
+				// client disconnesso: la scansione si ferma qui
+				throw e.getCause();
+			}
+			output.flush();
+		};
 
-		return Response.ok(books).build();
+		return Response.ok(stream, NDJSON).build();
 	}
 	
 	
@@ -87,7 +251,7 @@ public class BookResource {
 						.entity(new ErrorResponse("BAD_REQUEST", "Parametri obbligatori assenti")).build();
 			}
 
-			boolean savedCopy = bookService.saveBookWithBase64Cover(request.book, request.coverFile);
+			boolean savedCopy = bookService.saveBookWithCover(request.book, request.coverFile);
 			return Response.ok(savedCopy).build();
 
 		} catch (IllegalArgumentException e) {
@@ -99,10 +263,48 @@ public class BookResource {
 	}
 
 
+	/**
+	 * Dettagli di piu' copie in una richiesta: ?ids=a,b,c (al massimo book-details.max-batch).
+	 * Restituisce le copie trovate nell'ordine richiesto.
+	 */
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getBooks(@QueryParam("ids") String ids) {
+
+		List<String> copyIds = (ids == null) ? List.of() : Arrays.stream(ids.split(","))
+				.map(String::trim)
+				.filter(id -> !id.isEmpty())
+				.distinct()
+				.toList();
+
+		if (copyIds.isEmpty()) {
+			return Response.status(Response.Status.BAD_REQUEST).entity(new ErrorResponse("BAD_REQUEST", "Parametro ids mancante")).build();
+		}
+
+		if (copyIds.size() > maxDetailsBatch) {
+			return Response.status(Response.Status.BAD_REQUEST).entity(new ErrorResponse("BAD_REQUEST", "Troppi id richiesti (max " + maxDetailsBatch + ")")).build();
+		}
+
+		return Response.ok(bookService.getBookDetails(copyIds)).build();
+	}
+
 	@GET
 	@Path("/{id}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response getBook(@PathParam("id") String copyId) {
+	public Response getBook(@PathParam("id") String copyId, @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
+
+		// tag letto prima dell'aggregazione: se nel mezzo arriva una scrittura il client riceve un tag vecchio
+		// e alla richiesta successiva riscarica, mai il contrario
+		Optional<String> tag = bookService.getBookDetailsTag(copyId);
+
+		if (tag.isEmpty()) {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+
+		if (ConditionalGet.matches(ifNoneMatch, tag.get())) {
+			viewCounterService.addCopyView(copyId);
+			return ConditionalGet.notModified(tag.get(), DETAIL_CACHE).build();
+		}
 
 		BookDetailDTO detail = bookService.getBookDetails(copyId, 0.0);
 
@@ -110,7 +312,7 @@ public class BookResource {
 			return Response.status(Response.Status.NOT_FOUND).build();
 		}
 
-		return Response.ok(detail).build();
+		return ConditionalGet.ok(detail, tag.get(), DETAIL_CACHE).build();
 	}
 
 	@GET
@@ -123,8 +325,8 @@ public class BookResource {
 		boolean logged = false;
 
 		try {
-			User currentUser = userService.getUserFromSession(sessionId);
-			currentUserId = currentUser.getId();
+			SessionPrincipal currentUser = userService.getPrincipal(sessionId);
+			currentUserId = currentUser.id();
 			logged = true;
 		} catch (Exception e) {
 			// utente non loggato, procediamo come guest (currentUserId resta null)
@@ -139,6 +341,30 @@ public class BookResource {
 		return Response.ok(similarBookDetails).build();
 		
 	}
+
+	@GET
+	@Path("/{id}/similar/top")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getSimilarBooks(@PathParam("id") String copyId, @QueryParam("limit") Integer limit, @Context HttpHeaders headers) {
+
+		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
+		String currentUserId = null;
+		boolean logged = false;
+
+		try {
+			SessionPrincipal currentUser = userService.getPrincipal(sessionId);
+			currentUserId = currentUser.id();
+			logged = true;
+		} catch (Exception e) {
+			// utente non loggato, procediamo come guest (currentUserId resta null)
+		}
+
+		int n = (limit == null || limit < 1) ? DEFAULT_SIMILAR : Math.min(limit, MAX_SIMILAR);
+
+		List<BookDetailDTO> similar = bookService.getSimilarTop(copyId, currentUserId, logged, n);
+
+		return Response.ok(similar).build();
+	}
 	
 	@GET
 	@Path("/external/search-isbn")
@@ -188,6 +414,7 @@ public class BookResource {
 					book.getAuthor(),
 					book.getCover(),
 					null,
+					null,
 					book.getPublication_year(),
 					book.getLanguage(),
 					book.getCover_type(), 
@@ -10,14 +10,16 @@ import org.jboss.logging.Logger;
 import org.jboss.resteasy.reactive.multipart.FileUpload;
 
 import it.unipegaso.api.dto.ErrorResponse;
-import it.unipegaso.api.util.ImageUtils;
 import it.unipegaso.api.util.SessionIDProvider;
 import it.unipegaso.database.CopiesRepository;
 import it.unipegaso.database.model.Copy;
 import it.unipegaso.database.model.Library;
-import it.unipegaso.database.model.User;
+import it.unipegaso.service.BookMapService;
+import it.unipegaso.service.CoverService;
 import it.unipegaso.service.LibraryService;
+import it.unipegaso.service.SessionPrincipal;
 import it.unipegaso.service.UserService;
+import it.unipegaso.service.UserStatsService;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
@@ -48,6 +50,15 @@ public class CopyResource {
 	@Inject
 	LibraryService libraryService;
 	
+	@Inject
+	BookMapService bookMapService;
+
+	@Inject
+	UserStatsService userStatsService;
+
+	@Inject
+	CoverService coverService;
+	
 	@DELETE
 	@Path("/{id}")
 	public Response deleteCopy(@PathParam("id") String copyId, @Context HttpHeaders headers) {
@@ -58,7 +69,7 @@ public class CopyResource {
 
 		try {
 			//prendo l'utente
-			User user = userService.getUserFromSession(sessionId);
+			SessionPrincipal user = userService.getPrincipal(sessionId);
 
 			//prendo la copia del libro
 			Optional<Copy> opCopy = copiesRepository.get(copyId);	
@@ -73,23 +84,23 @@ public class CopyResource {
 			String copyLibraryId = copy.getLibraryId();
 			
 			//prendo tutte le sue librerie
-			List<Library> libraries = libraryService.getUserLibraries(user.getId());
+			List<Library> libraries = libraryService.getUserLibraries(user.id());
 			
 			//controllo che fra la lista delle librerie dell'utente ci sia quella della copia da cancellare
-			boolean found = false;
+			Library copyLibrary = null;
 			
 			for(Library library:libraries) {
 				
 				String libraryId = library.getId();
 				
 				if(copyLibraryId.equals(libraryId)) {
-					found = true;
+					copyLibrary = library;
 				}
 				
 			}
 			
 			// la copia non appartiene all'utente, errore
-			if(!found) {
+			if(copyLibrary == null) {
 				return Response.status(Response.Status.FORBIDDEN)
 						.entity(new ErrorResponse("USER_ERROR", "l'utente non possiede la copia"))
 						.build();
@@ -99,6 +110,8 @@ public class CopyResource {
 			
 			// se trovato e cancellato
 			if(canceled) {
+				bookMapService.removeCopy(copyId);
+				userStatsService.copyRemoved(copy, copyLibrary);
 				LOG.info("return 200");
 				return Response.status(Response.Status.ACCEPTED).build();
 			}
@@ -142,17 +155,20 @@ public class CopyResource {
         String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
         try {
-            User user = userService.getUserFromSession(sessionId);
+            SessionPrincipal user = userService.getPrincipal(sessionId);
             Optional<Copy> opCopy = copiesRepository.get(copyId);
 
             if (opCopy.isEmpty()) return Response.status(Response.Status.NOT_FOUND).build();
             Copy copy = opCopy.get();
 
             // verify ownership
-            boolean isOwner = libraryService.getUserLibraries(user.getId()).stream()
-                    .anyMatch(lib -> lib.getId().equals(copy.getLibraryId()));
+            Optional<Library> opLibrary = libraryService.getUserLibraries(user.id()).stream()
+                    .filter(lib -> lib.getId().equals(copy.getLibraryId()))
+                    .findFirst();
 
-            if (!isOwner) return Response.status(Response.Status.FORBIDDEN).build();
+            if (opLibrary.isEmpty()) return Response.status(Response.Status.FORBIDDEN).build();
+
+            List<String> tagsBefore = copy.getTags();
 
             // update fields
             copy.setStatus(status);
@@ -167,20 +183,31 @@ public class CopyResource {
             }
 
             // handle cover logic
+            byte[] toProcess = null;
+            boolean coverChanged = false;
             if (useDefaultCover) {
-                copy.setCustomCover(null); 
+                copy.setCoverHash(null); 
+                copy.setCoverPending(false);
+                coverChanged = true;
             } else if (coverFile != null && coverFile.fileName() != null) {
                 byte[] fileBytes = java.nio.file.Files.readAllBytes(coverFile.uploadedFile());
-                String base64Img = ImageUtils.resizeAndConvertToBase64(fileBytes, 400);
-                copy.setCustomCover("data:image/jpeg;base64," + base64Img);
+                toProcess = coverService.attach(copy, fileBytes);
+                coverChanged = true;
             }
 
-            boolean updated = copiesRepository.update(copy); 
+            // senza una nuova copertina non si tocca quella salvata (il worker puo' averla appena aggiornata)
+            boolean updated = coverChanged ? copiesRepository.updateWithCover(copy) : copiesRepository.update(copy); 
             
             if(!updated) {
             	LOG.error("IMPOSSIBILE MODIFICARE COPIA");
             	return Response.serverError().entity(new ErrorResponse("ERR", "update failed")).build();
             }
+            // formati della nuova copertina generati dopo la risposta
+            if (toProcess != null) {
+                coverService.processAsync(copyId, copy.getCoverHash(), toProcess);
+            }
+            bookMapService.syncCopy(copyId);
+            userStatsService.copyUpdated(tagsBefore, opLibrary.get(), copy, opLibrary.get());
             return Response.ok().build();
 
         } catch (Exception e) {
@@ -203,23 +230,38 @@ public class CopyResource {
         String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
         try {
-            User user = userService.getUserFromSession(sessionId);
+            SessionPrincipal user = userService.getPrincipal(sessionId);
             Optional<Copy> opCopy = copiesRepository.get(copyId);
 
             if (opCopy.isEmpty()) return Response.status(Response.Status.NOT_FOUND).build();
             Copy copy = opCopy.get();
 
             // verifica che l'utente sia proprietario della libreria di destinazione
-            boolean ownsTarget = libraryService.getUserLibraries(user.getId()).stream()
-                    .anyMatch(lib -> lib.getId().equals(newLibraryId));
+            List<Library> userLibraries = libraryService.getUserLibraries(user.id());
+            Optional<Library> target = userLibraries.stream()
+                    .filter(lib -> lib.getId().equals(newLibraryId))
+                    .findFirst();
 
-            if (!ownsTarget) {
+            if (target.isEmpty()) {
             	return Response.status(Response.Status.FORBIDDEN).build();
             }
 
+            Library source = userLibraries.stream()
+                    .filter(lib -> lib.getId().equals(copy.getLibraryId()))
+                    .findFirst()
+                    .orElse(null);
+
             // Update solo del campo libraryId
             copy.setLibraryId(newLibraryId);
             copiesRepository.update(copy);
+            bookMapService.syncCopy(copyId);
+
+            // la visibilita' delle due librerie puo' essere diversa
+            if (source != null) {
+            	userStatsService.copyUpdated(copy.getTags(), source, copy, target.get());
+            } else {
+            	userStatsService.copyAdded(copy, target.get());
+            }
 
             return Response.ok().build();
 
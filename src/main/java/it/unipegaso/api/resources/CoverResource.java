@@ -0,0 +1,82 @@
+package it.unipegaso.api.resources;
+
+import java.util.Optional;
+
+import org.jboss.logging.Logger;
+
+import it.unipegaso.api.dto.ErrorResponse;
+import it.unipegaso.service.CoverService;
+import it.unipegaso.service.CoverService.CoverSize;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Copertine caricate dagli utenti, nei formati marker, list e detail (default).
+ * Il contenuto di hash e formato non cambia mai: cache immutabile di un anno.
+ */
+@Path("/api/covers")
+public class CoverResource {
+
+	private static final Logger LOG = Logger.getLogger(CoverResource.class);
+
+	private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+	@Inject
+	CoverService coverService;
+
+	@GET
+	@Path("/{hash}")
+	public Response getCover(@PathParam("hash") String hash, @QueryParam("size") @DefaultValue("detail") String size,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
+
+		if (!CoverService.isHash(hash)) {
+			return Response.status(Response.Status.BAD_REQUEST)
+					.type(MediaType.APPLICATION_JSON)
+					.entity(new ErrorResponse("INVALID_HASH", "hash copertina non valido"))
+					.build();
+		}
+
+		CoverSize coverSize;
+		try {
+			coverSize = CoverSize.from(size);
+		} catch (IllegalArgumentException e) {
+			return Response.status(Response.Status.BAD_REQUEST)
+					.type(MediaType.APPLICATION_JSON)
+					.entity(new ErrorResponse("INVALID_SIZE", "formato non valido: marker, list o detail"))
+					.build();
+		}
+
+		String etag = "\"" + hash + "_" + coverSize.name().toLowerCase() + "\"";
+
+		// il browser ha gia' questa copertina
+		if (etag.equals(ifNoneMatch)) {
+			return Response.notModified().header(HttpHeaders.ETAG, etag).header(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL).build();
+		}
+
+		try {
+			Optional<byte[]> image = coverService.load(hash, coverSize);
+
+			// anche copertina ancora in elaborazione: nessuna cache sul 404
+			if (image.isEmpty()) {
+				return Response.status(Response.Status.NOT_FOUND).build();
+			}
+
+			return Response.ok(image.get(), "image/jpeg")
+					.header(HttpHeaders.ETAG, etag)
+					.header(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL)
+					.build();
+
+		} catch (Exception e) {
+			LOG.errorf(e, "errore lettura copertina %s", hash);
+			return Response.serverError().type(MediaType.APPLICATION_JSON).entity(new ErrorResponse("SERVER_ERROR", "errore lettura copertina")).build();
+		}
+	}
+}
@@ -11,6 +11,7 @@ import org.jboss.logging.Logger;
 import it.unipegaso.api.dto.BookDetailDTO;
 import it.unipegaso.api.dto.ErrorResponse;
 import it.unipegaso.api.dto.LibraryDTO;
+import it.unipegaso.api.util.ConditionalGet;
 import it.unipegaso.api.util.SessionIDProvider;
 import it.unipegaso.database.CopiesRepository;
 import it.unipegaso.database.LibrariesRepository;
@@ -18,14 +19,18 @@ import it.unipegaso.database.UsersRepository;
 import it.unipegaso.database.model.Library;
 import it.unipegaso.database.model.Location;
 import it.unipegaso.database.model.User;
+import it.unipegaso.service.BookMapService;
 import it.unipegaso.service.BookService;
 import it.unipegaso.service.LibraryService;
 import it.unipegaso.service.LocationService;
+import it.unipegaso.service.SessionPrincipal;
 import it.unipegaso.service.UserService;
+import it.unipegaso.service.UserStatsService;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.NotAuthorizedException;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.PUT;
@@ -45,6 +50,9 @@ public class LibraryResource {
 
 	private static final Logger LOG = Logger.getLogger(LibraryResource.class);
 
+	// la risposta dipende da chi guarda (proprietario visibile o no) e ogni apertura conta come visualizzazione
+	private static final String DETAIL_CACHE = "private, no-cache";
+
 	@Inject
 	LibraryService libraryService;
 
@@ -65,6 +73,12 @@ public class LibraryResource {
 	
 	@Inject
 	LocationService locationService;
+
+	@Inject
+	BookMapService bookMapService;
+
+	@Inject
+	UserStatsService userStatsService;
 	
 	@POST
 	public Response createLibrary(LibraryDTO request, @Context HttpHeaders headers) {
@@ -74,7 +88,8 @@ public class LibraryResource {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User user = userService.getUserFromSession(sessionId);
+			// PROFILE comprende locationId, che serve per le librerie "user_default"
+			User user = userService.getUserFromSession(sessionId, User.PROFILE);
 
 			String libraryId = libraryService.createNewLibrary(user, request);
 
@@ -112,14 +127,15 @@ public class LibraryResource {
 
 	@GET
 	@Path("/{id}")
-	public Response getLibrary(@PathParam("id") String libraryId, @Context HttpHeaders headers) {
+	public Response getLibrary(@PathParam("id") String libraryId, @Context HttpHeaders headers,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
 
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 		String currentUserId = "";
 
 		try {
-			User currentUser = userService.getUserFromSession(sessionId);
-			currentUserId = currentUser.getId();
+			SessionPrincipal currentUser = userService.getPrincipal(sessionId);
+			currentUserId = currentUser.id();
 		} catch (Exception e) {
 			// utente non loggato, procediamo come guest (currentUserId resta null)
 		}
@@ -130,6 +146,21 @@ public class LibraryResource {
 			return Response.status(Response.Status.NOT_FOUND).build();
 		}
 
+		Map<String, Double> cords = locationService.getLocationMap(library.getLocationId());
+
+		Optional<User> opOwner = usersRepository.get(library.getOwnerId(), User.IDENTITY);
+		final String viewerId = currentUserId;
+		Optional<User> shownOwner = opOwner.filter(owner -> !owner.getVisibility().equals("private") || owner.getId().equals(viewerId));
+
+		// tutto tranne l'elenco dei libri e' gia' letto: le copie entrano nel tag con un solo $group
+		String tag = ConditionalGet.tag(library.getId(), library.getVersion(), library.getViewsCounter(), cords,
+				copiesRepository.libraryContentVersion(libraryId).toJson(),
+				shownOwner.map(User::getUsername).orElse(null));
+
+		if (ConditionalGet.matches(ifNoneMatch, tag)) {
+			return ConditionalGet.notModified(tag, DETAIL_CACHE).header(HttpHeaders.VARY, HttpHeaders.COOKIE).build();
+		}
+
 		List<BookDetailDTO> books = bookService.getBooksByLibrary(libraryId, 0.0);
 
 		// costruisco la risposta includendo i libri e la posizione
@@ -141,24 +172,16 @@ public class LibraryResource {
 		response.put("books", books);
 		response.put("views", library.getViewsCounter());
 		
-		Map<String, Double> cords = locationService.getLocationMap(library.getLocationId());
-		
 		if(cords != null && !cords.isEmpty()) {
 			response.putAll(cords);
 		}
-		
-
-		Optional<User> opOwner = usersRepository.get(library.getOwnerId());
 
-		if(opOwner.isPresent()) {
-			User owner = opOwner.get();
-			if(!owner.getVisibility().equals("private") || owner.getId().equals(currentUserId)) {
-				response.put("ownerName", owner.getUsername());
-				response.put("ownerId", owner.getId());
-			}
-		}
+		shownOwner.ifPresent(owner -> {
+			response.put("ownerName", owner.getUsername());
+			response.put("ownerId", owner.getId());
+		});
 
-		return Response.ok(response).build();
+		return ConditionalGet.ok(response, tag, DETAIL_CACHE).header(HttpHeaders.VARY, HttpHeaders.COOKIE).build();
 	}
 	
 	
@@ -169,9 +192,9 @@ public class LibraryResource {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User user = userService.getUserFromSession(sessionId); 
+			SessionPrincipal user = userService.getPrincipal(sessionId); 
 
-			String userId = user.getId();
+			String userId = user.id();
 			
 			Library library = libraryService.getLibraryDetail(libraryId, userId);
 
@@ -215,9 +238,9 @@ public class LibraryResource {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User user = userService.getUserFromSession(sessionId); 
+			SessionPrincipal user = userService.getPrincipal(sessionId); 
 
-			String userId = user.getId();
+			String userId = user.id();
 			
 			Library library = libraryService.getLibraryDetail(libraryId, userId);
 
@@ -235,6 +258,8 @@ public class LibraryResource {
 			copiesRepository.deleteByLibraryId(libraryId);
 			// elimina la libreria stessa
 			librariesRepository.delete(libraryId);
+			bookMapService.syncLibrary(libraryId);
+			userStatsService.reconcileQuietly(userId);
 
 			return Response.noContent().build();
 		}catch(NotAuthorizedException e) {
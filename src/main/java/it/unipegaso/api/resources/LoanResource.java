@@ -27,7 +27,13 @@ import it.unipegaso.database.model.Library;
 import it.unipegaso.database.model.Loan;
 import it.unipegaso.database.model.LoanStatus;
 import it.unipegaso.database.model.User;
+import it.unipegaso.service.BookMapService;
 import it.unipegaso.service.EmailService;
+import it.unipegaso.service.LoanAssembler;
+import it.unipegaso.service.LoanDistanceService;
+import it.unipegaso.service.LoanRollupService;
+import it.unipegaso.service.UserStatsService;
+import it.unipegaso.service.SessionPrincipal;
 import it.unipegaso.service.UserService;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
@@ -55,6 +61,18 @@ public class LoanResource {
 	@Inject 
 	UsersRepository userRepository;
 
+	@Inject
+	LoanAssembler loanAssembler;
+
+	@Inject
+	LoanDistanceService loanDistanceService;
+
+	@Inject
+	LoanRollupService loanRollupService;
+
+	@Inject
+	UserStatsService userStatsService;
+
 	@Inject
 	CopiesRepository copiesRepository;
 
@@ -70,6 +88,9 @@ public class LoanResource {
 	@Inject
 	LoansRepository loansRepository;
 
+	@Inject
+	BookMapService bookMapService;
+
 	@ConfigProperty(name = "loan.duration", defaultValue = "30")
 	int loanDuration;
 
@@ -84,12 +105,12 @@ public class LoanResource {
 
 		try {
 			//prendo l'utente
-			User user = userService.getUserFromSession(sessionId);
+			SessionPrincipal user = userService.getPrincipal(sessionId);
 
-			String requesterId = user.getId();
+			String requesterId = user.id();
 
-			//prendo la copia del libro
-			Optional<Copy> opCopy = copiesRepository.get(copyId);	
+			//prendo la copia del libro (solo stato, libro e libreria)
+			Optional<Copy> opCopy = copiesRepository.get(copyId, Copy.SUMMARY);	
 
 			// se non la trovo ritorno subito 404
 			if(opCopy.isEmpty()) {
@@ -108,7 +129,7 @@ public class LoanResource {
 						.entity(new ErrorResponse("SERVER_ERROR", "copia non disponibile al prestito")).build();
 			}
 
-			Optional<Library> opLib = libraryRepository.get(copy.getLibraryId());
+			Optional<Library> opLib = libraryRepository.get(copy.getLibraryId(), Library.SUMMARY);
 
 			if(opLib.isEmpty()) {
 				LOG.info("library not found");
@@ -119,7 +140,7 @@ public class LoanResource {
 
 			String ownerId = lib.getOwnerId();
 
-			Optional<User> opOwner = userRepository.get(ownerId);
+			Optional<User> opOwner = userRepository.get(ownerId, User.CONTACT);
 
 			if(opOwner.isEmpty()) {
 				LOG.info("owner not found");
@@ -168,16 +189,22 @@ public class LoanResource {
 						.entity(new ErrorResponse("SERVER_ERROR", "errore db"))
 						.build();
 			}
-			boolean success = emailService.sendLoanRequestEmail(owner.getEmail(), owner.getUsername(), user.getUsername(), title, book.getAuthor(), loanId);
+			// email accodata in email_outbox con una seconda scrittura, non nella stessa transazione della richiesta
+			// (serve il replica set, che in sviluppo non c'e'): se l'accodamento fallisce la richiesta si cancella,
+			// ma se il nodo muore tra le due scritture resta una richiesta senza email, visibile comunque al proprietario in app
+			boolean success = emailService.sendLoanRequestEmail(owner.getEmail(), owner.getUsername(), user.username(), title, book.getAuthor(), loanId);
 
 			if(!success) {
-				LOG.error("impossibile inviare email per richiesta prestito, cancello dal db la richiesta");
+				LOG.error("impossibile accodare email per richiesta prestito, cancello dal db la richiesta");
 				loansRepository.delete(loanId);
 				return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
 						.entity(new ErrorResponse("SERVER_ERROR", "errore invio email"))
 						.build();
 			}
 
+			loanRollupService.recordRequest(loanRequest);
+			userStatsService.loanCreated(loanRequest);
+
 			Map<String, String> response = new HashMap<>();
 			response.put("loanId", loanId);
 
@@ -209,7 +236,7 @@ public class LoanResource {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User currentUser = userService.getUserFromSession(sessionId);
+			User currentUser = userService.getUserFromSession(sessionId, User.CONTACT);
 
 			if (StringUtils.isEmpty(loanId)) {
 				return Response.status(Response.Status.BAD_REQUEST)
@@ -278,12 +305,14 @@ public class LoanResource {
 				return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
 						.entity(new ErrorResponse("UPDATE_FAILED", "Impossibile aggiornare stato copia, operazione annullata")).build();
 			}
+			bookMapService.syncCopy(copyId);
+			loanRollupService.recordStarted(loan);
 
 			
 			if(isOwner) {
-				emailService.sendLoanStartedEmail(loan, currentUser, userRepository.get(loan.getRequesterId()).get());
+				emailService.sendLoanStartedEmail(loan, currentUser, userRepository.get(loan.getRequesterId(), User.CONTACT).get());
 			}else {
-				emailService.sendLoanStartedEmail(loan, userRepository.get(loan.getOwnerId()).get(), currentUser);
+				emailService.sendLoanStartedEmail(loan, userRepository.get(loan.getOwnerId(), User.CONTACT).get(), currentUser);
 			}
 			
 			
@@ -307,7 +336,7 @@ public class LoanResource {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User currentUser = userService.getUserFromSession(sessionId);
+			SessionPrincipal currentUser = userService.getPrincipal(sessionId);
 
 			if (request == null || !request.containsKey("action")) {
 				return Response.status(Response.Status.BAD_REQUEST)
@@ -335,8 +364,8 @@ public class LoanResource {
 			Loan loan = opLoan.get();
 
 			// controllo di sicurezza 
-			if (!loan.getOwnerId().equals(currentUser.getId())) {
-				LOG.warn("Utente " + currentUser.getId() + " ha tentato di gestire prestito non suo: " + loanId);
+			if (!loan.getOwnerId().equals(currentUser.id())) {
+				LOG.warn("Utente " + currentUser.id() + " ha tentato di gestire prestito non suo: " + loanId);
 				return Response.status(Response.Status.FORBIDDEN)
 						.entity(new ErrorResponse("FORBIDDEN", "Non sei il proprietario di questo prestito")).build();
 			}
@@ -373,7 +402,7 @@ public class LoanResource {
 			            loansRepository.update(other);
 			            
 			            //invia email di notifica automatica agli "sfortunati"
-			            Optional<User> opOtherReq = userRepository.get(other.getRequesterId());
+			            Optional<User> opOtherReq = userRepository.get(other.getRequesterId(), User.CONTACT);
 			            if(opOtherReq.isPresent()) {
 			                emailService.sendRequestResponseEmail(
 			                    opOtherReq.get().getEmail(), 
@@ -388,7 +417,7 @@ public class LoanResource {
 
 			// Recupero dati per email
 			String requesterID = loan.getRequesterId();
-			Optional<User> opRequester = userRepository.get(requesterID);
+			Optional<User> opRequester = userRepository.get(requesterID, User.CONTACT);
 
 			if(opRequester.isEmpty()) {
 				// Edge case: il richiedente non esiste piu', loggo errore
@@ -404,7 +433,7 @@ public class LoanResource {
 			success = emailService.sendRequestResponseEmail(requester.getEmail(), requester.getUsername(), title, action, notes, selectedDays, selectedSlots);
 
 			if(!success) {
-				LOG.error("impossibile inviare email, rollback sul db");
+				LOG.error("impossibile accodare email, rollback sul db");
 				loan.setStatus(LoanStatus.PENDING.toString());
 				loansRepository.update(loan); // rollback stato
 				return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -430,7 +459,7 @@ public class LoanResource {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User currentUser = userService.getUserFromSession(sessionId);
+			SessionPrincipal currentUser = userService.getPrincipal(sessionId);
 
 			if (StringUtils.isEmpty(loanId)) {
 				return Response.status(Response.Status.BAD_REQUEST).build();
@@ -444,7 +473,7 @@ public class LoanResource {
 			Loan loan = opLoan.get();
 
 			// controllo proprietario copia
-			if (!loan.getOwnerId().equals(currentUser.getId())) {
+			if (!loan.getOwnerId().equals(currentUser.id())) {
 				return Response.status(Response.Status.FORBIDDEN).build();
 			}
 
@@ -472,19 +501,20 @@ public class LoanResource {
 				copy.setStatus("available");
 				copy.setCondition(conditionEnd);
 				copiesRepository.update(copy);
+				bookMapService.syncCopy(copy.getId());
 			}
 
-			// notifica email restituzione
+			// notifica email restituzione, accodata: fallisce solo se non si riesce a scrivere in email_outbox
 			boolean mailSuccess = false;
 			try {
-				Optional<User> opRequester = userRepository.get(loan.getRequesterId());
+				Optional<User> opRequester = userRepository.get(loan.getRequesterId(), User.CONTACT);
 				if (opRequester.isPresent()) {
 					User requester = opRequester.get();
 					// invio mail di fine prestito
 					mailSuccess = emailService.sendReturnConfirmationEmail(requester.getEmail(), requester.getUsername(), loan.getTitle());
 				}
 			} catch (Exception e) {
-				LOG.error("errore invio mail restituzione", e);
+				LOG.error("errore accodamento mail restituzione", e);
 			}
 
 			if (!mailSuccess) {
@@ -498,12 +528,23 @@ public class LoanResource {
 					Copy copy = opCopy.get();
 					copy.setStatus("on_loan");
 					copiesRepository.update(copy);
+					bookMapService.syncCopy(copy.getId());
 				}
 
 				return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
 						.entity(new ErrorResponse("SERVER_ERROR", "errore notifica, operazione annullata")).build();
 			}
 
+			loanRollupService.recordReturned(loan);
+
+			// distanza percorsa dal libro, salvata sul prestito e nei massimi delle statistiche
+			try {
+				loanDistanceService.recordReturned(loan);
+			} catch (Exception e) {
+				// non blocca la restituzione: il backfill la ricalcola
+				LOG.error("errore calcolo distanza prestito " + loanId, e);
+			}
+
 			return Response.ok().build();
 
 		} catch (NotAuthorizedException e) {
@@ -524,19 +565,13 @@ public class LoanResource {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User currentUser = userService.getUserFromSession(sessionId);
+			SessionPrincipal currentUser = userService.getPrincipal(sessionId);
 
 			// recupera richieste dove l'utente e' proprietario e lo stato e' PENDING
-			List<Loan> requests = loansRepository.findIncomingByOwner(currentUser.getId());
-
-			List<LoanDTO> response = new ArrayList<>();
-
-			for (Loan loan: requests) {
+			List<Loan> requests = loansRepository.findIncomingByOwner(currentUser.id());
 
-				LoanDTO dto = loanToDTO(loan);
-
-				response.add(dto);
-			}
+			// username di tutti i prestiti con una sola query
+			List<LoanDTO> response = loanAssembler.toDTOs(requests);
 
 			return Response.ok(response).build();
 
@@ -554,19 +589,19 @@ public class LoanResource {
 	public Response notifyOwner(@PathParam("id") String loanId, @Context HttpHeaders headers, Map<String, String> request) {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 		try {
-			User requester = userService.getUserFromSession(sessionId);
+			SessionPrincipal requester = userService.getPrincipal(sessionId);
 			Optional<Loan> opLoan = loansRepository.get(loanId);
 
 			if (opLoan.isPresent()) {
 				Loan loan = opLoan.get();
-				Optional<User> opOwner = userRepository.get(loan.getOwnerId());
+				Optional<User> opOwner = userRepository.get(loan.getOwnerId(), User.CONTACT);
 
 				if (opOwner.isPresent()) {
 					User owner = opOwner.get();
 
 
 					// Invia una mail predefinita al proprietario senza mostrare l'indirizzo al richiedente
-					emailService.sendContactRequestEmail(owner.getEmail(), owner.getUsername(), requester.getUsername(), loan.getTitle(), request);
+					emailService.sendContactRequestEmail(owner.getEmail(), owner.getUsername(), requester.username(), loan.getTitle(), request);
 					return Response.ok().build();
 				}
 			}
@@ -585,18 +620,13 @@ public class LoanResource {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User currentUser = userService.getUserFromSession(sessionId);
+			SessionPrincipal currentUser = userService.getPrincipal(sessionId);
 
 			// recupera prestiti in corso (stato ON_LOAN) sia come proprietario che come richiedente
-			List<Loan> activeLoans = loansRepository.findActiveByUser(currentUser.getId());
-
-			List<LoanDTO> response = new ArrayList<>();
+			List<Loan> activeLoans = loansRepository.findActiveByUser(currentUser.id());
 
-			for (Loan loan: activeLoans) {
-
-				LoanDTO dto = loanToDTO(loan);
-				response.add(dto);
-			}
+			// username di tutti i prestiti con una sola query
+			List<LoanDTO> response = loanAssembler.toDTOs(activeLoans);
 
 			return Response.ok(response).build();
 
@@ -617,18 +647,13 @@ public class LoanResource {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User currentUser = userService.getUserFromSession(sessionId);
+			SessionPrincipal currentUser = userService.getPrincipal(sessionId);
 
 			// recupera tutti prestiti sia come proprietario che come richiedente
-			List<Loan> allLoans = loansRepository.findAllUserLoans(currentUser.getId());
+			List<Loan> allLoans = loansRepository.findAllUserLoans(currentUser.id());
 
-			List<LoanDTO> response = new ArrayList<>();
-
-			for (Loan loan: allLoans) {
-
-				LoanDTO dto = loanToDTO(loan);
-				response.add(dto);
-			}
+			// username di tutti i prestiti con una sola query
+			List<LoanDTO> response = loanAssembler.toDTOs(allLoans);
 
 			return Response.ok(response).build();
 
@@ -648,13 +673,13 @@ public class LoanResource {
 		LOG.debug("EXTEND LOAN " + loanId);
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 		try {
-			User currentUser = userService.getUserFromSession(sessionId);
+			SessionPrincipal currentUser = userService.getPrincipal(sessionId);
 			Optional<Loan> opLoan = loansRepository.get(loanId);
 
 			if (opLoan.isEmpty()) return Response.status(Response.Status.NOT_FOUND).build();
 			Loan loan = opLoan.get();
 
-			if (!loan.getOwnerId().equals(currentUser.getId())) {
+			if (!loan.getOwnerId().equals(currentUser.id())) {
 				return Response.status(Response.Status.FORBIDDEN).build();
 			}
 
@@ -675,39 +700,4 @@ public class LoanResource {
 		}
 	}
 
-	private LoanDTO loanToDTO(Loan loan) {
-
-		String requesterId = loan.getRequesterId();
-		Optional<User> opRequester = userRepository.get(requesterId);
-		String requesterUsername = "utente anonimo";
-
-		if(opRequester.isPresent()) {
-			requesterUsername = opRequester.get().getUsername();
-		}
-
-		String ownerId = loan.getOwnerId();
-		Optional<User> opOwner = userRepository.get(ownerId);
-
-		String ownerUsername = "utente anonimo";
-
-		if(opOwner.isPresent()) {
-			ownerUsername = opOwner.get().getUsername();
-		}
-
-		LoanDTO dto = new LoanDTO(
-				loan.getId(),
-				loan.getTitle(),
-				requesterId,
-				ownerId,
-				loan.getCopyId(), 
-				loan.getStatus(), 
-				loan.getLoanStartDate(), 
-				loan.getExpectedReturnDate(),
-				loan.getOwnerNotes(), 
-				ownerUsername, 
-				requesterUsername,
-				loan.getUpdatedAt());
-		return dto;
-	}
-
 }
@@ -1,23 +1,44 @@
 package it.unipegaso.api.resources;
 
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.unipegaso.api.dto.ChartData;
+import it.unipegaso.api.dto.ErrorResponse;
+import it.unipegaso.api.util.ConditionalGet;
 import it.unipegaso.api.util.SessionIDProvider;
 import it.unipegaso.database.BooksRepository;
 import it.unipegaso.database.LoansRepository;
+import it.unipegaso.database.UserStatsRepository.UserStats;
 import it.unipegaso.database.UsersRepository;
 import it.unipegaso.database.model.User;
 import it.unipegaso.database.model.VisibilityOptions;
+import it.unipegaso.service.GlobalStatsSnapshotService;
 import it.unipegaso.service.LibraryService;
+import it.unipegaso.service.LoanRollupService;
+import it.unipegaso.service.LoanRollupService.Granularity;
+import it.unipegaso.service.SessionPrincipal;
 import it.unipegaso.service.StatsService;
 import it.unipegaso.service.UserService;
+import it.unipegaso.service.UserStatsService;
 import jakarta.inject.Inject;
+import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
@@ -25,17 +46,37 @@ import jakarta.ws.rs.core.Response;
 
 /**
  * Endpoint per statistiche utente.
+ *
+ * Le statistiche arrivano gia' pre-calcolate (user_stats, snapshot globale, rollup dei prestiti),
+ * quindi l'ETag e' l'hash del corpo: il 304 evita il trasferimento, non il calcolo.
+ * Quelle di un profilo si rivalidano sempre, le globali restano valide un minuto.
  */
 @Path("/api/stats")
 @Produces(MediaType.APPLICATION_JSON)
 public class StatsResource {
 
+	private static final int DEFAULT_TREND_BUCKETS = 12;
+
+	private static final String USER_CACHE = "private, no-cache";
+	private static final String GLOBAL_CACHE = "public, max-age=60";
+	// globali con in piu' le librerie dell'utente loggato
+	private static final String GLOBAL_LOGGED_CACHE = "private, max-age=60";
+
 	@Inject 
 	StatsService statsService;
 
 	@Inject 
 	UserService userService;
 
+	@Inject
+	GlobalStatsSnapshotService globalStatsSnapshotService;
+
+	@Inject
+	LoanRollupService loanRollupService;
+
+	@Inject
+	UserStatsService userStatsService;
+
 	@Inject 
 	BooksRepository bookRepository;
 
@@ -48,27 +89,33 @@ public class StatsResource {
 	@Inject 
 	UsersRepository usersRepository;
 
+	@Inject
+	ObjectMapper objectMapper;
+
 	@GET
 	@Path("/user/{id}/counters")
-	public Response getUserCounters(@PathParam("id") String userId, @Context HttpHeaders headers) {
+	public Response getUserCounters(@PathParam("id") String userId, @Context HttpHeaders headers,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
 
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User user = userService.getUserFromSession(sessionId);
+			SessionPrincipal user = userService.getPrincipal(sessionId);
 
-			boolean isProfileOwner = user.getId().equals(userId);
+			boolean isProfileOwner = user.id().equals(userId);
 
 			//carichiamo utente se non e' lo stesso e controlliamo visibilita' del profilo
 			if(!isProfileOwner && !canSeeProfile(userId)) {
 				return Response.status(Response.Status.NOT_FOUND).build();
 			}
 
+			UserStats stats = userStatsService.get(userId);
+
 			Map<String, Long> counts = new HashMap<>();
-			counts.put("myBooksCount", libraryService.countUserCopies(userId, true, isProfileOwner));
-			counts.put("totalLoansOut", loansRepository.count(userId, true));
-			counts.put("totalLoansIn", loansRepository.count(userId, false));
-			return Response.ok(counts).build();
+			counts.put("myBooksCount", isProfileOwner ? stats.copies() : stats.copiesVisible());
+			counts.put("totalLoansOut", stats.loansOut());
+			counts.put("totalLoansIn", stats.loansIn());
+			return cached(counts, USER_CACHE, ifNoneMatch);
 
 		} catch (Exception e) { 
 			return Response.status(Response.Status.UNAUTHORIZED).build(); 
@@ -77,20 +124,21 @@ public class StatsResource {
 
 	@GET
 	@Path("/user/{id}/full")
-	public Response getUserStatsFull(@PathParam("id") String userId, @Context HttpHeaders headers) {
+	public Response getUserStatsFull(@PathParam("id") String userId, @Context HttpHeaders headers,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
 
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User user = userService.getUserFromSession(sessionId);
-			boolean isProfileOwner = user.getId().equals(userId);
+			SessionPrincipal user = userService.getPrincipal(sessionId);
+			boolean isProfileOwner = user.id().equals(userId);
 
 			//carichiamo utente se non e' lo stesso e controlliamo visibilita' del profilo
 			if(!isProfileOwner && !canSeeProfile(userId)) {
 				return Response.status(Response.Status.NOT_FOUND).build();
 			}
 
-			return Response.ok(statsService.getAllUserStats(userId, true, isProfileOwner)).build();
+			return cached(statsService.getAllUserStats(userId, isProfileOwner), USER_CACHE, ifNoneMatch);
 
 		} catch (Exception e) { 
 			return Response.status(Response.Status.UNAUTHORIZED).build(); 
@@ -99,38 +147,110 @@ public class StatsResource {
 
 	@GET
 	@Path("/global/counters")
-	public Response getGlobalCounters() {
+	public Response getGlobalCounters(@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
 
 		Map<String, Long> response = new HashMap<>();
 		response.put("books", bookRepository.count());
 		response.put("copies", libraryService.countCopies(null, false));
 		response.put("loans", loansRepository.count());
-		return Response.ok(response).build();
+		return cached(response, GLOBAL_CACHE, ifNoneMatch);
 
 	}
 
 	@GET
 	@Path("/global/full")
-	public Response getGlobalStatsFull(@Context HttpHeaders headers) {
+	public Response getGlobalStatsFull(@Context HttpHeaders headers, @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
 
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 		String userId = null;
 		boolean logged = false;
 
 		try {
-			User currentUser = userService.getUserFromSession(sessionId);
-			userId = currentUser.getId();
+			SessionPrincipal currentUser = userService.getPrincipal(sessionId);
+			userId = currentUser.id();
 			logged = true;
 		} catch (Exception e) {
 			// utente non loggato, procediamo come guest (currentUserId resta null)
 		}
-		return Response.ok(statsService.getGlobalStats(logged, userId)).build(); 
+		return cached(globalStatsSnapshotService.getGlobalStats(logged, userId), logged ? GLOBAL_LOGGED_CACHE : GLOBAL_CACHE, ifNoneMatch);
+	}
+
+
+	@GET
+	@Path("/user/{id}/trend")
+	public Response getUserTrend(@PathParam("id") String userId, @Context HttpHeaders headers,
+			@QueryParam("granularity") @DefaultValue("month") String granularity,
+			@QueryParam("metric") @DefaultValue("started") String metric,
+			@QueryParam("from") String from,
+			@QueryParam("to") String to,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
+
+		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
+
+		try {
+			SessionPrincipal user = userService.getPrincipal(sessionId);
+
+			if(!user.id().equals(userId) && !canSeeProfile(userId)) {
+				return Response.status(Response.Status.NOT_FOUND).build();
+			}
+		} catch (Exception e) {
+			return Response.status(Response.Status.UNAUTHORIZED).build();
+		}
+
+		return trendResponse(userId, granularity, metric, from, to, USER_CACHE, ifNoneMatch);
 	}
 
+	@GET
+	@Path("/global/trend")
+	public Response getGlobalTrend(
+			@QueryParam("granularity") @DefaultValue("month") String granularity,
+			@QueryParam("metric") @DefaultValue("started") String metric,
+			@QueryParam("from") String from,
+			@QueryParam("to") String to,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
+
+		return trendResponse(null, granularity, metric, from, to, GLOBAL_CACHE, ifNoneMatch);
+	}
+
+	// from e to in formato yyyy-MM-dd; senza from si prendono gli ultimi DEFAULT_TREND_BUCKETS bucket fino a to
+	private Response trendResponse(String ownerId, String granularity, String metric, String from, String to,
+			String cacheControl, String ifNoneMatch) {
+		try {
+			Granularity g = Granularity.from(granularity);
+			Instant end = (to == null || to.isBlank()) ? Instant.now() : LocalDate.parse(to).atStartOfDay(ZoneOffset.UTC).toInstant();
+
+			Map<String, Long> trend = (from == null || from.isBlank())
+					? loanRollupService.lastBuckets(ownerId, g, metric, DEFAULT_TREND_BUCKETS, end)
+					: loanRollupService.trend(ownerId, g, metric, LocalDate.parse(from).atStartOfDay(ZoneOffset.UTC).toInstant(), end);
+
+			return cached(new ChartData(new ArrayList<>(trend.keySet()), new ArrayList<>(trend.values())), cacheControl, ifNoneMatch);
+
+		} catch (IllegalArgumentException | DateTimeParseException e) {
+			return Response.status(Response.Status.BAD_REQUEST)
+					.entity(new ErrorResponse("BAD_REQUEST", e.getMessage())).build();
+		}
+	}
+
+
+	// Vary: Cookie perche' visibilita' e librerie proprie dipendono dalla sessione
+	private Response cached(Object body, String cacheControl, String ifNoneMatch) {
+		byte[] json;
+		try {
+			json = objectMapper.writeValueAsBytes(body);
+		} catch (JsonProcessingException e) {
+			throw new UncheckedIOException(e);
+		}
+		String tag = ConditionalGet.tag(json);
+
+		if (ConditionalGet.matches(ifNoneMatch, tag)) {
+			return ConditionalGet.notModified(tag, cacheControl).header(HttpHeaders.VARY, HttpHeaders.COOKIE).build();
+		}
+		return ConditionalGet.ok(json, tag, cacheControl).type(MediaType.APPLICATION_JSON).header(HttpHeaders.VARY, HttpHeaders.COOKIE).build();
+	}
 
 	private boolean canSeeProfile(String userId) {
 
-		Optional<User> opProfileUser = usersRepository.get(userId);
+		Optional<User> opProfileUser = usersRepository.get(userId, User.IDENTITY);
 
 		//anche se e' privato ritorno un not found per proteggere privacy (altro confermerebbe l'esistenza)
 		if(opProfileUser.isEmpty() || opProfileUser.get().getVisibility().equals(VisibilityOptions.PRIVATE.toDbValue())) {
@@ -19,10 +19,13 @@ import it.unipegaso.database.UsersRepository;
 import it.unipegaso.database.model.Library;
 import it.unipegaso.database.model.User;
 import it.unipegaso.database.model.VisibilityOptions;
+import it.unipegaso.service.BookMapService;
 import it.unipegaso.service.EmailService;
 import it.unipegaso.service.LibraryService;
 import it.unipegaso.service.LocationService;
 import it.unipegaso.service.SessionDataService;
+import it.unipegaso.service.SessionPrincipal;
+import it.unipegaso.service.SessionPrincipalService;
 import it.unipegaso.service.UserService;
 import jakarta.annotation.security.PermitAll;
 import jakarta.inject.Inject;
@@ -61,12 +64,18 @@ public class UserResource {
 	@Inject
 	SessionDataService sessionDataService;
 
+	@Inject
+	SessionPrincipalService sessionPrincipalService;
+
 	@Inject
 	LibraryService libraryService;
 
 	@Inject
 	EmailService emailService;
 
+	@Inject
+	BookMapService bookMapService;
+
 
 	@GET
 	@Path("/check-exists/{username}")
@@ -106,12 +115,14 @@ public class UserResource {
 
             	user.addToHistory(history);
                 user.setUsername(newUsername);
-                // fondamentale: aggiorna il valore in redis per le chiamate future
-                sessionDataService.updateField(sessionId, "username", newUsername);
+                // fondamentale: aggiorna il principal in redis per le chiamate future
+                sessionPrincipalService.update(sessionId, user);
                 LOG.infof("Sessione aggiornata con nuovo username: %s", newUsername);
             }
 
-			userRepository.update(user);
+			if (userRepository.update(user)) {
+				bookMapService.syncOwner(user.getId());
+			}
 			return Response.ok(user).build();
 		} catch (Exception e) {
 			return Response.status(Response.Status.UNAUTHORIZED).build();
@@ -160,7 +171,9 @@ public class UserResource {
 				user.addToHistory(history);
 			}
 			
-			userRepository.update(user);
+			if (userRepository.update(user)) {
+				bookMapService.syncOwner(user.getId());
+			}
 			return Response.ok(user).build();
 		} catch (Exception e) {
 			return Response.status(Response.Status.UNAUTHORIZED).build();
@@ -178,8 +191,8 @@ public class UserResource {
 		boolean isProfileOwner = false;
 
 		try {
-			User currentUser = userService.getUserFromSession(sessionId);
-			currentUserId = currentUser.getId();
+			SessionPrincipal currentUser = userService.getPrincipal(sessionId);
+			currentUserId = currentUser.id();
 			isProfileOwner = userId.equals(currentUserId);
 			logged = true;
 		} catch (Exception e) {
@@ -291,6 +304,8 @@ public class UserResource {
 
 		if(updateSuccess) {
 			LOG.infof("Posizione salvata e Utente %s aggiornato con Location ID: %s", user.getUsername(), locationId);
+			// il blur del profilo concorre a quello effettivo delle sue librerie
+			bookMapService.syncOwner(user.getId());
 			// Successo 204 No Content
 			return Response.ok().build(); 
 		} else {
@@ -309,7 +324,7 @@ public class UserResource {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User user = userService.getUserFromSession(sessionId);
+			User user = userService.getUserFromSession(sessionId, User.PROFILE);
 
 			// se il controllo arriva qui senza eccezioni, l'utente e' autenticato 
 			Map<String, Object> responseBody = new HashMap<>();
@@ -349,9 +364,9 @@ public class UserResource {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 
 		try {
-			User user = userService.getUserFromSession(sessionId); 
+			SessionPrincipal user = userService.getPrincipal(sessionId); 
 
-			String userId = user.getId();
+			String userId = user.id();
 
 			List<Library> userLibraries = libraryService.getUserLibraries(userId); 
 
@@ -410,17 +425,18 @@ public class UserResource {
 	public Response deleteAccount(@Context HttpHeaders headers) {
 		String sessionId = SessionIDProvider.getSessionId(headers).orElse(null);
 		try {
-			User user = userService.getUserFromSession(sessionId);
+			SessionPrincipal user = userService.getPrincipal(sessionId);
 
-			UserService.DeletionResult result = userService.tryFullDeleteUser(user.getId());
+			UserService.DeletionResult result = userService.tryFullDeleteUser(user.id());
 
 			if (result.success) {
-				emailService.sendAccountDeletedEmail(user.getEmail(), user.getUsername());
+				emailService.sendAccountDeletedEmail(user.email(), user.username());
 				sessionDataService.delete(sessionId);
+				sessionPrincipalService.invalidate(sessionId);
 				return Response.noContent().build();
 			} else {
 				// Notifichiamo l'utente via email sui prestiti bloccanti
-				emailService.sendDeletionBlockedEmail(user.getEmail(), user.getUsername(), result.blockingLoans);
+				emailService.sendDeletionBlockedEmail(user.email(), user.username(), result.blockingLoans);
 
 				// Ritorniamo un 409 Conflict per dire al frontend che non si può fare
 				return Response.status(Response.Status.CONFLICT)
@@ -0,0 +1,79 @@
+package it.unipegaso.api.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * GET condizionali: ETag debole + If-None-Match -> 304.
+ * Il tag si calcola da cio' che determina la risposta (versioni dei documenti, contatori, chi la guarda)
+ * oppure, se la risposta e' gia' economica da produrre, dal corpo serializzato.
+ */
+public final class ConditionalGet {
+
+    private ConditionalGet() { }
+
+    // parti separate da '|', null compreso: "1|null" e "1|" restano diversi
+    public static String tag(Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (Object part : parts) {
+            sb.append(part).append('|');
+        }
+        return tag(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // corpo serializzato piu' cio' che la risposta porta fuori dal corpo (es. header)
+    public static String tag(byte[] body, Object... parts) {
+        Object[] all = new Object[parts.length + 1];
+        all[0] = tag(body);
+        System.arraycopy(parts, 0, all, 1, parts.length);
+        return tag(all);
+    }
+
+    public static String tag(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            return "W/\"" + HexFormat.of().formatHex(digest, 0, 16) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * true se If-None-Match contiene il tag attuale (confronto debole, come vuole la RFC per le GET) o "*".
+     */
+    public static boolean matches(String ifNoneMatch, String tag) {
+        if (ifNoneMatch == null || ifNoneMatch.isBlank()) {
+            return false;
+        }
+
+        String current = opaque(tag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.equals("*") || opaque(value).equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static Response.ResponseBuilder notModified(String tag, String cacheControl) {
+        return Response.notModified()
+                .header(HttpHeaders.ETAG, tag)
+                .header(HttpHeaders.CACHE_CONTROL, cacheControl);
+    }
+
+    public static Response.ResponseBuilder ok(Object entity, String tag, String cacheControl) {
+        return Response.ok(entity)
+                .header(HttpHeaders.ETAG, tag)
+                .header(HttpHeaders.CACHE_CONTROL, cacheControl);
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+}
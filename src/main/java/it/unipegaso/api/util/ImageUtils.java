@@ -6,48 +6,72 @@ import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Base64;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 
 public class ImageUtils {
 
-    // ridimensiona e converte JPG codificato in Base64
-    public static String resizeAndConvertToBase64(byte[] originalImageBytes, int targetWidth) throws IOException {
-        // controlla che la larghezza richiesta sia valida
-        if (targetWidth <= 0) throw new IllegalArgumentException("targetWidth deve essere > 0");
-
-        // try-with-resources per garantire la chiusura automatica degli stream
-        try (ByteArrayInputStream bais = new ByteArrayInputStream(originalImageBytes);
-             ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-
-            BufferedImage originalImage = ImageIO.read(bais);
-            if (originalImage == null) return null; // restituisce null se l'immagine non è valida
-
-            int originalWidth = originalImage.getWidth();
-            int originalHeight = originalImage.getHeight();
+    // legge un'immagine (jpg, png, ...), null se il formato non e' riconosciuto
+    public static BufferedImage decode(byte[] bytes) throws IOException {
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
+            return ImageIO.read(bais);
+        }
+    }
 
-            // calcola l'altezza target mantenendo le proporzioni
-            int targetHeight = (int) ((double) targetWidth / originalWidth * originalHeight);
+    /**
+     * Riduce l'immagine perche' il lato piu' lungo non superi maxSide (le piu' piccole restano come sono).
+     * Dimezza con interpolazione bilineare finche' non arriva a meno del doppio del target, poi un ultimo passo:
+     * qualita' simile a SCALE_SMOOTH a una frazione del costo. Il risultato e' sempre RGB (niente alpha per il JPEG).
+     */
+    public static BufferedImage downscale(BufferedImage source, int maxSide) {
+        if (maxSide <= 0) throw new IllegalArgumentException("maxSide deve essere > 0");
 
-            // crea un nuovo BufferedImage RGB per la versione ridimensionata
-            BufferedImage resizedImage = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+        int width = source.getWidth();
+        int height = source.getHeight();
+        double ratio = Math.min(1.0, (double) maxSide / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(height * ratio));
 
-            // crea un oggetto Graphics2D per disegnare l'immagine ridimensionata
-            Graphics2D graphics = resizedImage.createGraphics();
+        BufferedImage current = source;
+        do {
+            // passi intermedi a meta', l'ultimo direttamente alla misura finale
+            width = (width / 2 >= targetWidth) ? width / 2 : targetWidth;
+            height = (height / 2 >= targetHeight) ? height / 2 : targetHeight;
+            current = draw(current, width, height);
+        } while (width != targetWidth || height != targetHeight);
 
-            // Imposta suggerimenti per migliorare la qualità del ridimensionamento
-            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        return current;
+    }
 
-            // disegna l'immagine originale ridimensionata sul nuovo BufferedImage
-            graphics.drawImage(originalImage, 0, 0, targetWidth, targetHeight, null);
-            graphics.dispose(); // rilascia le risorse del Graphics2D
+    // JPEG con qualita' da 0 a 1
+    public static byte[] toJpeg(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
 
-            ImageIO.write(resizedImage, "jpg", baos);
-            return Base64.getEncoder().encodeToString(baos.toByteArray());
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             ImageOutputStream ios = ImageIO.createImageOutputStream(baos)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+            ios.flush();
+            return baos.toByteArray();
+        } finally {
+            writer.dispose();
         }
     }
-    
+
+    private static BufferedImage draw(BufferedImage source, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        graphics.drawImage(source, 0, 0, width, height, null);
+        graphics.dispose();
+        return scaled;
+    }
 }
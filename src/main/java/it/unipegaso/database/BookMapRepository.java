@@ -0,0 +1,203 @@
+package it.unipegaso.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.jboss.logging.Logger;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+
+import it.unipegaso.database.model.BookMapEntry;
+import it.unipegaso.database.model.Copy;
+import it.unipegaso.database.model.Library;
+import it.unipegaso.database.model.User;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Repository del read model "book_map": una riga per copia con tutto cio'
+ * che serve alla mappa. I documenti vengono riscritti da BookMapService
+ * sui percorsi di scrittura di copie, librerie e utenti.
+ */
+@ApplicationScoped
+public class BookMapRepository implements IRepository<BookMapEntry> {
+
+	private static final Logger LOG = Logger.getLogger(BookMapRepository.class);
+
+	public static final String COLLECTION = "book_map";
+
+	private static final String LIBRARY_ID = "libraryId";
+	private static final String OWNER_ID = "ownerId";
+	private static final String GEOLOCATION = "geolocation";
+
+	@Inject
+	MongoCollection<BookMapEntry> bookMap;
+
+	@Inject
+	MongoCollection<Copy> copies;
+
+	public void ensureIndexes() {
+		// createIndex e' idempotente, se l'indice esiste gia' non fa nulla
+		bookMap.createIndex(Indexes.geo2dsphere(GEOLOCATION));
+		// paginazione keyset per titolo e autore; il prefisso libraryId serve anche alle sync per libreria
+		bookMap.createIndex(Indexes.ascending(LIBRARY_ID, "title", ID));
+		bookMap.createIndex(Indexes.ascending(LIBRARY_ID, "author", ID));
+		bookMap.createIndex(Indexes.ascending(OWNER_ID));
+		LOG.info("indici book_map verificati");
+	}
+
+	// l'id della copia e' gia' assegnato, qui facciamo solo upsert
+	@Override
+	public String create(BookMapEntry entry) throws MongoWriteException {
+		return update(entry) ? entry.getId() : null;
+	}
+
+	@Override
+	public Optional<BookMapEntry> get(String id) {
+		if (id == null || id.trim().isEmpty()) {
+			return Optional.empty();
+		}
+		return Optional.ofNullable(bookMap.find(Filters.eq(ID, id)).first());
+	}
+
+	@Override
+	public boolean update(BookMapEntry entry) throws MongoWriteException {
+		if (entry == null || entry.getId() == null || entry.getId().isEmpty()) {
+			return false;
+		}
+
+		UpdateResult result = bookMap.replaceOne(Filters.eq(ID, entry.getId()), entry, new ReplaceOptions().upsert(true));
+
+		return result.wasAcknowledged();
+	}
+
+	@Override
+	public boolean delete(String id) {
+		if (id == null || id.trim().isEmpty()) {
+			return false;
+		}
+
+		DeleteResult result = bookMap.deleteOne(Filters.eq(ID, id));
+
+		return result.wasAcknowledged();
+	}
+
+	public long deleteByLibraryId(String libraryId) {
+		if (libraryId == null || libraryId.trim().isEmpty()) {
+			return 0;
+		}
+
+		return bookMap.deleteMany(Filters.eq(LIBRARY_ID, libraryId)).getDeletedCount();
+	}
+
+	// rimuove le righe della libreria che non corrispondono piu' a una copia presente
+	public long deleteByLibraryIdExcept(String libraryId, Collection<String> keepIds) {
+		if (libraryId == null || libraryId.trim().isEmpty()) {
+			return 0;
+		}
+
+		return bookMap.deleteMany(Filters.and(
+				Filters.eq(LIBRARY_ID, libraryId),
+				Filters.nin(ID, keepIds))).getDeletedCount();
+	}
+
+	// la posizione sfocata e' della libreria: stessa per tutte le sue righe
+	public long setFuzzedLocationByLibrary(String libraryId, Point fuzzedLocation) {
+		if (libraryId == null || libraryId.trim().isEmpty()) {
+			return 0;
+		}
+
+		return bookMap.updateMany(Filters.eq(LIBRARY_ID, libraryId), Updates.set("fuzzedLocation", fuzzedLocation)).getModifiedCount();
+	}
+
+	// stessi incrementi applicati a copies, cosi' il read model resta allineato
+	public void addViews(Map<String, Long> increments) {
+		if (increments == null || increments.isEmpty()) {
+			return;
+		}
+
+		List<WriteModel<BookMapEntry>> updates = new ArrayList<>(increments.size());
+		increments.forEach((id, n) -> updates.add(new UpdateOneModel<>(Filters.eq(ID, id), Updates.inc("views_counter", n))));
+
+		bookMap.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+	}
+
+	@Override
+	public FindIterable<BookMapEntry> find(Bson filter) {
+		return bookMap.find(filter);
+	}
+
+	@Override
+	public long count() {
+		return bookMap.countDocuments();
+	}
+
+	/**
+	 * Ricostruisce da zero il read model partendo dalle copie esistenti.
+	 * Usa $out, che sostituisce la collection mantenendo gli indici gia' creati.
+	 * Stessa pipeline di docs/scripts/bibliomap-book-map-rebuild.js.
+	 */
+	public void rebuild() {
+		LOG.info("ricostruzione book_map avviata");
+
+		List<Bson> pipeline = Arrays.asList(
+				// dalle join arrivano solo i campi proiettati qui sotto
+				Lookups.lookup("libraries", LIBRARY_ID, ID, Library.SUMMARY, "library"),
+				new Document("$unwind", "$library"),
+
+				Lookups.lookup("locations", "library.locationId", ID, Projections.include(GEOLOCATION), "location"),
+				new Document("$unwind", "$location"),
+
+				Lookups.lookup("users", "library.ownerId", ID, User.IDENTITY, "owner"),
+				new Document("$unwind", new Document("path", "$owner").append("preserveNullAndEmptyArrays", true)),
+
+				Lookups.lookup("books", "book_isbn", ID, Projections.include("title", "author", "cover"), "book"),
+				new Document("$unwind", "$book"),
+
+				new Document("$project", new Document()
+						.append(GEOLOCATION, "$location.geolocation")
+						.append(LIBRARY_ID, 1)
+						.append("libraryName", "$library.name")
+						.append(VISIBILITY, "$library.visibility")
+						.append("blurRadius", new Document("$max", Arrays.asList(
+								new Document("$ifNull", Arrays.asList("$library.blurRadius", 0)),
+								new Document("$ifNull", Arrays.asList("$owner.blurRadius", 0)))))
+						.append("fuzzedLocation", "$library.fuzzedLocation")
+						.append(OWNER_ID, "$library.ownerId")
+						.append("ownerUsername", "$owner.username")
+						.append("book_isbn", 1)
+						.append("title", "$book.title")
+						.append("author", "$book.author")
+						.append("cover", "$book.cover")
+						.append("status", 1)
+						.append("tags", 1)
+						.append("views_counter", new Document("$ifNull", Arrays.asList("$views_counter", 0L)))),
+
+				new Document("$out", COLLECTION));
+
+		copies.withDocumentClass(Document.class)
+		.aggregate(pipeline)
+		.toCollection();
+
+		LOG.infof("ricostruzione book_map completata: %d righe", count());
+	}
+}
@@ -7,6 +7,7 @@ import static com.mongodb.client.model.Sorts.descending;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,26 +16,64 @@ import java.util.UUID;
 
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.result.InsertOneResult;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.quarkus.runtime.configuration.MemorySize;
 import it.unipegaso.database.model.Book;
+import it.unipegaso.service.BookTextIndex;
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
+/**
+ * I libri non vengono mai modificati ne' eliminati: le letture per isbn passano da una
+ * cache in memoria limitata in byte (book-cache.max-size), senza invalidazione.
+ * Metriche: cache_gets, cache_evictions, cache_size con tag cache=books.
+ */
 @ApplicationScoped
 public class BooksRepository implements IRepository<Book> {
 
 	private static final Logger LOG = Logger.getLogger(BooksRepository.class);
 
+	// stima dell'occupazione di un Book oltre al contenuto delle stringhe
+	private static final int BOOK_OVERHEAD_BYTES = 96;
+
     @Inject
     MongoCollection<Book> books;
 
+    @Inject
+    BookTextIndex bookTextIndex;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "book-cache.max-size", defaultValue = "32M")
+    MemorySize maxSize;
+
+    private Cache<String, Book> cache;
+
+    @PostConstruct
+    void initCache() {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxSize.asLongValue())
+                .weigher((String isbn, Book book) -> weight(isbn, book))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(registry, cache, "books");
+    }
+
     @Override
     public String create(Book book) throws MongoWriteException {
         if (book.getIsbn() == null || book.getIsbn().isEmpty()) {
@@ -49,6 +88,11 @@ public class BooksRepository implements IRepository<Book> {
             LOG.error("Inserimento libro non confermato");
             return null;
         }
+
+        // i libri sono immutabili: basta aggiungerli all'indice testuale e alla cache
+        bookTextIndex.add(book);
+        cache.put(book.getIsbn(), book);
+
         return book.getIsbn();
     }
 
@@ -57,26 +101,50 @@ public class BooksRepository implements IRepository<Book> {
         if (isbn == null || isbn.trim().isEmpty()) {
         	return Optional.empty();
         }
-        return Optional.ofNullable(books.find(Filters.eq("_id", isbn)).first());
+        // gli isbn non trovati non restano in cache: il libro potrebbe essere creato dopo
+        return Optional.ofNullable(cache.get(isbn, k -> books.find(Filters.eq("_id", k)).first()));
     }
-    
-    public Map<String, String> getTitlesMap(List<String> isbns) {
-
-        Map<String, String> titlesMap = new HashMap<>();
 
+    /**
+     * Libri per isbn: quelli non in cache vengono letti con una sola query $in.
+     * Gli isbn inesistenti non compaiono nella mappa.
+     */
+    public Map<String, Book> getAll(Collection<String> isbns) {
         if (isbns == null || isbns.isEmpty()) {
-            return titlesMap;
+            return new HashMap<>();
         }
 
-        books.find(Filters.in("_id", isbns))
-             .projection(new Document("_id", 1).append("title", 1))
-             .forEach(book -> {
-                 titlesMap.put(book.getIsbn(), book.getTitle());
-             });
+        List<String> keys = isbns.stream()
+                .filter(isbn -> isbn != null && !isbn.trim().isEmpty())
+                .distinct()
+                .toList();
+
+        return cache.getAll(keys, missing -> {
+            Map<String, Book> loaded = new HashMap<>();
+            books.find(Filters.in("_id", missing)).forEach(book -> loaded.put(book.getIsbn(), book));
+            return loaded;
+        });
+    }
+
+    public Map<String, String> getTitlesMap(List<String> isbns) {
+
+        Map<String, String> titlesMap = new HashMap<>();
+
+        getAll(isbns).forEach((isbn, book) -> titlesMap.put(isbn, book.getTitle()));
 
         return titlesMap;
     }
 
+    private static int weight(String isbn, Book book) {
+        long chars = length(isbn) + length(book.getTitle()) + length(book.getAuthor()) + length(book.getPublisher())
+                + length(book.getLanguage()) + length(book.getCover_type()) + length(book.getCover());
+        return (int) Math.min(Integer.MAX_VALUE, BOOK_OVERHEAD_BYTES + chars * 2);
+    }
+
+    private static int length(String s) {
+        return (s == null) ? 0 : s.length();
+    }
+
     
     @Override
     public FindIterable<Book>find (Bson filter){
@@ -1,8 +1,8 @@
 package it.unipegaso.database;
 
+import static com.mongodb.client.model.Accumulators.max;
 import static com.mongodb.client.model.Accumulators.sum;
 import static com.mongodb.client.model.Aggregates.group;
-import static com.mongodb.client.model.Aggregates.limit;
 import static com.mongodb.client.model.Aggregates.match;
 import static com.mongodb.client.model.Aggregates.sort;
 import static com.mongodb.client.model.Aggregates.unwind;
@@ -10,6 +10,7 @@ import static com.mongodb.client.model.Sorts.descending;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -24,7 +25,12 @@ import org.jboss.logging.Logger;
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.InsertOneResult;
 import com.mongodb.client.result.UpdateResult;
@@ -42,10 +48,17 @@ public class CopiesRepository implements IRepository<Copy> {
 	MongoCollection<Copy> copies;
 
 	private static final String LIBRARY_ID = "libraryId";
+	private static final String COVER_HASH = "cover_hash";
+	private static final String COVER_PENDING = "cover_pending";
+	private static final String LEGACY_COVER = "custom_cover";
+	private static final String VERSION = "version";
+	private static final String UPDATED_AT = "updated_at";
 
 	@Override
 	public String create(Copy copy) throws MongoWriteException {
 		copy.setId( UUID.randomUUID().toString()) ;
+		copy.setVersion(1);
+		copy.setUpdatedAt(new Date());
 
 		InsertOneResult result = copies.insertOne(copy);
 
@@ -106,57 +119,133 @@ public class CopiesRepository implements IRepository<Copy> {
 	@Override
 	public boolean update(Copy copy) throws MongoWriteException {
 
-		if (copy == null || copy.getId().isEmpty()) {
+		return update(copy, editableFields(copy));
+	}
+
+	/**
+	 * Come update, ma scrive anche la copertina (cover_hash, cover_pending): solo per un cambio
+	 * esplicito della copertina da parte del proprietario.
+	 */
+	public boolean updateWithCover(Copy copy) throws MongoWriteException {
+		List<Bson> fields = editableFields(copy);
+		fields.add(copy.getCoverHash() != null ? Updates.set(COVER_HASH, copy.getCoverHash()) : Updates.unset(COVER_HASH));
+		fields.add(Updates.set(COVER_PENDING, copy.isCoverPending()));
+		return update(copy, fields);
+	}
+
+	/*
+	 * Niente replaceOne: la copia letta dal chiamante puo' essere gia' vecchia rispetto a chi scrive in background
+	 * (worker delle copertine, flush delle visualizzazioni). Si scrivono solo i campi modificabili dal proprietario,
+	 * cosi' cover_pending, cover_hash e views_counter restano quelli attuali.
+	 */
+	private boolean update(Copy copy, List<Bson> fields) {
+		if (copy == null || copy.getId() == null || copy.getId().isEmpty()) {
 			return false;
 		}
-		UpdateResult result = copies.replaceOne(Filters.eq(ID, copy.getId()), copy);
 
+		fields.add(touch());
+		UpdateResult result = copies.updateOne(Filters.eq(ID, copy.getId()), Updates.combine(fields));
+
+		copy.setVersion(copy.getVersion() + 1);
 		return result.getMatchedCount() == 1;
 	}
 
-	@Override
-	public FindIterable<Copy> find(Bson filter) {
-		return copies.find(filter);
+	private static List<Bson> editableFields(Copy copy) {
+		List<Bson> fields = new ArrayList<>();
+		fields.add(Updates.set(LIBRARY_ID, copy.getLibraryId()));
+		fields.add(Updates.set("book_isbn", copy.getBookIsbn()));
+		fields.add(Updates.set("status", copy.getStatus()));
+		fields.add(Updates.set("condition", copy.getCondition()));
+		fields.add(Updates.set("owner_notes", copy.getOwnerNotes()));
+		fields.add(Updates.set("tags", copy.getTags()));
+		return fields;
 	}
 
+	/**
+	 * Somma le visualizzazioni accumulate (id -> incremento) con un solo bulkWrite non ordinato.
+	 */
+	public void addViews(Map<String, Long> increments) {
+		if (increments == null || increments.isEmpty()) {
+			return;
+		}
+
+		List<WriteModel<Copy>> updates = new ArrayList<>(increments.size());
+		increments.forEach((id, n) -> updates.add(new UpdateOneModel<>(Filters.eq(ID, id), Updates.inc("views_counter", n))));
 
-	@Override
-	public long count() {
-		return copies.countDocuments();
+		copies.bulkWrite(updates, new BulkWriteOptions().ordered(false));
 	}
 
-	public String findTopTagByLibraryIds (List<String> userLibIds) {
-		// Se l'utente non ha librerie, inutile procedere
-		if (userLibIds == null || userLibIds.isEmpty()) {
-			return "nessuno";
+	/**
+	 * Copie con la copertina ancora in base64 nel documento (custom_cover), al massimo limit.
+	 */
+	public List<Document> findLegacyCovers(int limit) {
+		return copies.withDocumentClass(Document.class)
+				.find(Filters.exists(LEGACY_COVER))
+				.projection(Projections.include(LEGACY_COVER))
+				.limit(limit)
+				.into(new ArrayList<>());
+	}
+
+	/**
+	 * Sostituisce custom_cover con l'hash della copertina (id copia -> hash, null se l'immagine non era leggibile).
+	 */
+	public void replaceLegacyCovers(Map<String, String> hashes) {
+		if (hashes == null || hashes.isEmpty()) {
+			return;
 		}
 
-		// esegue l'aggregazione filtrando per i libraryId ottenuti
-		List<Bson> pipeline = Arrays.asList(
-				// Filtra le copie che appartengono a una delle librerie dell'utente
-				match(Filters.in("libraryId", userLibIds)),
+		List<WriteModel<Copy>> updates = new ArrayList<>(hashes.size());
+		hashes.forEach((id, hash) -> updates.add(new UpdateOneModel<>(Filters.eq(ID, id),
+				hash != null
+				? Updates.combine(Updates.set(COVER_HASH, hash), Updates.unset(LEGACY_COVER), touch())
+				: Updates.combine(Updates.unset(LEGACY_COVER), touch()))));
 
-				// Separa l'array dei tags per poterli contare singolarmente
-				unwind("$tags"),
+		copies.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+	}
 
-				// Raggruppa per nome del tag e conta le occorrenze
-				group("$tags", sum("count", 1)),
+	/*
+	 * Fine elaborazione della copertina. Il filtro su cover_hash evita di toccare
+	 * una copia a cui nel frattempo e' stata cambiata o tolta la copertina.
+	 */
+	public void coverReady(String copyId, String hash) {
+		copies.updateOne(Filters.and(Filters.eq(ID, copyId), Filters.eq(COVER_HASH, hash)),
+				Updates.combine(Updates.set(COVER_PENDING, false), touch()));
+	}
 
-				// Ordina dal più frequente
-				sort(descending("count")),
+	public void coverFailed(String copyId, String hash) {
+		copies.updateOne(Filters.and(Filters.eq(ID, copyId), Filters.eq(COVER_HASH, hash)),
+				Updates.combine(Updates.unset(COVER_HASH), Updates.set(COVER_PENDING, false), touch()));
+	}
 
-				// Prende solo il primo
-				limit(1)
-				);
+	// da aggiungere a ogni update parziale che cambia cio' che il client vede della copia
+	private static Bson touch() {
+		return Updates.combine(Updates.inc(VERSION, 1), Updates.currentDate(UPDATED_AT));
+	}
+
+	/**
+	 * Stato delle copie di una libreria in un solo documento: quante sono, la somma di versioni e
+	 * visualizzazioni e l'ultima modifica. Cambia quando una copia viene aggiunta, tolta, modificata
+	 * o vista (al flush dei contatori), quindi basta all'ETag della pagina della libreria.
+	 */
+	public Document libraryContentVersion(String libraryId) {
+		List<Bson> pipeline = Arrays.asList(
+				match(Filters.eq(LIBRARY_ID, libraryId)),
+				group(null, sum("count", 1), sum(VERSION, "$" + VERSION), sum("views", "$views_counter"),
+						max(UPDATED_AT, "$" + UPDATED_AT)));
 
-		Document res = copies.withDocumentClass(Document.class)
-				.aggregate(pipeline)
-				.first();
+		Document result = copies.withDocumentClass(Document.class).aggregate(pipeline).first();
+		return result != null ? result : new Document("count", 0);
+	}
 
-		LOG.debug("TOP TAG RESULT: " + res);  
+	@Override
+	public FindIterable<Copy> find(Bson filter) {
+		return copies.find(filter);
+	}
 
-		// In MongoDB aggregate, l'ID del raggruppamento (il nome del tag) finisce nel campo "_id"
-		return res != null ? res.getString("_id") : "nessuno";
+
+	@Override
+	public long count() {
+		return copies.countDocuments();
 	}
 
 	public Map<String, Long> getTags(List<String> userLibIds) {
@@ -0,0 +1,167 @@
+package it.unipegaso.database;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.jboss.logging.Logger;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Email transazionali in attesa di invio ("email_outbox"), scritte subito dopo la modifica che le genera.
+ * Stati: pending (da inviare, non prima di next_attempt_at), sending (presa da un worker fino a locked_until),
+ * sent (eliminata dopo una settimana dall'indice TTL), dead (tentativi esauriti, resta per l'analisi).
+ *
+ * attempts conta le prese, non gli esiti: anche un lease scaduto (worker morto a meta' invio) consuma un tentativo.
+ * Ogni presa scrive un lease_id nuovo e gli esiti si applicano solo se il lease_id e' ancora quello:
+ * un worker lento che finisce dopo che l'email e' stata ripresa da un altro non ne sovrascrive lo stato.
+ */
+@ApplicationScoped
+public class EmailOutboxRepository {
+
+	private static final Logger LOG = Logger.getLogger(EmailOutboxRepository.class);
+
+	public static final String COLLECTION = "email_outbox";
+
+	public static final String PENDING = "pending";
+	public static final String SENDING = "sending";
+	public static final String SENT = "sent";
+	public static final String DEAD = "dead";
+
+	public static final String TO = "to";
+	public static final String SUBJECT = "subject";
+	public static final String HTML = "html";
+	public static final String TYPE = "type";
+	public static final String STATUS = "status";
+	public static final String ATTEMPTS = "attempts";
+	public static final String CREATED_AT = "created_at";
+	public static final String NEXT_ATTEMPT_AT = "next_attempt_at";
+	public static final String LOCKED_UNTIL = "locked_until";
+	public static final String LEASE_ID = "lease_id";
+	public static final String SENT_AT = "sent_at";
+	public static final String LAST_ERROR = "last_error";
+
+	private static final long SENT_RETENTION_DAYS = 7;
+
+	@Inject
+	MongoClient mongoClient;
+
+	private MongoCollection<Document> collection() {
+		return mongoClient.getDatabase("bibliomap").getCollection(COLLECTION);
+	}
+
+	public void ensureIndexes() {
+		collection().createIndex(Indexes.ascending(STATUS, NEXT_ATTEMPT_AT));
+		// solo i documenti con sent_at scadono: i dead restano
+		collection().createIndex(Indexes.ascending(SENT_AT), new IndexOptions().expireAfter(SENT_RETENTION_DAYS, TimeUnit.DAYS));
+		LOG.info("indici email_outbox verificati");
+	}
+
+	/**
+	 * Accoda un'email da inviare appena possibile. Restituisce l'id; un errore di scrittura arriva al chiamante.
+	 */
+	public String enqueue(String to, String subject, String html, String type) {
+		Date now = new Date();
+		String id = UUID.randomUUID().toString();
+
+		collection().insertOne(new Document(IRepository.ID, id)
+				.append(TO, to)
+				.append(SUBJECT, subject)
+				.append(HTML, html)
+				.append(TYPE, type)
+				.append(STATUS, PENDING)
+				.append(ATTEMPTS, 0)
+				.append(CREATED_AT, now)
+				.append(NEXT_ATTEMPT_AT, now));
+
+		return id;
+	}
+
+	/**
+	 * Prende fino a limit email da inviare: pending gia' scadute oppure sending con il lease scaduto
+	 * (worker o nodo morto a meta' invio). Ogni presa e' un findOneAndUpdate, quindi con piu' nodi
+	 * la stessa email non finisce a due worker. I documenti restituiti hanno gia' attempts incrementato
+	 * e il lease_id da passare a markSent, retry e deadLetter.
+	 */
+	public List<Document> claim(int limit, Duration lease) {
+		List<Document> claimed = new ArrayList<>(limit);
+		FindOneAndUpdateOptions options = new FindOneAndUpdateOptions()
+				.sort(Sorts.ascending(NEXT_ATTEMPT_AT))
+				.returnDocument(ReturnDocument.AFTER);
+
+		while (claimed.size() < limit) {
+			Date now = new Date();
+			Document doc = collection().findOneAndUpdate(
+					Filters.or(
+							Filters.and(Filters.eq(STATUS, PENDING), Filters.lte(NEXT_ATTEMPT_AT, now)),
+							Filters.and(Filters.eq(STATUS, SENDING), Filters.lt(LOCKED_UNTIL, now))),
+					Updates.combine(
+							Updates.set(STATUS, SENDING),
+							Updates.set(LOCKED_UNTIL, new Date(now.getTime() + lease.toMillis())),
+							Updates.set(LEASE_ID, UUID.randomUUID().toString()),
+							Updates.inc(ATTEMPTS, 1)),
+					options);
+
+			if (doc == null) {
+				break;
+			}
+			claimed.add(doc);
+		}
+		return claimed;
+	}
+
+	// gli esiti valgono solo per chi ha ancora il lease: false se l'email e' stata ripresa da un altro worker
+	public boolean markSent(String id, String leaseId) {
+		return release(id, leaseId, Updates.combine(
+				Updates.set(STATUS, SENT),
+				Updates.set(SENT_AT, new Date())));
+	}
+
+	// invio fallito, si riprova da nextAttempt
+	public boolean retry(String id, String leaseId, Date nextAttempt, String error) {
+		return release(id, leaseId, Updates.combine(
+				Updates.set(STATUS, PENDING),
+				Updates.set(NEXT_ATTEMPT_AT, nextAttempt),
+				Updates.set(LAST_ERROR, error)));
+	}
+
+	public boolean deadLetter(String id, String leaseId, String error) {
+		return release(id, leaseId, Updates.combine(
+				Updates.set(STATUS, DEAD),
+				Updates.set(LAST_ERROR, error)));
+	}
+
+	private boolean release(String id, String leaseId, Bson update) {
+		UpdateResult result = collection().updateOne(
+				Filters.and(Filters.eq(IRepository.ID, id), Filters.eq(STATUS, SENDING), Filters.eq(LEASE_ID, leaseId)),
+				Updates.combine(update, Updates.unset(LOCKED_UNTIL), Updates.unset(LEASE_ID)));
+		return result.getModifiedCount() > 0;
+	}
+
+	// email non ancora consegnate (in attesa, in retry o in invio)
+	public long countQueued() {
+		return collection().countDocuments(Filters.in(STATUS, PENDING, SENDING));
+	}
+
+	public long countDead() {
+		return collection().countDocuments(Filters.eq(STATUS, DEAD));
+	}
+}
@@ -6,6 +6,7 @@ import org.bson.conversions.Bson;
 
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.Filters;
 
 public interface IRepository<T> {
 	
@@ -24,4 +25,19 @@ public interface IRepository<T> {
 	
 	long count();
 
+	/*
+	 * Letture parziali con un insieme di campi nominato (es. User.IDENTITY, Copy.SUMMARY):
+	 * i campi esclusi restano null/0 nell'oggetto, che quindi non va mai passato a update().
+	 */
+	default Optional<T> get(String id, Bson projection) {
+		if (id == null || id.trim().isEmpty()) {
+			return Optional.empty();
+		}
+		return Optional.ofNullable(find(Filters.eq(ID, id)).projection(projection).first());
+	}
+
+	default FindIterable<T> find(Bson filter, Bson projection) {
+		return find(filter).projection(projection);
+	}
+
 }
@@ -14,8 +14,13 @@ import org.jboss.logging.Logger;
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.geojson.Point;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.InsertOneResult;
 import com.mongodb.client.result.UpdateResult;
@@ -37,6 +42,7 @@ public class LibrariesRepository implements IRepository<Library> {
 	@Override
 	public String create(Library newLibrary) throws MongoWriteException {
 		newLibrary.setId(UUID.randomUUID().toString());
+		newLibrary.setVersion(1);
 		InsertOneResult result = libraries.insertOne(newLibrary);
 
 		if (!result.wasAcknowledged()) {
@@ -78,7 +84,7 @@ public class LibrariesRepository implements IRepository<Library> {
 			List<Bson> conditions = new ArrayList<>();
 			conditions.add(Filters.eq(VISIBILITY, VisibilityOptions.ALL.toDbValue()));
 			conditions.add(Filters.eq(VISIBILITY, VisibilityOptions.LOGGED_IN.toDbValue()));
-			if (includeOwnerId) {
+			if (includeOwnerId && userId != null) {
 				conditions.add(Filters.eq(OWNER_ID, userId));
 			}
 			return Filters.or(conditions);
@@ -147,27 +153,47 @@ public class LibrariesRepository implements IRepository<Library> {
 		return libraries.find(Filters.eq(OWNER_ID, userId));
 	}
 
+	/*
+	 * Niente replaceOne: si scrivono solo i campi modificabili dal proprietario, cosi' viewsCounter
+	 * (flush di ViewCounterService) e fuzzedLocation restano quelli attuali, e la versione cresce sul server
+	 * anche con due modifiche concorrenti partite dalla stessa lettura.
+	 */
 	@Override
 	public boolean update(Library library) throws MongoWriteException {
-		if (library == null || library.getId().isEmpty()) {
+		if (library == null || library.getId() == null || library.getId().isEmpty()) {
 			return false;
 		}
-		UpdateResult result = libraries.replaceOne(Filters.eq(ID, library.getId()), library);
+
+		UpdateResult result = libraries.updateOne(Filters.eq(ID, library.getId()), Updates.combine(
+				Updates.set("name", library.getName()),
+				Updates.set("visibility", library.getVisibility()),
+				Updates.set("blurRadius", library.getBlurRadius()),
+				Updates.set("locationId", library.getLocationId()),
+				Updates.inc("version", 1L),
+				Updates.currentDate("modifiedAt")));
+
+		library.setVersion(library.getVersion() + 1);
 		return result.getMatchedCount() == 1;
 	}
 
-	public void addView(String id) {
-		LOG.debug("ADD VIEW TO LIBRARY");
-
+	public void setFuzzedLocation(String id, Point fuzzedLocation) {
 		if (id == null || id.trim().isEmpty()) {
-			LOG.warn("ID libreria vuoto, impossibile incrementare views");
 			return;
 		}
 
-		libraries.updateOne(
-			Filters.eq(ID, id),
-			new Document("$inc", new Document("viewsCounter", 1L))
-		);
+		libraries.updateOne(Filters.eq(ID, id), Updates.set("fuzzedLocation", fuzzedLocation));
+	}
+
+	// visualizzazioni accumulate da ViewCounterService: un'unica scrittura per flush
+	public void addViews(Map<String, Long> increments) {
+		if (increments == null || increments.isEmpty()) {
+			return;
+		}
+
+		List<WriteModel<Library>> updates = new ArrayList<>(increments.size());
+		increments.forEach((id, n) -> updates.add(new UpdateOneModel<>(Filters.eq(ID, id), Updates.inc("viewsCounter", n))));
+
+		libraries.bulkWrite(updates, new BulkWriteOptions().ordered(false));
 	}
 
 	@Override
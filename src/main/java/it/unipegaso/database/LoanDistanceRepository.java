@@ -0,0 +1,57 @@
+package it.unipegaso.database;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Distanza massima dei prestiti restituiti, per proprietario e globale.
+ * Un documento per chiave ({_id: ownerId | "global", max_km}) aggiornato con $max:
+ * la lettura delle statistiche e' una find per _id invece di una scansione dei prestiti.
+ */
+@ApplicationScoped
+public class LoanDistanceRepository {
+
+	public static final String COLLECTION = "loan_max_distance";
+	public static final String GLOBAL = "global";
+
+	private static final String MAX_KM = "max_km";
+
+	@Inject
+	MongoClient mongoClient;
+
+	private MongoCollection<Document> collection() {
+		return mongoClient.getDatabase("bibliomap").getCollection(COLLECTION);
+	}
+
+	/**
+	 * Alza il massimo del proprietario e quello globale se distanceKm e' maggiore.
+	 */
+	public void raise(String ownerId, double distanceKm) {
+		UpdateOptions upsert = new UpdateOptions().upsert(true);
+
+		if (ownerId != null) {
+			collection().updateOne(Filters.eq(IRepository.ID, ownerId), Updates.max(MAX_KM, distanceKm), upsert);
+		}
+		collection().updateOne(Filters.eq(IRepository.ID, GLOBAL), Updates.max(MAX_KM, distanceKm), upsert);
+	}
+
+	public double getMax(String key) {
+		Document doc = collection().find(Filters.eq(IRepository.ID, key)).first();
+		if (doc == null || !(doc.get(MAX_KM) instanceof Number n)) {
+			return 0.0;
+		}
+		return n.doubleValue();
+	}
+
+	public double getGlobalMax() {
+		return getMax(GLOBAL);
+	}
+}
@@ -0,0 +1,134 @@
+package it.unipegaso.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.jboss.logging.Logger;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Contatori dei prestiti pre-aggregati per intervallo di tempo ("loan_rollups").
+ * Un documento per (scope, owner, granularity, bucket_start) con un campo numerico per metrica:
+ * i trend leggono solo i bucket dell'intervallo richiesto invece di raggruppare tutti i prestiti.
+ * Per i contatori globali owner vale "global".
+ */
+@ApplicationScoped
+public class LoanRollupRepository {
+
+	private static final Logger LOG = Logger.getLogger(LoanRollupRepository.class);
+
+	public static final String COLLECTION = "loan_rollups";
+	public static final String GLOBAL = "global";
+
+	private static final String SCOPE = "scope";
+	private static final String OWNER = "owner";
+	private static final String GRANULARITY = "granularity";
+	private static final String BUCKET_START = "bucket_start";
+
+	public record BucketKey(String scope, String owner, String granularity, Date bucketStart) {}
+
+	@Inject
+	MongoClient mongoClient;
+
+	private MongoCollection<Document> collection() {
+		return mongoClient.getDatabase("bibliomap").getCollection(COLLECTION);
+	}
+
+	public void ensureIndexes() {
+		collection().createIndex(Indexes.ascending(SCOPE, OWNER, GRANULARITY, BUCKET_START), new IndexOptions().unique(true));
+		LOG.info("indici loan_rollups verificati");
+	}
+
+	/**
+	 * Incrementa metric di n in tutti i bucket indicati, con un solo bulk write.
+	 */
+	public void increment(Collection<BucketKey> keys, String metric, long n) {
+		if (keys == null || keys.isEmpty()) {
+			return;
+		}
+
+		UpdateOptions upsert = new UpdateOptions().upsert(true);
+		List<WriteModel<Document>> updates = new ArrayList<>(keys.size());
+		keys.forEach(k -> updates.add(new UpdateOneModel<>(filter(k), Updates.inc(metric, n), upsert)));
+
+		collection().bulkWrite(updates, new BulkWriteOptions().ordered(false));
+	}
+
+	/**
+	 * Valori di metric per i bucket con inizio in [from, to), in ordine di data.
+	 * I bucket senza documento non compaiono: li riempie chi costruisce il grafico.
+	 */
+	public Map<Date, Long> range(String scope, String owner, String granularity, Date from, Date to, String metric) {
+		Bson filter = Filters.and(
+				Filters.eq(SCOPE, scope),
+				Filters.eq(OWNER, owner),
+				Filters.eq(GRANULARITY, granularity),
+				Filters.gte(BUCKET_START, from),
+				Filters.lt(BUCKET_START, to));
+
+		Map<Date, Long> result = new LinkedHashMap<>();
+		collection().find(filter)
+			.projection(Projections.include(BUCKET_START, metric))
+			.sort(Sorts.ascending(BUCKET_START))
+			.forEach(doc -> {
+				Object val = doc.get(metric);
+				result.put(doc.getDate(BUCKET_START), val instanceof Number num ? num.longValue() : 0L);
+			});
+
+		return result;
+	}
+
+	/**
+	 * Sostituisce tutti i contatori con quelli ricalcolati (chiave -> metrica -> valore).
+	 */
+	public void replaceAll(Map<BucketKey, Map<String, Long>> counters) {
+		collection().deleteMany(new Document());
+		if (counters.isEmpty()) {
+			return;
+		}
+
+		UpdateOptions upsert = new UpdateOptions().upsert(true);
+		List<WriteModel<Document>> updates = new ArrayList<>(counters.size());
+		counters.forEach((k, metrics) -> {
+			List<Bson> sets = new ArrayList<>();
+			metrics.forEach((metric, n) -> sets.add(Updates.set(metric, n)));
+			updates.add(new UpdateOneModel<>(filter(k), Updates.combine(sets), upsert));
+		});
+
+		collection().bulkWrite(updates, new BulkWriteOptions().ordered(false));
+		LOG.infof("loan_rollups ricostruita: %d bucket", counters.size());
+	}
+
+	public long count() {
+		return collection().countDocuments();
+	}
+
+	private static Bson filter(BucketKey k) {
+		return Filters.and(
+				Filters.eq(SCOPE, k.scope()),
+				Filters.eq(OWNER, k.owner()),
+				Filters.eq(GRANULARITY, k.granularity()),
+				Filters.eq(BUCKET_START, k.bucketStart()));
+	}
+}
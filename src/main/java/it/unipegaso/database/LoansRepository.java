@@ -6,13 +6,10 @@ import static com.mongodb.client.model.Aggregates.limit;
 import static com.mongodb.client.model.Aggregates.match;
 import static com.mongodb.client.model.Aggregates.sort;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Sorts.ascending;
 import static com.mongodb.client.model.Sorts.descending;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -27,7 +24,11 @@ import org.jboss.logging.Logger;
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.InsertOneResult;
 import com.mongodb.client.result.UpdateResult;
@@ -46,6 +47,7 @@ public class LoansRepository implements IRepository<Loan> {
 	private static final String OWNER_ID = "owner_id";
 	private static final String COPY_ID = "copy_id";
 	private static final String STATUS = "status";
+	private static final String DISTANCE_KM = "distance_km";
 
 
 	@Inject
@@ -209,38 +211,6 @@ public class LoansRepository implements IRepository<Loan> {
 	}
 
 
-	public Map<String, Long> getTopRequesters(String userId) {
-		List<Bson> pipeline = Arrays.asList(
-				match(eq("ownerId", userId)),
-				group("$requesterUsername", sum("count", 1)), // usiamo lo username per comodità del grafico
-				sort(descending("count")),
-				limit(5)
-				);
-
-		Map<String, Long> topUsers = new LinkedHashMap<>();
-		loans.withDocumentClass(Document.class)
-		.aggregate(pipeline)
-		.forEach(doc -> {
-			Number count = doc.get("count", Number.class);
-			topUsers.put(doc.getString("_id"), count.longValue());
-		});
-		return topUsers;
-	}
-
-	// Trova l'utente con cui l'utente ha scambiato più libri
-	public String findTopPartnerId(String userId) {
-		List<Bson> pipeline = Arrays.asList(
-				match(Filters.eq(OWNER_ID, userId)),
-				group("$requester_id", sum("count", 1)),
-				sort(descending("count")),
-				limit(1)
-				);
-		Document res = loans.withDocumentClass(Document.class).aggregate(pipeline).first();
-
-		// Ritorna l'ID (che è dentro _id dopo il group) o null
-		return res != null ? res.getString("_id") : null;
-	}
-
 	// prende tutti i prestiti completati dall'utente
 	public List<Loan> findFinishedByOwner(String userId) {
 		Bson filter = Filters.and(
@@ -251,85 +221,32 @@ public class LoansRepository implements IRepository<Loan> {
 	}
 
 
-	// prende tutti i prestiti completati 
-	public List<Loan> findFinished() {
-
-		return loans.find(Filters.eq("status", LoanStatus.RETURNED.toString())).into(new ArrayList<>());
-
+	// prestiti restituiti senza distanza calcolata (precedenti al campo), a blocchi per il backfill
+	public List<Loan> findFinishedWithoutDistance(int limit) {
+		Bson filter = Filters.and(
+				Filters.eq(STATUS, LoanStatus.RETURNED.toString()),
+				Filters.exists(DISTANCE_KM, false)
+				);
+		return loans.find(filter).limit(limit).into(new ArrayList<>());
 	}
 
-	public Map<String, Long> getMonthlyTrend(String ownerId) {
-
-		List<Bson> pipeline = new ArrayList<>();
-
-		// ownerId e' passato a null per i globali
-		if (ownerId != null) {
-			pipeline.add(match(Filters.eq(OWNER_ID, ownerId)));
+	// distanza null = non calcolabile (posizione mancante): il campo esiste e il backfill non ci riprova
+	public void setDistances(Map<String, Double> distanceByLoanId) {
+		if (distanceByLoanId == null || distanceByLoanId.isEmpty()) {
+			return;
 		}
 
-		pipeline.add(group(new Document("month", new Document("$month", "$loan_start_date"))
-				.append("year", new Document("$year", "$loan_start_date")),
-				sum("count", 1)
-				)
-				);
-
-		pipeline.add(sort(ascending("_id.year", "_id.month")));
-
-		pipeline.add(limit(6));
+		List<WriteModel<Loan>> updates = new ArrayList<>(distanceByLoanId.size());
+		distanceByLoanId.forEach((id, km) -> updates.add(new UpdateOneModel<>(Filters.eq(ID, id), Updates.set(DISTANCE_KM, km))));
 
-		Map<String, Long> trend = new LinkedHashMap<>();
-
-		loans.withDocumentClass(Document.class)
-		.aggregate(pipeline)
-		.forEach(doc -> {
-			Document id = doc.get("_id", Document.class);
-			if (id.getInteger("month") != null && id.getInteger("year") != null) {
-				String label = id.getInteger("month") + "/" + id.getInteger("year");
-				trend.put(label, doc.getInteger("count").longValue());
-				LOG.debug("label: " +  label + " - count " + doc.getInteger("count").longValue());
-			}
-		});
-
-		return trend;
+		loans.bulkWrite(updates, new BulkWriteOptions().ordered(false));
 	}
 
-	public Map<String, Long> getWeeklyRequests() {
-		List<Bson> pipeline = new ArrayList<>();
-
-		Document dateTrunc = new Document("$dateTrunc", 
-				new Document("date", "$created_at")
-				.append("unit", "week")
-				.append("startOfWeek", "monday"));
-
-		pipeline.add(group(dateTrunc, sum("count", 1)));
-
-		pipeline.add(sort(descending("_id")));
-		pipeline.add(limit(4));
-
-		List<Document> results = loans.withDocumentClass(Document.class)
-				.aggregate(pipeline)
-				.into(new ArrayList<>());
-
-		Map<String, Long> weekly = new LinkedHashMap<>();
-		SimpleDateFormat sdf = new SimpleDateFormat("dd/MM");
-
-		for (int i = results.size() - 1; i >= 0; i--) {
-			Document doc = results.get(i);
-			Date monday = doc.getDate("_id");
+	// prende tutti i prestiti completati 
+	public List<Loan> findFinished() {
 
-			if (monday != null) {
-				Calendar cal = Calendar.getInstance();
-				cal.setTime(monday);
-				String start = sdf.format(cal.getTime());
-				cal.add(Calendar.DAY_OF_YEAR, 6);
-				String end = sdf.format(cal.getTime());
+		return loans.find(Filters.eq("status", LoanStatus.RETURNED.toString())).into(new ArrayList<>());
 
-				String label = start + " - " + end;
-				Long val = ((Number) doc.get("count")).longValue();
-				weekly.put(label, val);
-			}
-		}
-		return weekly;
 	}
 
 	public boolean checkExists(Loan loan) {
@@ -0,0 +1,29 @@
+package it.unipegaso.database;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.model.Aggregates;
+
+/**
+ * $lookup che porta nella join solo i campi indicati, invece dei documenti interi.
+ */
+public final class Lookups {
+
+	private Lookups() {}
+
+	/**
+	 * Forma con localField/foreignField e pipeline insieme (MongoDB 5.0+): usa ancora l'indice su foreignField
+	 * e la $project gira dentro la collection unita, prima che i documenti arrivino alla pipeline principale.
+	 */
+	public static Bson lookup(String from, String localField, String foreignField, Bson projection, String as) {
+		return new Document("$lookup", new Document()
+				.append("from", from)
+				.append("localField", localField)
+				.append("foreignField", foreignField)
+				.append("pipeline", List.of(Aggregates.project(projection)))
+				.append("as", as));
+	}
+}
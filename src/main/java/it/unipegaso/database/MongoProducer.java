@@ -8,6 +8,7 @@ import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 
 import it.unipegaso.database.model.Book;
+import it.unipegaso.database.model.BookMapEntry;
 import it.unipegaso.database.model.Copy;
 import it.unipegaso.database.model.Library;
 import it.unipegaso.database.model.Loan;
@@ -102,4 +103,16 @@ public class MongoProducer {
         return collection;
     }
     
+    @Produces
+    public MongoCollection<BookMapEntry> bookMap() { 
+        
+        MongoDatabase database = mongoClient.getDatabase(databaseName); 
+        
+        MongoCollection<BookMapEntry> collection = database.getCollection(BookMapRepository.COLLECTION, BookMapEntry.class);
+        
+        LOG.infof("Producer creato per la collection book_map: %s.%s", database.getName(), collection.getNamespace().getCollectionName());
+        
+        return collection;
+    }
+    
 }
\ No newline at end of file
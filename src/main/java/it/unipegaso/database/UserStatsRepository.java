@@ -0,0 +1,185 @@
+package it.unipegaso.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Statistiche del profilo pre-calcolate, un documento per utente ("user_stats").
+ * Contatori e mappe chiave -> conteggio vengono incrementati con $inc dai percorsi di scrittura;
+ * le mappe dei "top" sono limitate a poche decine di voci (trim).
+ *
+ * Le chiavi delle mappe diventano nomi di campo: i tag scelti dagli utenti sono codificati
+ * (encodeKey) perche' '.' e '$' non possono comparire in un percorso di update.
+ */
+@ApplicationScoped
+public class UserStatsRepository {
+
+	public static final String COLLECTION = "user_stats";
+
+	public static final String COPIES = "copies";
+	public static final String COPIES_VISIBLE = "copies_visible";
+	public static final String LOANS_OUT = "loans_out";
+	public static final String LOANS_IN = "loans_in";
+	public static final String TAGS = "tags";
+	public static final String TAGS_VISIBLE = "tags_visible";
+	public static final String REQUESTERS = "requesters";
+	public static final String TITLES = "titles";
+	public static final String BOOK_VIEWS = "book_views";
+	public static final String BOOK_VIEWS_VISIBLE = "book_views_visible";
+	public static final String LIBRARY_VIEWS = "library_views";
+	public static final String LIBRARY_VIEWS_VISIBLE = "library_views_visible";
+	// etichette di copie (titolo) e librerie (nome) per id
+	public static final String LABELS = "labels";
+	public static final String RECONCILED_AT = "reconciled_at";
+
+	/**
+	 * Il documento letto, con le chiavi delle mappe gia' decodificate.
+	 */
+	public record UserStats(
+			long copies, long copiesVisible, long loansOut, long loansIn,
+			Map<String, Long> tags, Map<String, Long> tagsVisible,
+			Map<String, Long> requesters, Map<String, Long> titles,
+			Map<String, Long> bookViews, Map<String, Long> bookViewsVisible,
+			Map<String, Long> libraryViews, Map<String, Long> libraryViewsVisible,
+			Map<String, String> labels) {}
+
+	@Inject
+	MongoClient mongoClient;
+
+	private MongoCollection<Document> collection() {
+		return mongoClient.getDatabase("bibliomap").getCollection(COLLECTION);
+	}
+
+	public Optional<UserStats> get(String userId) {
+		Document doc = collection().find(Filters.eq(IRepository.ID, userId)).first();
+		if (doc == null) {
+			return Optional.empty();
+		}
+
+		Map<String, String> labels = new HashMap<>();
+		Document rawLabels = doc.get(LABELS, Document.class);
+		if (rawLabels != null) {
+			rawLabels.forEach((k, v) -> labels.put(k, String.valueOf(v)));
+		}
+
+		return Optional.of(new UserStats(
+				number(doc, COPIES), number(doc, COPIES_VISIBLE), number(doc, LOANS_OUT), number(doc, LOANS_IN),
+				counts(doc, TAGS), counts(doc, TAGS_VISIBLE),
+				counts(doc, REQUESTERS), counts(doc, TITLES),
+				counts(doc, BOOK_VIEWS), counts(doc, BOOK_VIEWS_VISIBLE),
+				counts(doc, LIBRARY_VIEWS), counts(doc, LIBRARY_VIEWS_VISIBLE),
+				labels));
+	}
+
+	/**
+	 * Applica un update per utente (upsert) con un solo bulk write.
+	 */
+	public void update(Map<String, Bson> updatesByUser) {
+		if (updatesByUser == null || updatesByUser.isEmpty()) {
+			return;
+		}
+
+		UpdateOptions upsert = new UpdateOptions().upsert(true);
+		List<WriteModel<Document>> updates = new ArrayList<>(updatesByUser.size());
+		updatesByUser.forEach((userId, update) -> updates.add(new UpdateOneModel<>(Filters.eq(IRepository.ID, userId), update, upsert)));
+
+		collection().bulkWrite(updates, new BulkWriteOptions().ordered(false));
+	}
+
+	/**
+	 * Riporta le mappe indicate a non piu' di cap voci, togliendo quelle con il conteggio piu' basso.
+	 * Una query per leggere le mappe, un bulk write solo se qualcosa supera il limite.
+	 */
+	public void trim(Collection<String> userIds, List<String> fields, int cap) {
+		if (userIds == null || userIds.isEmpty()) {
+			return;
+		}
+
+		List<WriteModel<Document>> updates = new ArrayList<>();
+
+		collection().find(Filters.in(IRepository.ID, userIds))
+			.projection(Projections.include(fields))
+			.forEach(doc -> {
+				List<Bson> unsets = new ArrayList<>();
+				for (String field : fields) {
+					Document map = doc.get(field, Document.class);
+					if (map == null || map.size() <= cap) continue;
+
+					map.entrySet().stream()
+						.sorted((a, b) -> Long.compare(asLong(a.getValue()), asLong(b.getValue())))
+						.limit(map.size() - cap)
+						.forEach(e -> unsets.add(Updates.unset(field + "." + e.getKey())));
+				}
+				if (!unsets.isEmpty()) {
+					updates.add(new UpdateOneModel<>(Filters.eq(IRepository.ID, doc.get(IRepository.ID)), Updates.combine(unsets)));
+				}
+			});
+
+		if (!updates.isEmpty()) {
+			collection().bulkWrite(updates, new BulkWriteOptions().ordered(false));
+		}
+	}
+
+	// il documento ricalcolato sostituisce quello incrementale
+	public void replace(String userId, Document stats) {
+		stats.put(IRepository.ID, userId);
+		collection().replaceOne(Filters.eq(IRepository.ID, userId), stats, new ReplaceOptions().upsert(true));
+	}
+
+	public void delete(String userId) {
+		collection().deleteOne(Filters.eq(IRepository.ID, userId));
+	}
+
+	/**
+	 * '%', '.' e '$' diventano sequenze %xx: la chiave resta leggibile e si decodifica senza ambiguita'.
+	 */
+	public static String encodeKey(String key) {
+		return key.replace("%", "%25").replace(".", "%2E").replace("$", "%24");
+	}
+
+	public static String decodeKey(String key) {
+		return key.replace("%24", "$").replace("%2E", ".").replace("%25", "%");
+	}
+
+	private static long number(Document doc, String field) {
+		return asLong(doc.get(field));
+	}
+
+	private static long asLong(Object value) {
+		return value instanceof Number n ? n.longValue() : 0L;
+	}
+
+	// voci a zero o negative (decrementi arrivati prima della riconciliazione) non vengono mostrate
+	private static Map<String, Long> counts(Document doc, String field) {
+		Map<String, Long> result = new HashMap<>();
+		Document map = doc.get(field, Document.class);
+		if (map != null) {
+			map.forEach((k, v) -> {
+				long n = asLong(v);
+				if (n > 0) result.put(decodeKey(k), n);
+			});
+		}
+		return result;
+	}
+}
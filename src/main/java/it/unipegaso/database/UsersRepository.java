@@ -1,7 +1,11 @@
 package it.unipegaso.database;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -12,6 +16,7 @@ import com.mongodb.MongoWriteException;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.InsertOneResult;
 import com.mongodb.client.result.UpdateResult;
@@ -41,7 +46,7 @@ public class UsersRepository implements IRepository<User>{
 		Bson filter = Filters.eq(USERNAME, username);
 		User userModel = find(filter).first();
 
-		LOG.infof("Query DB per username '%s'. Trovato: %b", username, userModel != null);
+		LOG.debugf("Query DB per username '%s'. Trovato: %b", username, userModel != null);
 
 		return Optional.ofNullable(userModel);
 	}
@@ -118,6 +123,29 @@ public class UsersRepository implements IRepository<User>{
 	}
 
 
+	/**
+	 * Username degli utenti indicati con una sola query, proiettata su _id e username.
+	 * Gli id inesistenti non compaiono nella mappa.
+	 */
+	public Map<String, String> getUsernames(Collection<String> ids) {
+		Map<String, String> usernames = new HashMap<>();
+
+		List<String> keys = (ids == null) ? List.of() : ids.stream()
+				.filter(id -> id != null && !id.trim().isEmpty())
+				.distinct()
+				.toList();
+
+		if (keys.isEmpty()) {
+			return usernames;
+		}
+
+		users.find(Filters.in(ID, keys))
+		.projection(Projections.include(ID, USERNAME))
+		.forEach(u -> usernames.put(u.getId(), u.getUsername()));
+
+		return usernames;
+	}
+
 	@Override
 	public Optional<User> get(String id) {
 
@@ -0,0 +1,150 @@
+package it.unipegaso.database.model;
+
+import java.util.List;
+
+import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.codecs.pojo.annotations.BsonProperty;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.mongodb.client.model.geojson.Point;
+
+/**
+ * Read model denormalizzato usato dalla ricerca sulla mappa (/api/books/nearby).
+ * Un documento per ogni copia, con posizione della libreria, dati di visibilita',
+ * proprietario e metadati del libro gia' incorporati: la ricerca diventa un
+ * singolo $geoNear senza join.
+ */
+@JsonInclude(Include.NON_NULL)
+public class BookMapEntry {
+
+	@BsonId
+	private String id; // id della copia
+
+	// Oggetto GeoJSON della libreria, indicizzato '2dsphere'
+	@BsonProperty("geolocation")
+	private Point location;
+
+	private String libraryId;
+	private String libraryName;
+	private String visibility;
+
+	// blur effettivo: massimo tra quello della libreria e quello del proprietario
+	private int blurRadius;
+
+	// posizione pubblica della libreria, gia' sfocata con blurRadius
+	private Point fuzzedLocation;
+
+	private String ownerId;
+	private String ownerUsername;
+
+	@BsonProperty("book_isbn")
+	private String bookIsbn;
+	private String title;
+	private String author;
+	private String cover;
+
+	private String status;
+	private List<String> tags;
+
+	@BsonProperty("views_counter")
+	private long viewsCounter;
+
+	public String getId() {
+		return id;
+	}
+	public void setId(String id) {
+		this.id = id;
+	}
+	public Point getLocation() {
+		return location;
+	}
+	public void setLocation(Point location) {
+		this.location = location;
+	}
+	public String getLibraryId() {
+		return libraryId;
+	}
+	public void setLibraryId(String libraryId) {
+		this.libraryId = libraryId;
+	}
+	public String getLibraryName() {
+		return libraryName;
+	}
+	public void setLibraryName(String libraryName) {
+		this.libraryName = libraryName;
+	}
+	public String getVisibility() {
+		return visibility;
+	}
+	public void setVisibility(String visibility) {
+		this.visibility = visibility;
+	}
+	public int getBlurRadius() {
+		return blurRadius;
+	}
+	public void setBlurRadius(int blurRadius) {
+		this.blurRadius = blurRadius;
+	}
+	public Point getFuzzedLocation() {
+		return fuzzedLocation;
+	}
+	public void setFuzzedLocation(Point fuzzedLocation) {
+		this.fuzzedLocation = fuzzedLocation;
+	}
+	public String getOwnerId() {
+		return ownerId;
+	}
+	public void setOwnerId(String ownerId) {
+		this.ownerId = ownerId;
+	}
+	public String getOwnerUsername() {
+		return ownerUsername;
+	}
+	public void setOwnerUsername(String ownerUsername) {
+		this.ownerUsername = ownerUsername;
+	}
+	public String getBookIsbn() {
+		return bookIsbn;
+	}
+	public void setBookIsbn(String bookIsbn) {
+		this.bookIsbn = bookIsbn;
+	}
+	public String getTitle() {
+		return title;
+	}
+	public void setTitle(String title) {
+		this.title = title;
+	}
+	public String getAuthor() {
+		return author;
+	}
+	public void setAuthor(String author) {
+		this.author = author;
+	}
+	public String getCover() {
+		return cover;
+	}
+	public void setCover(String cover) {
+		this.cover = cover;
+	}
+	public String getStatus() {
+		return status;
+	}
+	public void setStatus(String status) {
+		this.status = status;
+	}
+	public List<String> getTags() {
+		return tags;
+	}
+	public void setTags(List<String> tags) {
+		this.tags = tags;
+	}
+	public long getViewsCounter() {
+		return viewsCounter;
+	}
+	public void setViewsCounter(long viewsCounter) {
+		this.viewsCounter = viewsCounter;
+	}
+
+}
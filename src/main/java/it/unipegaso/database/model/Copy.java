@@ -1,15 +1,24 @@
 package it.unipegaso.database.model;
 
+import java.util.Date;
 import java.util.List;
 
 import org.bson.codecs.pojo.annotations.BsonId;
 import org.bson.codecs.pojo.annotations.BsonProperty;
+import org.bson.conversions.Bson;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.mongodb.client.model.Projections;
 
 @JsonInclude(Include.NON_NULL)
 public class Copy {
+
+	// dove sta, che libro e' e se si puo' prestare: senza note, tag e copertina
+	public static final Bson SUMMARY = Projections.include("libraryId", "book_isbn", "status");
+
+	// quanto basta per l'ETag del dettaglio senza rifare l'aggregazione
+	public static final Bson VERSION = Projections.include("libraryId", "version");
 	
 	@BsonId
 	private String id; 
@@ -24,14 +33,25 @@ public class Copy {
 	@BsonProperty("owner_notes")
 	private String ownerNotes;
 	
-	@BsonProperty("custom_cover")
-	private String customCover;
+	// hash della copertina caricata dall'utente, i byte stanno nel CoverStore
+	@BsonProperty("cover_hash")
+	private String coverHash;
+
+	// formati della copertina ancora in elaborazione
+	@BsonProperty("cover_pending")
+	private boolean coverPending;
 	
 	@BsonProperty("views_counter")
 	private long viewsCounter;
 	
 	private List<String> tags;
 
+	// +1 a ogni scrittura (escluse le visualizzazioni), entra negli ETag
+	private long version;
+
+	@BsonProperty("updated_at")
+	private Date updatedAt;
+
 	public String getId() {
 		return id;
 	}
@@ -80,12 +100,20 @@ public class Copy {
 		this.ownerNotes = ownerNotes;
 	}
 
-	public String getCustomCover() {
-		return customCover;
+	public String getCoverHash() {
+		return coverHash;
+	}
+
+	public void setCoverHash(String coverHash) {
+		this.coverHash = coverHash;
+	}
+
+	public boolean isCoverPending() {
+		return coverPending;
 	}
 
-	public void setCustomCover(String customCover) {
-		this.customCover = customCover;
+	public void setCoverPending(boolean coverPending) {
+		this.coverPending = coverPending;
 	}
 
 	public List<String> getTags() {
@@ -100,4 +128,20 @@ public class Copy {
 		return viewsCounter;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public Date getUpdatedAt() {
+		return updatedAt;
+	}
+
+	public void setUpdatedAt(Date updatedAt) {
+		this.updatedAt = updatedAt;
+	}
+
 }
@@ -4,13 +4,22 @@ import java.util.Date;
 import java.util.List;
 
 import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.conversions.Bson;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.geojson.Point;
 
 @JsonInclude(Include.NON_NULL)
 public class Library {
 
+	// per le join e i controlli di proprieta': senza note, tag e contatori
+	public static final Bson SUMMARY = Projections.include("name", "ownerId", "locationId", "visibility", "blurRadius", "fuzzedLocation");
+
+	// per l'ETag del dettaglio di una copia
+	public static final Bson VERSION = Projections.include("ownerId", "version");
+
 	@BsonId
 	private String id; 
 
@@ -21,9 +30,13 @@ public class Library {
 	private String locationId; 
 	private String visibility; //all, logged-in, private
 	private int blurRadius;
+	// posizione mostrata sulla mappa: sfocata in modo stabile, uguale a quella reale se il blur e' 0
+	private Point fuzzedLocation;
 	private String notes; 
 	private List<String> tags;
 	private long viewsCounter;
+	// +1 a ogni scrittura del documento (non per le visualizzazioni)
+	private long version;
 	
 	public String getId() {
 		return id;
@@ -73,6 +86,12 @@ public class Library {
 	public void setBlurRadius(int blurRadius) {
 		this.blurRadius = blurRadius;
 	}
+	public Point getFuzzedLocation() {
+		return fuzzedLocation;
+	}
+	public void setFuzzedLocation(Point fuzzedLocation) {
+		this.fuzzedLocation = fuzzedLocation;
+	}
 	public String getNotes() {
 		return notes;
 	}
@@ -89,4 +108,10 @@ public class Library {
 	public long getViewsCounter() {
 		return viewsCounter;
 	}
+	public long getVersion() {
+		return version;
+	}
+	public void setVersion(long version) {
+		this.version = version;
+	}
 }
@@ -41,6 +41,10 @@ public class Loan {
 	@BsonProperty("owner_notes")
 	private String ownerNotes;
 	
+	// km tra la libreria del proprietario e la casa del richiedente, calcolati alla restituzione
+	@BsonProperty("distance_km")
+	private Double distanceKm;
+	
 	public String getId() {
 		return id;
 	}
@@ -107,6 +111,12 @@ public class Loan {
 	public void setOwnerNotes(String ownerNotes) {
 		this.ownerNotes = ownerNotes;
 	}
+	public Double getDistanceKm() {
+		return distanceKm;
+	}
+	public void setDistanceKm(Double distanceKm) {
+		this.distanceKm = distanceKm;
+	}
 	public String getTitle() {
 		return title;
 	}
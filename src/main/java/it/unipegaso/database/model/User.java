@@ -6,12 +6,22 @@ import java.util.List;
 import java.util.Map;
 
 import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.conversions.Bson;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.mongodb.client.model.Projections;
 
 @JsonInclude(Include.NON_NULL)
 public class User {
+
+	// insiemi di campi per le letture parziali (history e password restano sempre fuori)
+	// chi e' e come si mostra: nome, visibilita', sfocatura della posizione
+	public static final Bson IDENTITY = Projections.include("username", "visibility", "blurRadius");
+	// destinatario di un'email
+	public static final Bson CONTACT = Projections.include("username", "email");
+	// profilo mostrato al proprietario
+	public static final Bson PROFILE = Projections.include("username", "email", "visibility", "blurRadius", "locationId");
 	
 	@BsonId
 	private String id; 
@@ -40,12 +40,12 @@ public class LoanReminderScheduler {
 
 		for (Loan loan : overdueLoans) {
 			try {
-				Optional<User> opRequester = userRepository.get(loan.getRequesterId());
+				Optional<User> opRequester = userRepository.get(loan.getRequesterId(), User.CONTACT);
 				
 				if (opRequester.isPresent()) {
 					User requester = opRequester.get();
 					
-					// invio email sollecito
+					// sollecito accodato, lo invia EmailOutboxDispatcher
 					boolean success = emailService.sendOverdueReminderEmail(
 							requester.getEmail(), 
 							requester.getUsername(), 
@@ -54,7 +54,7 @@ public class LoanReminderScheduler {
 					);
 
 					if (success) {
-						LOG.infof("sollecito inviato a %s per il libro %s", requester.getEmail(), loan.getTitle());
+						LOG.infof("sollecito accodato per %s, libro %s", requester.getEmail(), loan.getTitle());
 					}
 				}
 			} catch (Exception e) {
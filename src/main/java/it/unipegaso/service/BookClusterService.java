@@ -0,0 +1,181 @@
+package it.unipegaso.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.model.Filters;
+
+import it.unipegaso.api.dto.BookClusterDTO;
+import it.unipegaso.database.BookMapRepository;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Raggruppa le copie visibili nella vista della mappa in celle di griglia
+ * dimensionate sullo zoom, cosi' ai livelli bassi il client riceve poche centinaia
+ * di cluster invece di migliaia di marker.
+ */
+@ApplicationScoped
+public class BookClusterService {
+
+	// celle per lato di una tile 256px: una cella ~ 64px sullo schermo
+	private static final int CELLS_PER_TILE = 4;
+	private static final int TOP_TAGS = 3;
+
+	@Inject
+	MongoClient mongoClient;
+
+	@Inject
+	LibraryGeoIndex libraryGeoIndex;
+
+	@Inject
+	BookTextIndex bookTextIndex;
+
+	@Inject
+	PrivacyBlurService privacyBlurService;
+
+	@ConfigProperty(name = "book-clusters.max-cells", defaultValue = "1024")
+	int maxCells;
+
+	private static final class Cell {
+		double sumLat;
+		double sumLng;
+		long count;
+		long available;
+		int libraries;
+		final Map<String, Long> tags = new HashMap<>();
+	}
+
+	public List<BookClusterDTO> getClusters(double minLat, double minLng, double maxLat, double maxLng, int zoom,
+			String visibilityFilter, String excludeUserId, String searchText) {
+
+		// stesse regole di visibilita' di searchBooks
+		List<String> allowedVisibilities = new ArrayList<>(Arrays.asList("all"));
+		if ("logged_in".equals(visibilityFilter)) allowedVisibilities.add("logged_in");
+
+		String excludeOwner = (excludeUserId != null && !excludeUserId.trim().isEmpty()) ? excludeUserId : null;
+
+		List<LibraryGeoIndex.LibraryPoint> libs = libraryGeoIndex.inBox(minLat, minLng, maxLat, maxLng, allowedVisibilities, excludeOwner);
+		if (libs.isEmpty()) {
+			return new ArrayList<>();
+		}
+
+		Map<String, LibraryGeoIndex.LibraryPoint> libById = new HashMap<>();
+		libs.forEach(l -> libById.put(l.libraryId(), l));
+
+		List<Bson> filters = new ArrayList<>();
+		filters.add(Filters.in("libraryId", libById.keySet()));
+		filters.add(Filters.in("visibility", allowedVisibilities));
+
+		if (searchText != null && !searchText.trim().isEmpty()) {
+			Set<String> isbns = bookTextIndex.search(searchText);
+			if (isbns.isEmpty()) {
+				return new ArrayList<>();
+			}
+			filters.add(Filters.in("book_isbn", isbns));
+		}
+
+		// un solo round trip: conteggi per libreria e conteggi dei tag per libreria
+		Document facet = new Document()
+				.append("libs", Arrays.asList(
+						new Document("$group", new Document("_id", "$libraryId")
+								.append("count", new Document("$sum", 1))
+								.append("available", new Document("$sum", new Document("$cond",
+										Arrays.asList(new Document("$eq", Arrays.asList("$status", "available")), 1, 0))))
+								.append("blurRadius", new Document("$max", "$blurRadius"))
+								.append("fuzzedLocation", new Document("$first", "$fuzzedLocation")))))
+				.append("tags", Arrays.asList(
+						new Document("$unwind", "$tags"),
+						new Document("$group", new Document("_id", new Document("lib", "$libraryId").append("tag", "$tags"))
+								.append("n", new Document("$sum", 1)))));
+
+		List<Bson> pipeline = Arrays.asList(
+				new Document("$match", Filters.and(filters)),
+				new Document("$facet", facet));
+
+		Document result = mongoClient.getDatabase("bibliomap")
+				.getCollection(BookMapRepository.COLLECTION)
+				.aggregate(pipeline)
+				.first();
+
+		if (result == null) {
+			return new ArrayList<>();
+		}
+
+		double cellSize = cellSizeDeg(minLat, minLng, maxLat, maxLng, zoom);
+		Map<Long, Cell> cells = new LinkedHashMap<>();
+		Map<String, Cell> cellByLibrary = new HashMap<>();
+
+		for (Document row : result.getList("libs", Document.class)) {
+			LibraryGeoIndex.LibraryPoint lib = libById.get(row.getString("_id"));
+			if (lib == null) continue;
+
+			// cella e centroide sulle coordinate sfocate: un cluster con una sola libreria non la rivela
+			double[] position = privacyBlurService.publicPosition(row.get("fuzzedLocation", Document.class), lib.libraryId(), lib.lat(), lib.lng(), row.getInteger("blurRadius", 0));
+
+			long key = ((long) Math.floor(position[0] / cellSize) << 32) ^ ((long) Math.floor(position[1] / cellSize) & 0xffffffffL);
+			Cell cell = cells.computeIfAbsent(key, k -> new Cell());
+
+			long count = row.getInteger("count", 0);
+			cell.count += count;
+			cell.available += row.getInteger("available", 0);
+			cell.libraries++;
+			cell.sumLat += position[0] * count;
+			cell.sumLng += position[1] * count;
+			cellByLibrary.put(lib.libraryId(), cell);
+		}
+
+		for (Document row : result.getList("tags", Document.class)) {
+			Document id = row.get("_id", Document.class);
+			Cell cell = cellByLibrary.get(id.getString("lib"));
+			if (cell != null) {
+				cell.tags.merge(id.getString("tag"), (long) row.getInteger("n", 0), Long::sum);
+			}
+		}
+
+		List<BookClusterDTO> clusters = new ArrayList<>(cells.size());
+		for (Cell cell : cells.values()) {
+			List<String> topTags = cell.tags.entrySet().stream()
+					.sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+					.limit(TOP_TAGS)
+					.map(Map.Entry::getKey)
+					.toList();
+
+			clusters.add(new BookClusterDTO(
+					cell.sumLat / cell.count,
+					cell.sumLng / cell.count,
+					cell.count,
+					cell.available,
+					cell.libraries,
+					topTags));
+		}
+
+		clusters.sort(Comparator.comparingLong(BookClusterDTO::count).reversed());
+		return clusters;
+	}
+
+	/*
+	 * Lato cella in gradi per lo zoom richiesto (convenzione tile web: 360 / 2^zoom gradi per tile).
+	 * Se la vista e' cosi' grande da superare maxCells, la cella viene allargata:
+	 * il numero di cluster resta limitato qualunque sia lo zoom.
+	 */
+	private double cellSizeDeg(double minLat, double minLng, double maxLat, double maxLng, int zoom) {
+		double size = 360.0 / (Math.pow(2, zoom) * CELLS_PER_TILE);
+
+		while (((maxLat - minLat) / size + 1) * ((maxLng - minLng) / size + 1) > maxCells) {
+			size *= 2;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,282 @@
+package it.unipegaso.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.geojson.Point;
+
+import io.quarkus.runtime.StartupEvent;
+import it.unipegaso.database.BookMapRepository;
+import it.unipegaso.database.BooksRepository;
+import it.unipegaso.database.CopiesRepository;
+import it.unipegaso.database.LibrariesRepository;
+import it.unipegaso.database.LocationsRepository;
+import it.unipegaso.database.UsersRepository;
+import it.unipegaso.database.model.Book;
+import it.unipegaso.database.model.BookMapEntry;
+import it.unipegaso.database.model.Copy;
+import it.unipegaso.database.model.Library;
+import it.unipegaso.database.model.Location;
+import it.unipegaso.database.model.User;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+/**
+ * Mantiene allineato il read model book_map con copie, librerie e utenti.
+ * Va chiamato dopo ogni scrittura che cambia cio' che la mappa mostra.
+ */
+@ApplicationScoped
+public class BookMapService {
+
+	private static final Logger LOG = Logger.getLogger(BookMapService.class);
+
+	@Inject
+	BookMapRepository bookMapRepository;
+
+	@Inject
+	CopiesRepository copiesRepository;
+
+	@Inject
+	BooksRepository booksRepository;
+
+	@Inject
+	LibrariesRepository librariesRepository;
+
+	@Inject
+	LocationsRepository locationsRepository;
+
+	@Inject
+	UsersRepository usersRepository;
+
+	@Inject
+	LibraryGeoIndex libraryGeoIndex;
+
+	@Inject
+	PrivacyBlurService privacyBlurService;
+
+	@Inject
+	NearbySearchCache nearbySearchCache;
+
+	@ConfigProperty(name = "book-map.rebuild-on-startup", defaultValue = "false")
+	boolean rebuildOnStartup;
+
+	void onStart(@Observes StartupEvent ev) {
+		try {
+			bookMapRepository.ensureIndexes();
+
+			// primo avvio con dati gia' presenti: popoliamo il read model
+			boolean empty = bookMapRepository.count() == 0 && copiesRepository.count() > 0;
+
+			// librerie senza posizione sfocata o con un segreto cambiato: va fatto prima del rebuild
+			int refreshed = refreshFuzzedLocations();
+
+			if (rebuildOnStartup || empty) {
+				bookMapRepository.rebuild();
+			} else if (refreshed > 0) {
+				nearbySearchCache.invalidateAll();
+			}
+		} catch (Exception e) {
+			LOG.error("errore ricostruzione book_map all'avvio", e);
+		}
+	}
+
+	public void syncCopy(String copyId) {
+		// se la copia e' stata spostata va invalidata anche la zona della libreria di prima
+		bookMapRepository.get(copyId).ifPresent(old -> invalidateSearchCache(old.getLibraryId()));
+
+		Optional<Copy> opCopy = copiesRepository.get(copyId);
+
+		if (opCopy.isEmpty()) {
+			removeCopy(copyId);
+			return;
+		}
+
+		Copy copy = opCopy.get();
+		Optional<Library> opLib = librariesRepository.get(copy.getLibraryId());
+
+		if (opLib.isEmpty()) {
+			removeCopy(copyId);
+			return;
+		}
+
+		Library library = opLib.get();
+
+		// prima copia di una libreria nuova: senza change stream l'indice non la conosce ancora
+		if (libraryGeoIndex.get(library.getId()).isEmpty()) {
+			libraryGeoIndex.refreshLibrary(library.getId());
+		}
+
+		Location location = locationsRepository.get(library.getLocationId()).orElse(null);
+		User owner = usersRepository.get(library.getOwnerId(), User.IDENTITY).orElse(null);
+		Book book = booksRepository.get(copy.getBookIsbn()).orElse(null);
+
+		ensureFuzzedLocation(library, location, owner);
+
+		BookMapEntry entry = toEntry(copy, library, location, owner, book);
+
+		if (entry == null) {
+			removeCopy(copyId);
+			return;
+		}
+
+		bookMapRepository.update(entry);
+		invalidateSearchCache(library.getId());
+	}
+
+	public void removeCopy(String copyId) {
+		Optional<BookMapEntry> old = bookMapRepository.get(copyId);
+		bookMapRepository.delete(copyId);
+		old.ifPresent(e -> invalidateSearchCache(e.getLibraryId()));
+	}
+
+	public void syncLibrary(String libraryId) {
+		// la libreria puo' essersi spostata: la posizione vecchia si ricorda prima di aggiornare l'indice.
+		// La cache si invalida intorno a entrambe solo dopo aver riscritto le righe, altrimenti una ricerca
+		// nel mezzo rimetterebbe in cache le righe vecchie
+		Optional<LibraryGeoIndex.LibraryPoint> before = libraryGeoIndex.get(libraryId);
+		libraryGeoIndex.refreshLibrary(libraryId);
+
+		try {
+			rewriteLibrary(libraryId);
+		} finally {
+			before.ifPresent(p -> nearbySearchCache.invalidateAround(p.lat(), p.lng()));
+			invalidateSearchCache(libraryId);
+		}
+	}
+
+	private void rewriteLibrary(String libraryId) {
+		Optional<Library> opLib = librariesRepository.get(libraryId);
+
+		if (opLib.isEmpty()) {
+			long removed = bookMapRepository.deleteByLibraryId(libraryId);
+			LOG.debugf("book_map: libreria %s assente, rimosse %d righe", libraryId, removed);
+			return;
+		}
+
+		Library library = opLib.get();
+		Location location = locationsRepository.get(library.getLocationId()).orElse(null);
+		User owner = usersRepository.get(library.getOwnerId(), User.IDENTITY).orElse(null);
+
+		ensureFuzzedLocation(library, location, owner);
+
+		List<Copy> copies = copiesRepository.findByLibrary(libraryId);
+
+		// libri della libreria dalla cache, i mancanti con un'unica query
+		List<String> isbns = copies.stream().map(Copy::getBookIsbn).distinct().toList();
+		Map<String, Book> books = booksRepository.getAll(isbns);
+
+		List<String> keepIds = new ArrayList<>();
+
+		for (Copy copy : copies) {
+			BookMapEntry entry = toEntry(copy, library, location, owner, books.get(copy.getBookIsbn()));
+			if (entry != null) {
+				bookMapRepository.update(entry);
+				keepIds.add(copy.getId());
+			}
+		}
+
+		bookMapRepository.deleteByLibraryIdExcept(libraryId, keepIds);
+	}
+
+	// username e blur del proprietario sono copiati in tutte le righe delle sue librerie
+	public void syncOwner(String userId) {
+		librariesRepository.getUserLibIds(userId, true, true).forEach(this::syncLibrary);
+	}
+
+	public void rebuild() {
+		bookMapRepository.rebuild();
+		nearbySearchCache.invalidateAll();
+	}
+
+	/**
+	 * Ricalcola la posizione sfocata di tutte le librerie e aggiorna book_map per quelle cambiate.
+	 * @return numero di librerie aggiornate
+	 */
+	public int refreshFuzzedLocations() {
+		Map<String, Location> locations = new HashMap<>();
+		locationsRepository.find(Filters.empty()).forEach(l -> locations.put(l.getId(), l));
+
+		Map<String, User> owners = new HashMap<>();
+		usersRepository.find(Filters.empty())
+		.projection(Projections.include("blurRadius"))
+		.forEach(u -> owners.put(u.getId(), u));
+
+		int changed = 0;
+		for (Library library : librariesRepository.find(Filters.empty())) {
+			if (ensureFuzzedLocation(library, locations.get(library.getLocationId()), owners.get(library.getOwnerId()))) {
+				bookMapRepository.setFuzzedLocationByLibrary(library.getId(), library.getFuzzedLocation());
+				changed++;
+			}
+		}
+
+		if (changed > 0) {
+			LOG.infof("posizione sfocata ricalcolata per %d librerie", changed);
+		}
+		return changed;
+	}
+
+	/*
+	 * Posizione pubblica della libreria: cambia solo se cambiano posizione o blur effettivo
+	 * (massimo tra libreria e proprietario), quindi viene salvata e non ricalcolata a ogni richiesta.
+	 * Restituisce true se il valore salvato e' stato aggiornato.
+	 */
+	private boolean ensureFuzzedLocation(Library library, Location location, User owner) {
+		Point real = (location != null) ? location.getLocation() : null;
+		int ownerBlur = (owner != null) ? owner.getBlurRadius() : 0;
+
+		Point fuzzed = privacyBlurService.fuzz(library.getId(), real, Math.max(library.getBlurRadius(), ownerBlur));
+
+		if (Objects.equals(fuzzed, library.getFuzzedLocation())) {
+			return false;
+		}
+
+		library.setFuzzedLocation(fuzzed);
+		librariesRepository.setFuzzedLocation(library.getId(), fuzzed);
+		return true;
+	}
+
+	// celle della cache di /nearby che coprono la libreria
+	private void invalidateSearchCache(String libraryId) {
+		libraryGeoIndex.get(libraryId).ifPresent(p -> nearbySearchCache.invalidateAround(p.lat(), p.lng()));
+	}
+
+	private BookMapEntry toEntry(Copy copy, Library library, Location location, User owner, Book book) {
+
+		// stesso comportamento dei join interni della vecchia pipeline: senza posizione o libro la copia non compare
+		if (location == null || location.getLocation() == null || book == null) {
+			return null;
+		}
+
+		int ownerBlur = (owner != null) ? owner.getBlurRadius() : 0;
+
+		BookMapEntry entry = new BookMapEntry();
+		entry.setId(copy.getId());
+		entry.setLocation(location.getLocation());
+		entry.setLibraryId(library.getId());
+		entry.setLibraryName(library.getName());
+		entry.setVisibility(library.getVisibility());
+		entry.setBlurRadius(Math.max(library.getBlurRadius(), ownerBlur));
+		entry.setFuzzedLocation(library.getFuzzedLocation());
+		entry.setOwnerId(library.getOwnerId());
+		entry.setOwnerUsername(owner != null ? owner.getUsername() : null);
+		entry.setBookIsbn(book.getIsbn());
+		entry.setTitle(book.getTitle());
+		entry.setAuthor(book.getAuthor());
+		entry.setCover(book.getCover());
+		entry.setStatus(copy.getStatus());
+		entry.setTags(copy.getTags());
+		entry.setViewsCounter(copy.getViewsCounter());
+
+		return entry;
+	}
+}
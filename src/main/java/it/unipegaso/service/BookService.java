@@ -1,38 +1,43 @@
 package it.unipegaso.service;
 
-import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Random;
-import java.util.regex.Pattern;
-
-import javax.imageio.ImageIO;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.jboss.logging.Logger;
 import org.jboss.resteasy.reactive.multipart.FileUpload;
 
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Field;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Sorts;
 
 import it.unipegaso.api.dto.BookDetailDTO;
 import it.unipegaso.api.dto.BookMapDTO;
+import it.unipegaso.api.util.ConditionalGet;
+import it.unipegaso.database.BookMapRepository;
 import it.unipegaso.database.BooksRepository;
 import it.unipegaso.database.CopiesRepository;
 import it.unipegaso.database.LibrariesRepository;
+import it.unipegaso.database.Lookups;
 import it.unipegaso.database.model.Book;
+import it.unipegaso.database.model.BookMapEntry;
 import it.unipegaso.database.model.Copy;
 import it.unipegaso.database.model.Library;
+import it.unipegaso.service.geo.GeoGrid;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
@@ -40,7 +45,14 @@ import jakarta.inject.Inject;
 public class BookService {
 
 	private static final Logger LOG = Logger.getLogger(BookService.class);
-	private static final int MAX_IMG_SIZE = 400; // Pixel lato massimo
+
+	// librerie per blocco nella ricerca per distanza, raddoppia a ogni giro
+	private static final int DISTANCE_CHUNK_MIN = 32;
+	private static final int DISTANCE_CHUNK_MAX = 1024;
+
+	// suggerimenti: raggio massimo e arrotondamento della distanza mostrata
+	private static final double SIMILAR_MAX_RADIUS_KM = 10.0;
+	private static final double SIMILAR_RING_KM = 0.5;
 
 
 	@Inject
@@ -52,152 +64,437 @@ public class BookService {
 	@Inject
 	LibrariesRepository librariesRepository; 
 
+	@Inject
+	BookMapRepository bookMapRepository;
 
 	@Inject
-	MongoClient mongoClient;
+	BookMapService bookMapService;
 
-	public List<BookMapDTO> searchBooks(double lat, double lng, double radiusKm, String visibilityFilter, String excludeUserId, String searchText, String sortBy) {
-		MongoCollection<Document> locationsCol = mongoClient.getDatabase("bibliomap").getCollection("locations");
-		List<Bson> pipeline = new ArrayList<>();
+	@Inject
+	UserStatsService userStatsService;
 
-		// 1. GeoNear
-		Document geoNear = new Document("$geoNear", new Document()
-				.append("near", new Document("type", "Point").append("coordinates", Arrays.asList(lng, lat)))
-				.append("distanceField", "distance")
-				.append("maxDistance", radiusKm * 1000)
-				.append("spherical", true));
-		pipeline.add(geoNear);
+	@Inject
+	LibraryGeoIndex libraryGeoIndex;
 
-		// 2. Lookup Library
-		pipeline.add(new Document("$lookup", new Document()
-				.append("from", "libraries")
-				.append("localField", "_id")
-				.append("foreignField", "locationId")
-				.append("as", "library")));
-		pipeline.add(new Document("$unwind", "$library"));
+	@Inject
+	BookTextIndex bookTextIndex;
+
+	@Inject
+	NearbySearchCache nearbySearchCache;
+
+	@Inject
+	PrivacyBlurService privacyBlurService;
+
+	@Inject
+	ViewCounterService viewCounterService;
+
+	@Inject
+	CoverService coverService;
+
+
+	@Inject
+	MongoClient mongoClient;
 
-		// 3. Filtri preliminari su Library
-		List<Bson> libraryFilters = new ArrayList<>();
-		List<String> allowedVisibilities = new ArrayList<>(Arrays.asList("all"));
-		if ("logged_in".equals(visibilityFilter)) allowedVisibilities.add("logged_in");
-		libraryFilters.add(Filters.in("library.visibility", allowedVisibilities));
+	public record NearbyPage(List<BookMapDTO> books, String nextCursor) {}
 
-		if (excludeUserId != null && !excludeUserId.trim().isEmpty()) {
-			libraryFilters.add(Filters.ne("library.ownerId", excludeUserId));
+	/**
+	 * Una pagina della ricerca sulla mappa, ordinata per distanza, titolo o autore.
+	 * @param after cursore della pagina precedente, null per la prima
+	 * @param pageSize righe da restituire; se ce ne sono altre nextCursor non e' null
+	 */
+	public NearbyPage searchBooks(double lat, double lng, double radiusKm, String visibilityFilter, String excludeUserId, String searchText, String sortBy, NearbyCursor after, int pageSize) {
+		String sort = NearbyCursor.normalizeSort(sortBy);
+
+		if (nearbySearchCache.accepts(radiusKm)) {
+			return searchBooksCached(lat, lng, radiusKm, visibilityFilter, excludeUserId, searchText, sort, after, pageSize);
 		}
-		pipeline.add(Aggregates.match(Filters.and(libraryFilters)));
 
-		// 4. Lookup Owner (User)
-		pipeline.add(new Document("$lookup", new Document()
-				.append("from", "users")
-				.append("localField", "library.ownerId")
-				.append("foreignField", "_id")
-				.append("as", "ownerInfo")));
-		pipeline.add(new Document("$unwind", new Document("path", "$ownerInfo").append("preserveNullAndEmptyArrays", true)));
+		// una riga in piu' per sapere se esiste la pagina successiva
+		List<BookMapDTO> books = new ArrayList<>(pageSize + 1);
+		scanNearby(lat, lng, radiusKm, visibilityFilter, excludeUserId, searchText, sort, after, pageSize + 1, books::add);
 
-		// 5. Lookup Copies
-		pipeline.add(new Document("$lookup", new Document()
-				.append("from", "copies")
-				.append("localField", "library._id")
-				.append("foreignField", "libraryId")
-				.append("as", "copy")));
-		pipeline.add(new Document("$unwind", "$copy"));
+		String nextCursor = null;
+		if (books.size() > pageSize) {
+			books.remove(pageSize);
+			nextCursor = NearbyCursor.after(sort, books.get(pageSize - 1)).encode();
+		}
 
-		// 6. Lookup Books (usando copy.book_isbn -> books._id)
-		pipeline.add(new Document("$lookup", new Document()
-				.append("from", "books")
-				.append("localField", "copy.book_isbn")
-				.append("foreignField", "_id")
-				.append("as", "bookInfo")));
-		pipeline.add(new Document("$unwind", "$bookInfo"));
+		return new NearbyPage(books, nextCursor);
+	}
 
-		// 7. Ricerca Testuale
-		if (searchText != null && !searchText.trim().isEmpty()) {
-			Pattern regex = Pattern.compile(Pattern.quote(searchText), Pattern.CASE_INSENSITIVE);
-			pipeline.add(Aggregates.match(Filters.or(
-					Filters.regex("bookInfo.title", regex),
-					Filters.regex("bookInfo.author", regex))));
+	private record Ranked(NearbySearchCache.Row row, LibraryGeoIndex.LibraryPoint library, double distanceKm) {}
+
+	private static final Comparator<Ranked> RANKED_BY_DISTANCE = Comparator.comparingDouble(Ranked::distanceKm)
+			.thenComparing(r -> r.row().libraryId())
+			.thenComparing(r -> r.row().copyId());
+
+	/*
+	 * Stessa pagina di searchBooks, ma l'elenco delle copie arriva dalla cache della cella:
+	 * qui si ricalcolano le distanze esatte dal punto richiesto, si applica il cursore
+	 * e si leggono da book_map solo le righe della pagina.
+	 */
+	private NearbyPage searchBooksCached(double lat, double lng, double radiusKm, String visibilityFilter, String excludeUserId, String searchText, String sort, NearbyCursor after, int pageSize) {
+		NearbySearchCache.Key key = nearbySearchCache.key(lat, lng, radiusKm, visibilityFilter, excludeUserId, searchText, sort);
+
+		NearbySearchCache.Entry entry = nearbySearchCache.get(key, k -> {
+			double[] area = nearbySearchCache.area(k);
+			List<NearbySearchCache.Row> rows = new ArrayList<>();
+			scanNearby(area[0], area[1], area[2], k.visibility(), k.excludeUserId(), k.search(), sort, null, Integer.MAX_VALUE,
+					dto -> rows.add(new NearbySearchCache.Row(dto.id(), dto.libraryId(), sortKey(sort, dto))));
+			return new NearbySearchCache.Entry(area[0], area[1], area[2], List.copyOf(rows));
+		});
+
+		// visibilita' e proprietario si ricontrollano sull'indice, aggiornato su ogni nodo dal change stream:
+		// una libreria resa privata o ceduta esce subito anche dalle celle gia' in cache
+		List<String> allowedVisibilities = allowedVisibilities(visibilityFilter);
+		String excludeOwner = excludeOwner(excludeUserId);
+
+		List<Ranked> ranked = new ArrayList<>();
+		for (NearbySearchCache.Row row : entry.rows()) {
+			LibraryGeoIndex.LibraryPoint lib = libraryGeoIndex.get(row.libraryId()).orElse(null);
+			if (lib == null) continue;
+			if (!allowedVisibilities.contains(lib.visibility())) continue;
+			if (excludeOwner != null && excludeOwner.equals(lib.ownerId())) continue;
+			double d = GeoGrid.haversine(lat, lng, lib.lat(), lib.lng());
+			if (d <= radiusKm) {
+				ranked.add(new Ranked(row, lib, d));
+			}
 		}
 
-		// 8. Sorting
-		if ("title".equals(sortBy)) {
-			pipeline.add(Aggregates.sort(Sorts.ascending("bookInfo.title")));
-		} else if ("author".equals(sortBy)) {
-			pipeline.add(Aggregates.sort(Sorts.ascending("bookInfo.author")));
-		} else {
-			pipeline.add(Aggregates.sort(Sorts.ascending("distance")));
+		// per titolo e autore l'ordine in cache e' gia' quello di Mongo
+		if (NearbyCursor.SORT_DISTANCE.equals(sort)) {
+			ranked.sort(RANKED_BY_DISTANCE);
 		}
 
-		List<BookMapDTO> results = new ArrayList<>();
-		Random rand = new Random();
+		int start = 0;
+		if (after != null) {
+			while (start < ranked.size() && !isAfter(ranked.get(start), after, sort)) start++;
+		}
+
+		int end = Math.min(ranked.size(), start + pageSize);
+		List<Ranked> page = ranked.subList(start, end);
 
+		Map<String, Document> docs = new HashMap<>();
+		if (!page.isEmpty()) {
+			List<String> ids = page.stream().map(r -> r.row().copyId()).toList();
+			mongoClient.getDatabase("bibliomap").getCollection(BookMapRepository.COLLECTION)
+			.find(Filters.and(Filters.in("_id", ids), Filters.in("visibility", allowedVisibilities)))
+			.projection(Projections.exclude("geolocation"))
+			.forEach(doc -> docs.put(doc.getString("_id"), doc));
+		}
 
-		for (Document doc : locationsCol.aggregate(pipeline)) {
+		List<BookMapDTO> books = new ArrayList<>(page.size());
+		for (Ranked r : page) {
+			Document doc = docs.get(r.row().copyId());
+			if (doc == null) continue; // copia eliminata o non piu' visibile dopo il caricamento della cella
 			try {
-				Document lib = doc.get("library", Document.class);
-				Document copy = doc.get("copy", Document.class);
-				Document book = doc.get("bookInfo", Document.class);
-				Document geo = doc.get("geolocation", Document.class);
-				Document ownerInfo = doc.get("ownerInfo", Document.class);
-
-				// Privacy blur
-				int libBlur = lib.getInteger("blurRadius", 0);
-				int userBlur = (ownerInfo != null) ? ownerInfo.getInteger("blurRadius", 0) : 0;
-				int effectiveBlur = Math.max(libBlur, userBlur);
-
-				List<Double> coords = geo.getList("coordinates", Double.class);
-				double finalLat = coords.get(1);
-				double finalLng = coords.get(0);
-				boolean isFuzzed = false;
-
-				if (effectiveBlur > 0) {
-					double offset = (double) effectiveBlur / 111000.0;
-					finalLat += (rand.nextDouble() * 2 - 1) * offset;
-					finalLng += (rand.nextDouble() * 2 - 1) * offset;
-					isFuzzed = true;
-				}
-
-				String ownerUsername = (ownerInfo != null) ? ownerInfo.getString("username") : "utente bibliomap";
-				List<String> tags = copy.getList("tags", String.class);
-				if (tags == null) tags = new ArrayList<>();
-
-				results.add(new BookMapDTO(
-						copy.getString("_id"),
-						book.getString("title"),
-						book.getString("author"),
-						lib.getString("name"),
-						lib.getString("_id"),
-						copy.getString("status"),
-						(long)copy.getOrDefault("views_counter", 0L),
-						finalLat,
-						finalLng,
-						doc.getDouble("distance") / 1000.0,
-						isFuzzed,
-						book.getString("cover"),
-						lib.getString("ownerId"),
-						ownerUsername,
-						tags));
+				LibraryGeoIndex.LibraryPoint lib = r.library();
+				books.add(toMapDTO(doc, new LibraryGeoIndex.Hit(lib.libraryId(), lib.ownerId(), lib.lat(), lib.lng(), r.distanceKm())));
+			} catch (Exception e) {
+				LOG.error("errore mapping libro: " + e.getMessage());
+			}
+		}
+
+		String nextCursor = null;
+		if (end < ranked.size() && !page.isEmpty()) {
+			Ranked last = page.get(page.size() - 1);
+			String cursorKey = NearbyCursor.SORT_DISTANCE.equals(sort) ? Double.toString(last.distanceKm()) : last.row().sortKey();
+			nextCursor = new NearbyCursor(sort, cursorKey, last.row().libraryId(), last.row().copyId()).encode();
+		}
+
+		return new NearbyPage(books, nextCursor);
+	}
+
+	private static List<String> allowedVisibilities(String visibilityFilter) {
+		List<String> allowed = new ArrayList<>(Arrays.asList("all"));
+		if ("logged_in".equals(visibilityFilter)) allowed.add("logged_in");
+		return allowed;
+	}
+
+	private static String excludeOwner(String excludeUserId) {
+		return (excludeUserId != null && !excludeUserId.trim().isEmpty()) ? excludeUserId : null;
+	}
+
+	private static String sortKey(String sort, BookMapDTO dto) {
+		return switch (sort) {
+		case NearbyCursor.SORT_TITLE -> dto.title();
+		case NearbyCursor.SORT_AUTHOR -> dto.author();
+		default -> null;
+		};
+	}
+
+	// true se la riga viene dopo quella del cursore nell'ordinamento della pagina
+	private static boolean isAfter(Ranked r, NearbyCursor after, String sort) {
+		if (NearbyCursor.SORT_DISTANCE.equals(sort)) {
+			return after.precedes(r.distanceKm(), r.row().libraryId(), r.row().copyId());
+		}
+		return after.precedes(r.row().sortKey(), r.row().copyId());
+	}
+
+	/**
+	 * Tutte le copie nel raggio, passate a sink una alla volta man mano che Mongo le restituisce.
+	 * Nessuna lista intermedia: la memoria usata non dipende dal numero di risultati.
+	 */
+	public void streamBooks(double lat, double lng, double radiusKm, String visibilityFilter, String excludeUserId, String searchText, String sortBy, Consumer<BookMapDTO> sink) {
+		scanNearby(lat, lng, radiusKm, visibilityFilter, excludeUserId, searchText, NearbyCursor.normalizeSort(sortBy), null, Integer.MAX_VALUE, sink);
+	}
+
+	/**
+	 * Scorre le copie nel raggio in ordine di pagina passando ogni riga a sink,
+	 * fermandosi dopo limit righe. Il limite arriva fino a Mongo.
+	 */
+	private void scanNearby(double lat, double lng, double radiusKm, String visibilityFilter, String excludeUserId, String searchText, String sort, NearbyCursor after, int limit, Consumer<BookMapDTO> sink) {
+		MongoCollection<Document> bookMapCol = mongoClient.getDatabase("bibliomap").getCollection(BookMapRepository.COLLECTION);
+
+		List<String> allowedVisibilities = allowedVisibilities(visibilityFilter);
+		String excludeOwner = excludeOwner(excludeUserId);
+
+		// 1. Librerie nel raggio dall'indice in memoria, gia' filtrate per visibilita' e proprietario
+		List<LibraryGeoIndex.Hit> hits = libraryGeoIndex.within(lat, lng, radiusKm, allowedVisibilities, excludeOwner);
+		if (hits.isEmpty()) {
+			return;
+		}
+
+		Map<String, LibraryGeoIndex.Hit> hitByLibrary = new HashMap<>();
+		hits.forEach(h -> hitByLibrary.put(h.libraryId(), h));
+
+		// 2. Su Mongo solo le copie di quelle librerie
+		List<Bson> filters = new ArrayList<>();
+		filters.add(Filters.in("visibility", allowedVisibilities));
 
+		// 3. Ricerca Testuale: gli ISBN che corrispondono arrivano dall'indice a trigrammi
+		if (searchText != null && !searchText.trim().isEmpty()) {
+			Set<String> isbns = bookTextIndex.search(searchText);
+			if (isbns.isEmpty()) {
+				return;
+			}
+			filters.add(Filters.in("book_isbn", isbns));
+		}
+
+		Consumer<Document> emit = doc -> {
+			BookMapDTO dto;
+			try {
+				dto = toMapDTO(doc, hitByLibrary.get(doc.getString("libraryId")));
 			} catch (Exception e) {
 				LOG.error("errore mapping libro: " + e.getMessage());
+				return;
+			}
+			// gli errori del sink (es. client disconnesso nello streaming) interrompono la scansione
+			sink.accept(dto);
+		};
+
+		// 4. Sorting
+		if (NearbyCursor.SORT_DISTANCE.equals(sort)) {
+			scanByDistance(bookMapCol, hits, filters, after, limit, emit);
+		} else {
+			scanByField(bookMapCol, sort, hitByLibrary.keySet(), filters, after, limit, emit);
+		}
+	}
+
+	/*
+	 * La distanza la conosce solo l'indice, quindi le librerie vengono passate a Mongo
+	 * a blocchi gia' ordinati: dentro il blocco Mongo ordina per posizione della libreria
+	 * nell'elenco e poi per id copia, con $limit. Ci si ferma appena la pagina e' piena.
+	 */
+	private void scanByDistance(MongoCollection<Document> bookMapCol, List<LibraryGeoIndex.Hit> hits, List<Bson> filters, NearbyCursor after, int limit, Consumer<Document> emit) {
+		int start = 0;
+		if (after != null) {
+			double d = after.distance();
+			while (start < hits.size()) {
+				LibraryGeoIndex.Hit h = hits.get(start);
+				if (h.distanceKm() > d || (h.distanceKm() == d && h.libraryId().compareTo(after.libraryId()) >= 0)) break;
+				start++;
 			}
 		}
-		return results;
+
+		int remaining = limit;
+		int chunkSize = DISTANCE_CHUNK_MIN;
+
+		for (int i = start; i < hits.size() && remaining > 0; ) {
+			List<String> chunk = new ArrayList<>();
+			for (int end = Math.min(hits.size(), i + chunkSize); i < end; i++) {
+				chunk.add(hits.get(i).libraryId());
+			}
+			chunkSize = Math.min(chunkSize * 2, DISTANCE_CHUNK_MAX);
+
+			List<Bson> chunkFilters = new ArrayList<>(filters);
+			chunkFilters.add(Filters.in("libraryId", chunk));
+
+			// la libreria dell'ultima riga vista riparte dalla copia successiva
+			if (after != null && chunk.get(0).equals(after.libraryId())) {
+				chunkFilters.add(Filters.or(
+						Filters.ne("libraryId", after.libraryId()),
+						Filters.gt("_id", after.copyId())));
+				after = null;
+			}
+
+			List<Bson> pipeline = Arrays.asList(
+					Aggregates.match(Filters.and(chunkFilters)),
+					Aggregates.addFields(new Field<>("rank", new Document("$indexOfArray", Arrays.asList(chunk, "$libraryId")))),
+					Aggregates.sort(Sorts.ascending("rank", "_id")),
+					Aggregates.limit(remaining),
+					Aggregates.project(Projections.exclude("geolocation", "rank")));
+
+			// con lo streaming il limite non taglia nulla e il sort del blocco puo' essere grande
+			for (Document doc : bookMapCol.aggregate(pipeline).allowDiskUse(true)) {
+				emit.accept(doc);
+				remaining--;
+			}
+		}
+	}
+
+	// titolo e autore li ordina Mongo con gli indici (libraryId, campo, _id)
+	private void scanByField(MongoCollection<Document> bookMapCol, String field, Collection<String> libraryIds, List<Bson> filters, NearbyCursor after, int limit, Consumer<Document> emit) {
+		List<Bson> allFilters = new ArrayList<>(filters);
+		allFilters.add(Filters.in("libraryId", libraryIds));
+
+		if (after != null) {
+			if (after.key() == null) {
+				// i null vengono prima di ogni stringa
+				allFilters.add(Filters.or(
+						Filters.and(Filters.eq(field, null), Filters.gt("_id", after.copyId())),
+						Filters.ne(field, null)));
+			} else {
+				allFilters.add(Filters.or(
+						Filters.gt(field, after.key()),
+						Filters.and(Filters.eq(field, after.key()), Filters.gt("_id", after.copyId()))));
+			}
+		}
+
+		FindIterable<Document> found = bookMapCol.find(Filters.and(allFilters))
+				.projection(Projections.exclude("geolocation"))
+				.sort(Sorts.ascending(field, "_id"))
+				.limit(limit);
+
+		for (Document doc : found) {
+			emit.accept(doc);
+		}
+	}
+
+	private BookMapDTO toMapDTO(Document doc, LibraryGeoIndex.Hit hit) {
+		// Privacy blur (gia' calcolato come massimo tra libreria e proprietario), posizione sfocata stabile
+		int effectiveBlur = doc.getInteger("blurRadius", 0);
+
+		double[] position = privacyBlurService.publicPosition(doc.get("fuzzedLocation", Document.class), hit.libraryId(), hit.lat(), hit.lng(), effectiveBlur);
+		double finalLat = position[0];
+		double finalLng = position[1];
+		boolean isFuzzed = effectiveBlur > 0;
+
+		String ownerUsername = doc.getString("ownerUsername");
+		if (ownerUsername == null) ownerUsername = "utente bibliomap";
+		List<String> tags = doc.getList("tags", String.class);
+		if (tags == null) tags = new ArrayList<>();
+
+		return new BookMapDTO(
+				doc.getString("_id"),
+				doc.getString("title"),
+				doc.getString("author"),
+				doc.getString("libraryName"),
+				doc.getString("libraryId"),
+				doc.getString("status"),
+				((Number) doc.getOrDefault("views_counter", 0L)).longValue(),
+				finalLat,
+				finalLng,
+				hit.distanceKm(),
+				isFuzzed,
+				doc.getString("cover"),
+				doc.getString("ownerId"),
+				ownerUsername,
+				tags);
 	}
 
 	public BookDetailDTO getBookDetails(String copyId, double distance) {
 		MongoCollection<Document> copiesCol = mongoClient.getDatabase("bibliomap").getCollection("copies");
 
-		// +1 alle visualizzazioni
-		copiesCol.updateOne(
-				Filters.eq("_id", copyId),
-				new Document("$inc", new Document("views_counter", 1L))
-				);
+		// +1 alle visualizzazioni, scritto in batch da ViewCounterService
+		viewCounterService.addCopyView(copyId);
+
 		List<Bson> pipeline = new ArrayList<>();
 
 		pipeline.add(Aggregates.match(Filters.eq("_id", copyId)));
+		pipeline.addAll(detailLookups());
+
+		Document result = copiesCol.aggregate(pipeline).first();
+
+		if (result == null) {
+			return null;
+		}
+
+		return mapToDetailDTO(result, distance);
+	}
+
+	/**
+	 * ETag della risposta di getBookDetails senza eseguire l'aggregazione: la versione della copia e, con una sola
+	 * lettura sulla libreria e $lookup sul proprietario, la versione della libreria e il nome del proprietario.
+	 * I metadati del libro non entrano: una volta salvati non vengono modificati. Le visualizzazioni nemmeno:
+	 * crescono a ogni richiesta, anche sulle 304, e nel tag non farebbero mai combaciare If-None-Match
+	 * (il contatore in una risposta in cache puo' quindi essere un po' indietro). Vuoto se la copia non esiste.
+	 */
+	public Optional<String> getBookDetailsTag(String copyId) {
+		Optional<Copy> opCopy = copiesRepository.get(copyId, Copy.VERSION);
+		if (opCopy.isEmpty()) {
+			return Optional.empty();
+		}
+
+		Copy copy = opCopy.get();
+		Document lib = copy.getLibraryId() == null ? null : mongoClient.getDatabase("bibliomap").getCollection("libraries")
+				.aggregate(List.of(
+						Aggregates.match(Filters.eq("_id", copy.getLibraryId())),
+						Aggregates.project(Library.VERSION),
+						Lookups.lookup("users", "ownerId", "_id", Projections.include("username"), "ownerInfo"),
+						new Document("$unwind", new Document("path", "$ownerInfo").append("preserveNullAndEmptyArrays", true))))
+				.first();
+
+		long libVersion = 0L;
+		String ownerName = null;
+		if (lib != null) {
+			libVersion = ((Number) lib.getOrDefault("version", 0L)).longValue();
+			Document owner = lib.get("ownerInfo", Document.class);
+			ownerName = owner != null ? owner.getString("username") : null;
+		}
+
+		return Optional.of(ConditionalGet.tag(copyId, copy.getVersion(), copy.getLibraryId(), libVersion, ownerName));
+	}
+
+	/**
+	 * Dettagli di piu' copie con una sola aggregazione e un solo aggiornamento dei contatori.
+	 * Le copie non trovate vengono saltate; l'ordine e' quello degli id richiesti.
+	 */
+	public List<BookDetailDTO> getBookDetails(List<String> copyIds) {
+		List<String> ids = copyIds.stream().distinct().toList();
+		if (ids.isEmpty()) {
+			return new ArrayList<>();
+		}
+
+		MongoCollection<Document> copiesCol = mongoClient.getDatabase("bibliomap").getCollection("copies");
+
+		// +1 alle visualizzazioni di tutte le copie richieste
+		ids.forEach(viewCounterService::addCopyView);
 
-		// Lookup su Books usando book_isbn
+		List<Bson> pipeline = new ArrayList<>();
+		pipeline.add(Aggregates.match(Filters.in("_id", ids)));
+		pipeline.addAll(detailLookups());
+
+		Map<String, BookDetailDTO> byId = new HashMap<>();
+		for (Document doc : copiesCol.aggregate(pipeline)) {
+			byId.put(doc.getString("_id"), mapToDetailDTO(doc, 0.0));
+		}
+
+		List<BookDetailDTO> results = new ArrayList<>(byId.size());
+		for (String id : ids) {
+			BookDetailDTO dto = byId.get(id);
+			if (dto != null) {
+				results.add(dto);
+			}
+		}
+		return results;
+	}
+
+	// join di una copia con libro, libreria e proprietario, nella forma letta da mapToDetailDTO
+	private static List<Bson> detailLookups() {
+		List<Bson> pipeline = new ArrayList<>();
+
+		// Lookup su Books usando book_isbn (i libri sono gia' piccoli: documento intero)
 		pipeline.add(new Document("$lookup", new Document()
 				.append("from", "books")
 				.append("localField", "book_isbn")
@@ -205,27 +502,14 @@ public class BookService {
 				.append("as", "bookInfo")));
 		pipeline.add(new Document("$unwind", "$bookInfo"));
 
-		pipeline.add(new Document("$lookup", new Document()
-				.append("from", "libraries")
-				.append("localField", "libraryId")
-				.append("foreignField", "_id")
-				.append("as", "libraryInfo")));
+		// di libreria e proprietario servono pochi campi: niente note, history o password nella join
+		pipeline.add(Lookups.lookup("libraries", "libraryId", "_id", Library.SUMMARY, "libraryInfo"));
 		pipeline.add(new Document("$unwind", "$libraryInfo"));
 
-		pipeline.add(new Document("$lookup", new Document()
-				.append("from", "users")
-				.append("localField", "libraryInfo.ownerId")
-				.append("foreignField", "_id")
-				.append("as", "ownerInfo")));
+		pipeline.add(Lookups.lookup("users", "libraryInfo.ownerId", "_id", Projections.include("username"), "ownerInfo"));
 		pipeline.add(new Document("$unwind", new Document("path", "$ownerInfo").append("preserveNullAndEmptyArrays", true)));
 
-		Document result = copiesCol.aggregate(pipeline).first();
-
-		if (result == null) {
-			return null;
-		}
-
-		return mapToDetailDTO(result, distance);
+		return pipeline;
 	}
 
 	private BookDetailDTO mapToDetailDTO(Document doc, double distance) {
@@ -240,16 +524,10 @@ public class BookService {
 			bookCoverUrl = rawBookCover;
 		}
 
-		// gestione Custom Cover (dalla copia)
-		// Il campo nel DB della copia è "custom_cover"
-		String rawCustomCover = doc.getString("custom_cover");
-		String finalCustomCover = null;
-		if (rawCustomCover != null && !rawCustomCover.isEmpty()) {
-			// Se non ha già il prefisso data:, lo aggiungiamo
-			finalCustomCover = rawCustomCover.startsWith("data:") 
-					? rawCustomCover 
-							: "data:image/jpeg;base64," + rawCustomCover;
-		}
+		// gestione Custom Cover (dalla copia): sul documento c'e' solo l'hash, l'immagine si scarica da /api/covers
+		// finche' i formati non sono pronti il fe mostra la copertina del libro
+		boolean coverPending = doc.getBoolean("cover_pending", false);
+		String customCoverUrl = coverPending ? null : coverService.url(doc.getString("cover_hash"));
 
 		long counter = (long) doc.getOrDefault("views_counter", 0L);
 
@@ -261,7 +539,8 @@ public class BookService {
 				book.getString("title"),
 				book.getString("author"),
 				bookCoverUrl,                 // coverUrl (Google)
-				finalCustomCover,             // customCover (Base64)
+				customCoverUrl,               // customCover (/api/covers/{hash})
+				coverPending,
 				book.getInteger("publication_year", 0),
 				book.getString("language"),
 				book.getString("cover_type"),
@@ -291,7 +570,7 @@ public class BookService {
 	}
 
 
-	public boolean saveBookWithBase64Cover(BookDetailDTO dto, FileUpload coverFile) {
+	public boolean saveBookWithCover(BookDetailDTO dto, FileUpload coverFile) {
 		if (dto.libraryId() == null) {
 			return false;
 		}
@@ -317,13 +596,15 @@ public class BookService {
 				copy.setTags(dto.tags());
 			}
 
-			// Se l'utente ha caricato un file (foto scattata o upload), lo salviamo sulla copia
-			if (coverFile != null) {
-				String base64Image = processImageToBase64(coverFile);
-				copy.setCustomCover(base64Image);
-			}
+			// Se l'utente ha caricato un file (foto scattata o upload), i formati vengono generati dopo la risposta
+			byte[] toProcess = coverService.attach(copy, readUpload(coverFile));
 
-			copiesRepository.create(copy);
+			String copyId = copiesRepository.create(copy);
+			if (toProcess != null) {
+				coverService.processAsync(copyId, copy.getCoverHash(), toProcess);
+			}
+			bookMapService.syncCopy(copyId);
+			userStatsService.copyAdded(copy, libraryOpt.get());
 			return true;
 
 		} catch (Exception e) {
@@ -366,7 +647,8 @@ public class BookService {
 		return book;
 	}
 
-	private String processImageToBase64(FileUpload file) {
+	// byte del file caricato; il file temporaneo del framework viene eliminato subito
+	private byte[] readUpload(FileUpload file) {
 		if (file == null || file.fileName() == null) {
 			return null;
 		}
@@ -374,48 +656,11 @@ public class BookService {
 		java.nio.file.Path tempPath = file.uploadedFile();
 
 		try {
-			BufferedImage originalImage = ImageIO.read(tempPath.toFile());
-
-			if (originalImage == null) {
-				return null; 
-			}
-
-			int originalWidth = originalImage.getWidth();
-			int originalHeight = originalImage.getHeight();
-			int newWidth = originalWidth;
-			int newHeight = originalHeight;
-
-			// Logica di ridimensionamento (Resize)
-			if (originalWidth > MAX_IMG_SIZE || originalHeight > MAX_IMG_SIZE) {
-				if (originalWidth > originalHeight) {
-					newWidth = MAX_IMG_SIZE;
-					newHeight = (newWidth * originalHeight) / originalWidth;
-				} else {
-					newHeight = MAX_IMG_SIZE;
-					newWidth = (newHeight * originalWidth) / originalHeight;
-				}
-			}
-
-			// Creazione immagine scalata
-			Image resultingImage = originalImage.getScaledInstance(newWidth, newHeight, Image.SCALE_SMOOTH);
-			BufferedImage outputImage = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
-			Graphics2D g2d = outputImage.createGraphics();
-			g2d.drawImage(resultingImage, 0, 0, null);
-			g2d.dispose();
-
-			// Conversione in Base64
-			ByteArrayOutputStream os = new ByteArrayOutputStream();
-			// Scrive come JPG per risparmiare spazio nel documento Mongo
-			ImageIO.write(outputImage, "jpg", os); 
-			String b64 = Base64.getEncoder().encodeToString(os.toByteArray());
-
-			return "data:image/jpeg;base64," + b64;
-
+			return java.nio.file.Files.readAllBytes(tempPath);
 		} catch (Exception e) {
-			LOG.error("Errore elaborazione immagine: " + e.getMessage());
+			LOG.error("Errore lettura immagine: " + e.getMessage());
 			return null;
 		} finally {
-			// Elimina il file temporaneo creato dal framework
 			try {
 				java.nio.file.Files.deleteIfExists(tempPath);
 			} catch (Exception ex) {
@@ -431,13 +676,18 @@ public class BookService {
 		List<Copy> copies = copiesRepository.findByLibrary(libraryId);
 		List<BookDetailDTO> results = new ArrayList<>();
 
+		if (copies.isEmpty()) {
+			return results;
+		}
+
+		// metadati di tutti i libri della libreria: dalla cache, i mancanti con una sola query sugli isbn distinti
+		List<String> isbns = copies.stream().map(Copy::getBookIsbn).distinct().toList();
+		Map<String, Book> books = booksRepository.getAll(isbns);
 
 		for (Copy copy : copies) {
-			// per ogni copia cerco i metadati del libro tramite isbn
-			Optional<Book> bookOpt = booksRepository.get(copy.getBookIsbn());
+			Book book = books.get(copy.getBookIsbn());
 
-			if (bookOpt.isPresent()) {
-				Book book = bookOpt.get();
+			if (book != null) {
 
 				// mappatura manuale verso BookDetailDTO
 				results.add(new BookDetailDTO(
@@ -446,7 +696,8 @@ public class BookService {
 						book.getTitle(),
 						book.getAuthor(),
 						book.getCover(), // cover del libro base
-						copy.getCustomCover(),
+						copy.isCoverPending() ? null : coverService.url(copy.getCoverHash()),
+						copy.isCoverPending(),
 						book.getPublication_year(),
 						book.getLanguage(),
 						book.getCover_type(),
@@ -468,115 +719,90 @@ public class BookService {
 	}
 
 	public BookDetailDTO getSimilar(String copyId, String currentUserId, boolean isLogged) {
-        
-		// recupero dettagli della copia di riferimento
-        BookDetailDTO reference = getBookDetails(copyId, 0L);
-        if (reference == null) {
-        	return null;
-        }
-
-        // coordinate della libreria 
-        Optional<Library> libOpt = librariesRepository.get(reference.libraryId());
-        if (libOpt.isEmpty()) {
-        	return null;
-        }
-        
-        MongoCollection<Document> locationsCol = mongoClient.getDatabase("bibliomap").getCollection("locations");
-        Document locDoc = locationsCol.find(Filters.eq("_id", libOpt.get().getLocationId())).first();
-        if (locDoc == null) {
-        	return null;
-        }
-
-        Document geo = locDoc.get("geolocation", Document.class);
-        List<Double> coords = geo.getList("coordinates", Double.class);
-        
-        double lng = coords.get(0);
-        double lat = coords.get(1);
-
-        // visibilita' in base a logged
-        List<String> allowedVisibilities = new ArrayList<>();
-        allowedVisibilities.add("all");
-        if (isLogged) {
-            allowedVisibilities.add("logged_in");
-        }
-
-        // ricerca spaziale incrementale 
-        double currentRadius = 0.5; // start 500m
-        double maxRadius = 10.0;    // max 10km
-        double step = 0.5;          // incremento 500m
-
-        while (currentRadius <= maxRadius) {
-            List<Bson> pipeline = new ArrayList<>();
-
-            // GeoNear
-            Document geoNear = new Document("$geoNear", new Document()
-                    .append("near", new Document("type", "Point").append("coordinates", Arrays.asList(lng, lat)))
-                    .append("distanceField", "distance")
-                    .append("maxDistance", currentRadius * 1000)
-                    .append("spherical", true));
-            pipeline.add(geoNear);
-
-            //join con Libraries per visibilita e proprietario
-            pipeline.add(new Document("$lookup", new Document()
-                    .append("from", "libraries")
-                    .append("localField", "_id")
-                    .append("foreignField", "locationId")
-                    .append("as", "library")));
-            pipeline.add(new Document("$unwind", "$library"));
-
-            List<Bson> libraryFilters = new ArrayList<>();
-            libraryFilters.add(Filters.in("library.visibility", allowedVisibilities));
-            
-            // esclude i libri dell'utente se loggato
-            if (currentUserId != null) {
-                libraryFilters.add(Filters.ne("library.ownerId", currentUserId));
-            }
-            pipeline.add(Aggregates.match(Filters.and(libraryFilters)));
-
-            // join con Copies per stato e tag
-            pipeline.add(new Document("$lookup", new Document()
-                    .append("from", "copies")
-                    .append("localField", "library._id")
-                    .append("foreignField", "libraryId")
-                    .append("as", "copy")));
-            pipeline.add(new Document("$unwind", "$copy"));
-            
-            // esclude la copia corrente e mostra solo disponibili
-            pipeline.add(Aggregates.match(Filters.and(
-                    Filters.ne("copy._id", copyId),
-                    Filters.eq("copy.status", "available")
-            )));
-
-            // join con Books per Autore
-            pipeline.add(new Document("$lookup", new Document()
-                    .append("from", "books")
-                    .append("localField", "copy.book_isbn")
-                    .append("foreignField", "_id")
-                    .append("as", "bookInfo")));
-            pipeline.add(new Document("$unwind", "$bookInfo"));
-
-            // filtro Similitudine (Stesso Autore OPPURE uno dei Tag in comune)
-            List<Bson> similarityOr = new ArrayList<>();
-            similarityOr.add(Filters.eq("bookInfo.author", reference.author()));
-            if (reference.tags() != null && !reference.tags().isEmpty()) {
-                similarityOr.add(Filters.in("copy.tags", reference.tags()));
-            }
-            pipeline.add(Aggregates.match(Filters.or(similarityOr)));
-
-            // prende il più vicino
-            pipeline.add(Aggregates.sort(Sorts.ascending("distance")));
-            pipeline.add(Aggregates.limit(1));
-
-            Document result = locationsCol.aggregate(pipeline).first();
-
-            if (result != null) {
-                String foundCopyId = result.get("copy", Document.class).getString("_id");
-                return getBookDetails(foundCopyId, currentRadius);
-            }
-
-            currentRadius += step;
-        }
-
-        return null;
-    }
-}
\ No newline at end of file
+		List<BookDetailDTO> similar = getSimilarTop(copyId, currentUserId, isLogged, 1);
+		return similar.isEmpty() ? null : similar.get(0);
+	}
+
+	/**
+	 * Le copie simili (stesso autore o almeno un tag in comune) piu' vicine alla copia di riferimento,
+	 * entro SIMILAR_MAX_RADIUS_KM, ordinate per distanza.
+	 * Due round trip in tutto: la riga di riferimento da book_map e un'unica aggregazione che
+	 * ordina i candidati, taglia a limit e fa le join dei dettagli. Nessuna visualizzazione conteggiata.
+	 * La distanza restituita e' arrotondata per eccesso al mezzo chilometro, come con la vecchia ricerca ad anelli.
+	 */
+	public List<BookDetailDTO> getSimilarTop(String copyId, String currentUserId, boolean isLogged, int limit) {
+		List<BookDetailDTO> similar = new ArrayList<>();
+
+		// copia di riferimento: autore, tag e libreria sono gia' nel read model
+		Optional<BookMapEntry> reference = bookMapRepository.get(copyId);
+		if (reference.isEmpty()) {
+			return similar;
+		}
+
+		// coordinate della libreria dall'indice in memoria
+		Optional<LibraryGeoIndex.LibraryPoint> libPoint = libraryGeoIndex.get(reference.get().getLibraryId());
+		if (libPoint.isEmpty()) {
+			return similar;
+		}
+
+		// visibilita' in base a logged
+		List<String> allowedVisibilities = new ArrayList<>();
+		allowedVisibilities.add("all");
+		if (isLogged) {
+			allowedVisibilities.add("logged_in");
+		}
+
+		// tutte le librerie candidate, gia' ordinate per distanza
+		List<LibraryGeoIndex.Hit> hits = libraryGeoIndex.within(libPoint.get().lat(), libPoint.get().lng(), SIMILAR_MAX_RADIUS_KM, allowedVisibilities, currentUserId);
+		if (hits.isEmpty()) {
+			return similar;
+		}
+
+		List<String> libraryIds = hits.stream().map(LibraryGeoIndex.Hit::libraryId).toList();
+		Map<String, Double> distanceByLibrary = new HashMap<>();
+		hits.forEach(h -> distanceByLibrary.put(h.libraryId(), h.distanceKm()));
+
+		// filtro Similitudine (Stesso Autore OPPURE uno dei Tag in comune)
+		List<Bson> similarityOr = new ArrayList<>();
+		similarityOr.add(Filters.eq("author", reference.get().getAuthor()));
+		List<String> tags = reference.get().getTags();
+		if (tags != null && !tags.isEmpty()) {
+			similarityOr.add(Filters.in("tags", tags));
+		}
+
+		List<Bson> pipeline = new ArrayList<>();
+
+		// esclude la copia corrente e mostra solo disponibili
+		pipeline.add(Aggregates.match(Filters.and(
+				Filters.in("libraryId", libraryIds),
+				Filters.in("visibility", allowedVisibilities),
+				Filters.ne("_id", copyId),
+				Filters.eq("status", "available"),
+				Filters.or(similarityOr))));
+
+		// prende i più vicini: posizione della libreria nell'elenco ordinato per distanza
+		pipeline.add(Aggregates.addFields(new Field<>("rank", new Document("$indexOfArray", Arrays.asList(libraryIds, "$libraryId")))));
+		pipeline.add(Aggregates.sort(Sorts.ascending("rank", "_id")));
+		pipeline.add(Aggregates.limit(limit));
+
+		// dettagli dalla copia vera (cover, condizioni, note) e dalle solite join
+		pipeline.add(new Document("$lookup", new Document()
+				.append("from", "copies")
+				.append("localField", "_id")
+				.append("foreignField", "_id")
+				.append("as", "copy")));
+		pipeline.add(new Document("$unwind", "$copy"));
+		pipeline.add(new Document("$replaceRoot", new Document("newRoot", "$copy")));
+		pipeline.addAll(detailLookups());
+
+		MongoCollection<Document> bookMapCol = mongoClient.getDatabase("bibliomap").getCollection(BookMapRepository.COLLECTION);
+
+		for (Document doc : bookMapCol.aggregate(pipeline)) {
+			double d = distanceByLibrary.getOrDefault(doc.getString("libraryId"), SIMILAR_MAX_RADIUS_KM);
+			double ring = Math.max(SIMILAR_RING_KM, Math.ceil(d / SIMILAR_RING_KM) * SIMILAR_RING_KM);
+			similar.add(mapToDetailDTO(doc, ring));
+		}
+
+		return similar;
+	}
+}
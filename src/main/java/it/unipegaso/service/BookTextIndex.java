@@ -0,0 +1,189 @@
+package it.unipegaso.service;
+
+import java.util.List;
+import java.util.Set;
+
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import it.unipegaso.database.model.Book;
+import it.unipegaso.service.search.TrigramIndex;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+/**
+ * Ricerca testuale su titolo, autore ed editore dei libri, tutta in memoria.
+ * I libri non vengono mai modificati ne' eliminati: l'indice si carica all'avvio,
+ * BooksRepository.create aggiunge subito i nuovi sul nodo che li crea e un change stream
+ * sugli insert di books li porta agli altri nodi. Come per LibraryGeoIndex, se il deployment
+ * non supporta i change stream (mongod standalone) resta il ricaricamento periodico.
+ */
+@ApplicationScoped
+public class BookTextIndex {
+
+	private static final Logger LOG = Logger.getLogger(BookTextIndex.class);
+
+	// codice restituito da $changeStream su istanze non replica set
+	private static final int CHANGE_STREAM_NOT_SUPPORTED = 40573;
+	private static final long RETRY_MILLIS = 5000;
+
+	@Inject
+	MongoClient mongoClient;
+
+	@Inject
+	MongoCollection<Book> books;
+
+	@ConfigProperty(name = "quarkus.mongodb.database", defaultValue = "bibliomap")
+	String databaseName;
+
+	@ConfigProperty(name = "book-text-index.change-streams", defaultValue = "true")
+	boolean changeStreamsEnabled;
+
+	private volatile TrigramIndex index = new TrigramIndex();
+	private volatile boolean loaded;
+
+	private volatile boolean running;
+	private volatile MongoChangeStreamCursor<?> cursor;
+
+	void onStart(@Observes StartupEvent ev) {
+		running = true;
+
+		try {
+			load();
+		} catch (Exception e) {
+			LOG.error("errore caricamento indice testuale libri all'avvio", e);
+		}
+
+		if (changeStreamsEnabled) {
+			watchInserts();
+		}
+	}
+
+	void onStop(@Observes ShutdownEvent ev) {
+		running = false;
+		MongoChangeStreamCursor<?> c = cursor;
+		if (c != null) {
+			try {
+				c.close();
+			} catch (Exception e) {
+				LOG.debug("chiusura change stream: " + e.getMessage());
+			}
+		}
+	}
+
+	// rete di sicurezza: riallinea anche senza change stream o dopo eventi persi
+	@Scheduled(every = "{book-text-index.reload-every}", delayed = "{book-text-index.reload-every}")
+	void scheduledReload() {
+		try {
+			load();
+		} catch (Exception e) {
+			LOG.error("errore ricaricamento periodico indice testuale libri", e);
+		}
+	}
+
+	public synchronized void load() {
+		TrigramIndex fresh = new TrigramIndex();
+
+		books.find()
+		.projection(Projections.include("title", "author", "publisher"))
+		.forEach(b -> fresh.add(b.getIsbn(), b.getTitle(), b.getAuthor(), b.getPublisher()));
+
+		index = fresh;
+		loaded = true;
+		LOG.infof("indice testuale libri caricato: %d libri", fresh.size());
+	}
+
+	public synchronized void add(Book book) {
+		if (book == null) return;
+		index.add(book.getIsbn(), book.getTitle(), book.getAuthor(), book.getPublisher());
+	}
+
+	/**
+	 * ISBN dei libri che contengono tutte le parole cercate (senza distinzione di maiuscole e accenti).
+	 */
+	public Set<String> search(String text) {
+		if (!loaded) {
+			// avvio fallito: riproviamo alla prima ricerca
+			load();
+		}
+		return index.search(text);
+	}
+
+	/* ---------- change stream ---------- */
+
+	private void watchInserts() {
+		Thread.ofVirtual().name("text-index-books").start(() -> {
+			MongoCollection<Document> col = mongoClient.getDatabase(databaseName).getCollection("books");
+			boolean reconnect = false;
+
+			while (running) {
+				MongoChangeStreamCursor<ChangeStreamDocument<Document>> c = null;
+				try {
+					// gli insert portano gia' il documento intero
+					c = col.watch(List.of(Aggregates.match(Filters.eq("operationType", "insert")))).cursor();
+					cursor = c;
+					LOG.info("change stream su books attivo");
+
+					// libri inseriti mentre lo stream era giu'
+					if (reconnect) load();
+					reconnect = true;
+
+					while (running) {
+						onInsert(c.next());
+					}
+
+				} catch (MongoCommandException e) {
+					if (e.getErrorCode() == CHANGE_STREAM_NOT_SUPPORTED) {
+						LOG.warn("change stream non supportati su books, resta il ricaricamento periodico");
+						return;
+					}
+					retryLater(e);
+				} catch (Exception e) {
+					if (!running) return;
+					retryLater(e);
+				} finally {
+					if (c != null) {
+						try {
+							c.close();
+						} catch (Exception ignored) {
+							// gia' chiuso
+						}
+					}
+				}
+			}
+		});
+	}
+
+	private void retryLater(Exception e) {
+		LOG.warnf("change stream su books interrotto (%s), nuovo tentativo tra %d ms", e.getMessage(), RETRY_MILLIS);
+		try {
+			Thread.sleep(RETRY_MILLIS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			running = false;
+		}
+	}
+
+	private synchronized void onInsert(ChangeStreamDocument<Document> ev) {
+		Document doc = ev.getFullDocument();
+		if (doc == null || !(doc.get("_id") instanceof String isbn)) {
+			return;
+		}
+		// gia' presente se il libro e' stato creato da questo nodo: TrigramIndex lo ignora
+		index.add(isbn, doc.getString("title"), doc.getString("author"), doc.getString("publisher"));
+	}
+}
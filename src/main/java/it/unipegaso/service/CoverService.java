@@ -0,0 +1,295 @@
+package it.unipegaso.service;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.mongodb.client.MongoClient;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.scheduler.Scheduled;
+import it.unipegaso.api.util.ImageUtils;
+import it.unipegaso.database.CopiesRepository;
+import it.unipegaso.database.model.Copy;
+import it.unipegaso.service.cover.CoverStore;
+import it.unipegaso.service.cover.FileSystemCoverStore;
+import it.unipegaso.service.cover.GridFsCoverStore;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Copertine caricate dagli utenti. Sulla copia resta solo l'hash SHA-256 del file originale;
+ * nel CoverStore finiscono tre JPEG (marker per la mappa, lista, dettaglio) con chiave hash_formato.
+ * La stessa foto caricata due volte viene elaborata e salvata una volta sola e, non cambiando mai
+ * il contenuto di una chiave, GET /api/covers/{hash} e' cacheabile per sempre.
+ *
+ * L'elaborazione non avviene nella richiesta: la copia viene salvata con cover_pending e un pool
+ * di worker (coda limitata, metrica cover_thumbnails_queue) genera i formati e poi toglie il flag.
+ * A coda piena l'immagine viene elaborata da chi la invia, rallentando l'upload invece di perderla.
+ *
+ * Le copertine non vengono cancellate con la copia: lo stesso hash puo' essere usato da altre copie.
+ */
+@ApplicationScoped
+public class CoverService {
+
+	private static final Logger LOG = Logger.getLogger(CoverService.class);
+
+	private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+	public enum CoverSize {
+		MARKER, LIST, DETAIL;
+
+		public static CoverSize from(String value) {
+			if (value == null) {
+				throw new IllegalArgumentException("formato mancante");
+			}
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	// dal piu' grande al piu' piccolo: ogni formato si ricava dal precedente, il marker e' l'ultimo scritto
+	private static final List<CoverSize> GENERATION_ORDER = List.of(CoverSize.DETAIL, CoverSize.LIST, CoverSize.MARKER);
+
+	@Inject
+	MongoClient mongoClient;
+
+	@Inject
+	CopiesRepository copiesRepository;
+
+	@Inject
+	MeterRegistry registry;
+
+	@ConfigProperty(name = "covers.store", defaultValue = "gridfs")
+	String storeType;
+
+	@ConfigProperty(name = "covers.directory", defaultValue = "covers")
+	String directory;
+
+	@ConfigProperty(name = "covers.base-url")
+	String baseUrl;
+
+	@ConfigProperty(name = "covers.migrate-batch", defaultValue = "100")
+	int migrateBatch;
+
+	@ConfigProperty(name = "covers.size.marker", defaultValue = "64")
+	int markerSize;
+
+	@ConfigProperty(name = "covers.size.list", defaultValue = "200")
+	int listSize;
+
+	@ConfigProperty(name = "covers.size.detail", defaultValue = "400")
+	int detailSize;
+
+	@ConfigProperty(name = "covers.jpeg-quality", defaultValue = "0.85")
+	float jpegQuality;
+
+	@ConfigProperty(name = "covers.workers", defaultValue = "2")
+	int workers;
+
+	@ConfigProperty(name = "covers.queue-capacity", defaultValue = "50")
+	int queueCapacity;
+
+	private CoverStore store;
+	private ThreadPoolExecutor executor;
+
+	@PostConstruct
+	void init() {
+		// un URL relativo verrebbe risolto sul dominio della UI
+		if (!baseUrl.startsWith("http://") && !baseUrl.startsWith("https://")) {
+			throw new IllegalStateException("covers.base-url deve essere un URL assoluto (impostare API_BASE_URL): " + baseUrl);
+		}
+
+		store = "filesystem".equalsIgnoreCase(storeType)
+				? new FileSystemCoverStore(Path.of(directory))
+				: new GridFsCoverStore(mongoClient.getDatabase("bibliomap"));
+		LOG.infof("archivio copertine: %s", store.getClass().getSimpleName());
+
+		// thread di piattaforma: il ridimensionamento e' lavoro di CPU, non attesa
+		executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity),
+				Thread.ofPlatform().name("cover-worker-", 0).daemon().factory(),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+
+		registry.gauge("cover_thumbnails_queue", executor.getQueue(), Collection::size);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	public static String hash(byte[] original) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(original));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * true se tutti i formati di questo hash sono gia' nell'archivio (stessa foto gia' caricata).
+	 */
+	public boolean isReady(String hash) {
+		return store.exists(key(hash, CoverSize.MARKER));
+	}
+
+	/**
+	 * Associa alla copia l'immagine caricata (null = nessuna). Restituisce i byte da passare a processAsync
+	 * dopo il salvataggio della copia, oppure null se i formati esistono gia' e la copertina e' subito pronta.
+	 */
+	public byte[] attach(Copy copy, byte[] original) {
+		if (original == null || original.length == 0) {
+			return null;
+		}
+
+		String hash = hash(original);
+		boolean pending = !isReady(hash);
+		copy.setCoverHash(hash);
+		copy.setCoverPending(pending);
+		return pending ? original : null;
+	}
+
+	/**
+	 * Mette in coda la generazione dei formati; alla fine toglie cover_pending dalla copia,
+	 * o la copertina se l'immagine non e' leggibile.
+	 */
+	public void processAsync(String copyId, String hash, byte[] original) {
+		executor.execute(() -> {
+			try {
+				generate(hash, original);
+				copiesRepository.coverReady(copyId, hash);
+			} catch (Exception e) {
+				LOG.errorf(e, "elaborazione copertina %s della copia %s fallita", hash, copyId);
+				copiesRepository.coverFailed(copyId, hash);
+			}
+		});
+	}
+
+	/**
+	 * Genera e salva tutti i formati, nel thread chiamante.
+	 */
+	public void generate(String hash, byte[] original) throws IOException {
+		BufferedImage image = ImageUtils.decode(original);
+		if (image == null) {
+			throw new IllegalArgumentException("formato immagine non riconosciuto");
+		}
+
+		for (CoverSize size : GENERATION_ORDER) {
+			image = ImageUtils.downscale(image, pixels(size));
+			store.put(key(hash, size), ImageUtils.toJpeg(image, jpegQuality));
+		}
+	}
+
+	public Optional<byte[]> load(String hash, CoverSize size) {
+		if (!isHash(hash)) {
+			return Optional.empty();
+		}
+		return store.get(key(hash, size));
+	}
+
+	/**
+	 * URL pubblico della copertina (formato dettaglio, gli altri con ?size=), null se la copia non ne ha una.
+	 */
+	public String url(String hash) {
+		return (hash == null || hash.isEmpty()) ? null : baseUrl + hash;
+	}
+
+	public static boolean isHash(String value) {
+		return value != null && HASH.matcher(value).matches();
+	}
+
+	/**
+	 * Migrazione delle copertine base64 rimaste in custom_cover: a blocchi, finche' non ne restano.
+	 * I formati vengono generati qui, gia' fuori da qualsiasi richiesta.
+	 * Un'immagine non decodificabile viene scartata (la copia torna alla copertina del libro).
+	 */
+	@Scheduled(every = "{covers.migrate-every}", delayed = "10s", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+	void migrateLegacyCovers() {
+		try {
+			int total = 0;
+			List<Document> batch;
+
+			while (!(batch = copiesRepository.findLegacyCovers(migrateBatch)).isEmpty()) {
+				Map<String, String> hashes = new HashMap<>();
+
+				for (Document doc : batch) {
+					String id = doc.getString("_id");
+					hashes.put(id, migrate(id, decodeLegacy(doc.get("custom_cover"))));
+				}
+
+				copiesRepository.replaceLegacyCovers(hashes);
+				total += batch.size();
+			}
+
+			if (total > 0) {
+				LOG.infof("migrazione copertine completata: %d copie", total);
+			}
+		} catch (Exception e) {
+			LOG.error("errore migrazione copertine", e);
+		}
+	}
+
+	private String migrate(String copyId, byte[] original) {
+		if (original != null) {
+			String hash = hash(original);
+			try {
+				if (!isReady(hash)) {
+					generate(hash, original);
+				}
+				return hash;
+			} catch (IOException | IllegalArgumentException e) {
+				// illeggibile: sotto si scarta
+			}
+		}
+		LOG.warnf("copertina base64 non leggibile sulla copia %s, scartata", copyId);
+		return null;
+	}
+
+	// "data:image/jpeg;base64,..." oppure base64 senza prefisso
+	private static byte[] decodeLegacy(Object raw) {
+		if (!(raw instanceof String value) || value.isBlank()) {
+			return null;
+		}
+
+		int comma = value.indexOf(',');
+		String b64 = value.startsWith("data:") && comma > 0 ? value.substring(comma + 1) : value;
+
+		try {
+			byte[] image = Base64.getMimeDecoder().decode(b64);
+			return image.length > 0 ? image : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private int pixels(CoverSize size) {
+		return switch (size) {
+			case MARKER -> markerSize;
+			case LIST -> listSize;
+			case DETAIL -> detailSize;
+		};
+	}
+
+	private static String key(String hash, CoverSize size) {
+		return hash + "_" + size.name().toLowerCase();
+	}
+}
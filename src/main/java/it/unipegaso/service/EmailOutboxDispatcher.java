@@ -0,0 +1,208 @@
+package it.unipegaso.service;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import it.unipegaso.database.EmailOutboxRepository;
+import it.unipegaso.database.IRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+/**
+ * Invia le email accodate in email_outbox. Ogni email.outbox.poll-every prende le email dovute a blocchi
+ * (claim con lease, sicuro anche con piu' nodi) e le consegna con al massimo email.outbox.workers invii in parallelo.
+ *
+ * Un invio fallito riparte dopo backoff-base, poi il doppio, il quadruplo... fino a backoff-max, con un po' di
+ * jitter perche' dopo un disservizio di Brevo le email non ripartano tutte insieme. Al tentativo max-attempts
+ * l'email passa a dead e resta nella collection; anche un lease scaduto conta come tentativo.
+ *
+ * Metriche: email_outbox_queue (da consegnare), email_outbox_dead, email_outbox_delivery
+ * (tempo dall'accodamento all'esito, tag outcome = sent | dead).
+ */
+@ApplicationScoped
+public class EmailOutboxDispatcher {
+
+	private static final Logger LOG = Logger.getLogger(EmailOutboxDispatcher.class);
+
+	@Inject
+	EmailOutboxRepository outboxRepository;
+
+	@Inject
+	EmailService emailService;
+
+	@Inject
+	MeterRegistry registry;
+
+	@ConfigProperty(name = "email.outbox.batch-size", defaultValue = "20")
+	int batchSize;
+
+	@ConfigProperty(name = "email.outbox.workers", defaultValue = "4")
+	int workers;
+
+	@ConfigProperty(name = "email.outbox.max-attempts", defaultValue = "8")
+	int maxAttempts;
+
+	@ConfigProperty(name = "email.outbox.backoff-base", defaultValue = "30s")
+	Duration backoffBase;
+
+	@ConfigProperty(name = "email.outbox.backoff-max", defaultValue = "1h")
+	Duration backoffMax;
+
+	@ConfigProperty(name = "email.outbox.lease", defaultValue = "5m")
+	Duration lease;
+
+	private ExecutorService executor;
+
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong dead = new AtomicLong();
+
+	@PostConstruct
+	void init() {
+		// gli invii sono attesa sulla rete: thread virtuali, ma solo workers alla volta verso Brevo
+		executor = Executors.newFixedThreadPool(workers, Thread.ofVirtual().name("email-worker-", 0).factory());
+
+		registry.gauge("email_outbox_queue", queued);
+		registry.gauge("email_outbox_dead", dead);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	void onStart(@Observes StartupEvent ev) {
+		try {
+			outboxRepository.ensureIndexes();
+			refreshMetrics();
+		} catch (Exception e) {
+			LOG.error("errore preparazione email_outbox all'avvio", e);
+		}
+	}
+
+	@Scheduled(every = "{email.outbox.poll-every}", delayed = "5s", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+	void scheduledDispatch() {
+		try {
+			dispatch();
+		} catch (Exception e) {
+			LOG.error("errore invio email_outbox", e);
+		}
+	}
+
+	/**
+	 * Consegna tutte le email gia' dovute, un blocco dopo l'altro finche' la coda non si svuota.
+	 * Restituisce quante sono state inviate.
+	 */
+	public int dispatch() throws InterruptedException {
+		int sent = 0;
+		List<Document> batch;
+
+		do {
+			batch = outboxRepository.claim(batchSize, lease);
+			List<Future<Boolean>> results = batch.stream().map(doc -> executor.submit(() -> deliver(doc))).toList();
+
+			for (Future<Boolean> result : results) {
+				try {
+					if (result.get()) {
+						sent++;
+					}
+				} catch (ExecutionException e) {
+					// deliver gestisce i propri errori: qui arriva solo un errore sull'aggiornamento dello stato,
+					// l'email resta sending e viene ripresa alla scadenza del lease
+					LOG.error("errore aggiornamento stato email_outbox", e.getCause());
+				}
+			}
+		} while (batch.size() == batchSize);
+
+		refreshMetrics();
+		return sent;
+	}
+
+	private boolean deliver(Document doc) {
+		String id = doc.getString(IRepository.ID);
+		String type = doc.getString(EmailOutboxRepository.TYPE);
+		String leaseId = doc.getString(EmailOutboxRepository.LEASE_ID);
+		// gia' incrementato dalla presa
+		int attempt = doc.getInteger(EmailOutboxRepository.ATTEMPTS, 1);
+
+		// si arriva oltre max-attempts solo con lease scaduti senza esito (il worker muore sempre su questa email)
+		if (attempt > maxAttempts) {
+			LOG.errorf("email %s [%s] scartata: lease scaduto senza esito per %d tentativi", id, type, attempt - 1);
+			if (outboxRepository.deadLetter(id, leaseId, "lease scaduto senza esito")) {
+				record(doc, "dead");
+			}
+			return false;
+		}
+
+		try {
+			emailService.deliver(doc.getString(EmailOutboxRepository.TO), doc.getString(EmailOutboxRepository.SUBJECT),
+					doc.getString(EmailOutboxRepository.HTML), type);
+			if (outboxRepository.markSent(id, leaseId)) {
+				record(doc, "sent");
+			} else {
+				LOG.warnf("email %s [%s] inviata dopo la scadenza del lease, potrebbe arrivare due volte", id, type);
+			}
+			return true;
+
+		} catch (Exception e) {
+			String error = e.getClass().getSimpleName() + ": " + e.getMessage();
+			boolean released;
+
+			if (attempt >= maxAttempts) {
+				LOG.errorf(e, "email %s [%s] scartata dopo %d tentativi", id, type, attempt);
+				released = outboxRepository.deadLetter(id, leaseId, error);
+				if (released) {
+					record(doc, "dead");
+				}
+			} else {
+				Duration wait = backoff(attempt);
+				LOG.warnf("invio email %s [%s] fallito (tentativo %d), nuovo tentativo tra %s: %s", id, type, attempt, wait, error);
+				released = outboxRepository.retry(id, leaseId, new Date(System.currentTimeMillis() + wait.toMillis()), error);
+			}
+
+			if (!released) {
+				LOG.warnf("email %s [%s] gia' ripresa da un altro worker, esito ignorato", id, type);
+			}
+			return false;
+		}
+	}
+
+	// attesa dopo il tentativo n (da 1): base * 2^(n-1), al massimo backoffMax, piu' fino al 20% di jitter
+	Duration backoff(int attempt) {
+		Duration wait = backoffBase.multipliedBy(1L << Math.min(attempt - 1, 20));
+		if (wait.compareTo(backoffMax) > 0) {
+			wait = backoffMax;
+		}
+		return wait.plusMillis(ThreadLocalRandom.current().nextLong(wait.toMillis() / 5 + 1));
+	}
+
+	private void record(Document doc, String outcome) {
+		Date createdAt = doc.getDate(EmailOutboxRepository.CREATED_AT);
+		if (createdAt != null) {
+			Timer.builder("email_outbox_delivery").tag("outcome", outcome).register(registry)
+					.record(Duration.ofMillis(System.currentTimeMillis() - createdAt.getTime()));
+		}
+	}
+
+	private void refreshMetrics() {
+		queued.set(outboxRepository.countQueued());
+		dead.set(outboxRepository.countDead());
+	}
+}
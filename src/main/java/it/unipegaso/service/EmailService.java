@@ -18,6 +18,7 @@ import it.unipegaso.api.dto.BrevoRequest;
 import it.unipegaso.api.dto.BrevoContact;
 import io.quarkus.qute.Location;
 import io.quarkus.qute.Template;
+import it.unipegaso.database.EmailOutboxRepository;
 import it.unipegaso.database.model.Loan;
 import it.unipegaso.database.model.User;
 import jakarta.enterprise.context.ApplicationScoped;
@@ -25,6 +26,12 @@ import jakarta.inject.Inject;
 import java.util.Base64;
 import it.unipegaso.api.dto.BrevoAttachment; 
 
+/**
+ * Email dell'applicazione. Quelle legate ai prestiti (richieste, esiti, inizio e fine, solleciti, contatti)
+ * vengono solo accodate in email_outbox e inviate da EmailOutboxDispatcher: la richiesta HTTP non aspetta Brevo
+ * e un errore temporaneo si risolve con i retry. OTP, export e avvisi sull'account restano sincroni
+ * (l'utente aspetta il codice, l'allegato non entra nella coda).
+ */
 @ApplicationScoped
 public class EmailService {
 
@@ -87,6 +94,9 @@ public class EmailService {
 	@RestClient
 	BrevoClient brevoClient;
 
+	@Inject
+	EmailOutboxRepository outboxRepository;
+
 	// Invia notifica di esito (accettazione/rifiuto) al richiedente.
 	public boolean sendRequestResponseEmail(String recipientEmail, String recipientName, String bookTitle, String action, String ownerNotes, String days, String slots) {
 
@@ -109,7 +119,7 @@ public class EmailService {
 		String statusText = isAccepted ? "ACCETTATA" : "RIFIUTATA";
 		String subject = "La tua richiesta di prestito è stata " + statusText;
 
-		return sendEmail(recipientEmail, subject, htmlBody, "Esito richiesta");
+		return queue(recipientEmail, subject, htmlBody, "Esito richiesta");
 	}
 
 	// Invia notifica di nuova richiesta di prestito al proprietario del libro.
@@ -131,7 +141,7 @@ public class EmailService {
 
 		String subject = "Hai una nuova richiesta di prestito!";
 
-		return sendEmail(recipientEmail, subject, htmlBody, "Nuova richiesta prestito");
+		return queue(recipientEmail, subject, htmlBody, "Nuova richiesta prestito");
 	}
 
 	// invia conferma di fine prestito al richiedente
@@ -148,7 +158,7 @@ public class EmailService {
 
 		String subject = "Il prestito di \"" + bookTitle + "\" è concluso";
 
-		return sendEmail(recipientEmail, subject, htmlBody, "Conferma restituzione");
+		return queue(recipientEmail, subject, htmlBody, "Conferma restituzione");
 	}
 
 	// invia sollecito per prestito scaduto
@@ -168,7 +178,7 @@ public class EmailService {
 
 		String subject = "Sollecito: il periodo di prestito è scaduto";
 
-		return sendEmail(recipientEmail, subject, htmlBody, "Sollecito scadenza");
+		return queue(recipientEmail, subject, htmlBody, "Sollecito scadenza");
 	}
 
 	// Invia un'email all'utente con il codice OTP per la verifica.
@@ -236,7 +246,7 @@ public class EmailService {
 	            .data(reqData)
 	            .render();
 	    
-	    sendEmail(requester.getEmail(), "Prestito iniziato: " + loan.getTitle(), htmlBody, "Inizio prestito per richiedente");
+	    queue(requester.getEmail(), "Prestito iniziato: " + loan.getTitle(), htmlBody, "Inizio prestito per richiedente");
 
 	    // Email per il proprietario
 	    Map<String, Object> ownerData = new HashMap<>();
@@ -250,7 +260,7 @@ public class EmailService {
 	            .data(ownerData)
 	            .render();
 	   
-	    sendEmail(owner.getEmail(), "Conferma consegna: " + loan.getTitle(), htmlBody, "Inizio prestito per proprietario");
+	    queue(owner.getEmail(), "Conferma consegna: " + loan.getTitle(), htmlBody, "Inizio prestito per proprietario");
 	}
 	
 	public void sendContactRequestEmail(String email, String toUsername, String fromUsername, String title,
@@ -275,7 +285,7 @@ public class EmailService {
 	            .data(data)
 	            .render();
 	    
-	    sendEmail(email, subject , htmlBody, "Richiesta di contatto");
+	    queue(email, subject , htmlBody, "Richiesta di contatto");
 
 		
 	}
@@ -320,7 +330,34 @@ public class EmailService {
     }
 }
 
+	// invio immediato, nella richiesta: false se Brevo non risponde o rifiuta
 	private boolean sendEmail(String to, String subject, String body, String logType) {
+		try {
+			deliver(to, subject, body, logType);
+			return true;
+		} catch (Exception e) {
+			LOG.errorf(e, "errore invio brevo per %s", to);
+			return false;
+		}
+	}
+
+	// accodamento in email_outbox: false solo se la scrittura su Mongo fallisce
+	private boolean queue(String to, String subject, String body, String logType) {
+		try {
+			outboxRepository.enqueue(to, subject, body, logType);
+			LOG.debugf("email [%s] per %s accodata", logType, to);
+			return true;
+		} catch (Exception e) {
+			LOG.errorf(e, "errore accodamento email [%s] per %s", logType, to);
+			return false;
+		}
+	}
+
+	/**
+	 * Consegna a Brevo (o al log in debug-mode). Un errore viene propagato: lo gestisce chi chiama,
+	 * sendEmail restituendo false, il dispatcher dell'outbox ripianificando l'invio.
+	 */
+	public void deliver(String to, String subject, String body, String logType) throws Exception {
 		if (debugEmail) {
 			LOG.info("--------------------------------------------------");
 			LOG.infof("DEBUG EMAIL [%s] to: %s", logType, to);
@@ -328,23 +365,17 @@ public class EmailService {
 			LOG.info("Body:");
 			LOG.info(body);
 			LOG.info("--------------------------------------------------");
-			return true;
+			return;
 		}
-	
-		try {
-	        // mittente autorizzato tramite verifica individuale
-	        BrevoContact sender = new BrevoContact("Bibliomap", "adrianaridolfi91@gmail.com");
-	        BrevoContact recipient = new BrevoContact(null, to);
-	        BrevoRequest request = new BrevoRequest(sender, List.of(recipient), subject, body, null);
-	
-	        // invio tramite porta 443 (standard http)
-	        brevoClient.sendEmail(brevoApiKey, request);
-	        LOG.infof("email [%s] inviata via api a %s", logType, to);
-	        return true;
-	    } catch (Exception e) {
-	        LOG.errorf(e, "errore invio brevo per %s", to);
-	        return false;
-	    }
+
+		// mittente autorizzato tramite verifica individuale
+		BrevoContact sender = new BrevoContact("Bibliomap", "adrianaridolfi91@gmail.com");
+		BrevoContact recipient = new BrevoContact(null, to);
+		BrevoRequest request = new BrevoRequest(sender, List.of(recipient), subject, body, null);
+
+		// invio tramite porta 443 (standard http)
+		brevoClient.sendEmail(brevoApiKey, request);
+		LOG.infof("email [%s] inviata via api a %s", logType, to);
 	}
 
 
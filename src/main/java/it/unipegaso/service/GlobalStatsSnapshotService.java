@@ -0,0 +1,232 @@
+package it.unipegaso.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.quarkus.redis.datasource.RedisDataSource;
+import io.quarkus.redis.datasource.value.ValueCommands;
+import io.quarkus.scheduler.Scheduled;
+import it.unipegaso.api.dto.ChartData;
+import it.unipegaso.api.dto.GlobalStatsDTO;
+import it.unipegaso.database.LibrariesRepository;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.ServiceUnavailableException;
+
+/**
+ * Snapshot di /api/stats/global/full, uno per classe di visibilita' (guest e loggati).
+ * Le aggregazioni girano in background e il risultato sta su Redis, condiviso da tutti i nodi:
+ * la richiesta legge un solo valore. Se lo snapshot e' piu' vecchio di stale-after viene
+ * comunque servito e il ricalcolo parte in un virtual thread (stale-while-revalidate).
+ *
+ * Per un utente loggato si aggiungono sopra le sue librerie, anche private, con i contatori attuali.
+ */
+@ApplicationScoped
+public class GlobalStatsSnapshotService {
+
+	private static final Logger LOG = Logger.getLogger(GlobalStatsSnapshotService.class);
+
+	private static final String KEY_PREFIX = "stats:global:";
+	private static final String LOCK_PREFIX = "stats:global:lock:";
+	private static final long COLD_POLL_MILLIS = 200;
+
+	// get + del in un colpo solo: cancella il lock solo se contiene ancora il nostro token
+	private static final String RELEASE_LOCK =
+			"if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+
+	record Snapshot(long computedAt, GlobalStatsDTO stats) {}
+
+	@Inject
+	RedisDataSource ds;
+
+	@Inject
+	ObjectMapper objectMapper;
+
+	@Inject
+	StatsService statsService;
+
+	@Inject
+	LibrariesRepository librariesRepository;
+
+	@ConfigProperty(name = "global-stats.stale-after", defaultValue = "5m")
+	Duration staleAfter;
+
+	@ConfigProperty(name = "global-stats.lock-ttl", defaultValue = "2m")
+	Duration lockTtl;
+
+	@ConfigProperty(name = "global-stats.cold-wait", defaultValue = "10s")
+	Duration coldWait;
+
+	private ValueCommands<String, String> valueCommands;
+
+	// un solo ricalcolo in corso per classe su questo nodo
+	private final AtomicBoolean guestRefreshing = new AtomicBoolean();
+	private final AtomicBoolean loggedRefreshing = new AtomicBoolean();
+
+	@Inject
+	void setCommands() {
+		this.valueCommands = ds.value(String.class);
+	}
+
+	public GlobalStatsDTO getGlobalStats(boolean logged, String userId) {
+		GlobalStatsDTO stats = getSnapshot(logged);
+
+		if (!logged || userId == null) {
+			return stats;
+		}
+		return withOwnLibraries(stats, userId);
+	}
+
+	@Scheduled(every = "{global-stats.refresh-every}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+	void refreshAll() {
+		refresh(false);
+		refresh(true);
+	}
+
+	private GlobalStatsDTO getSnapshot(boolean logged) {
+		Snapshot snapshot = read(logged);
+
+		if (snapshot == null) {
+			return coldStart(logged);
+		}
+
+		if (System.currentTimeMillis() - snapshot.computedAt() > staleAfter.toMillis()) {
+			AtomicBoolean refreshing = logged ? loggedRefreshing : guestRefreshing;
+			if (refreshing.compareAndSet(false, true)) {
+				Thread.ofVirtual().name("global-stats-" + classKey(logged)).start(() -> {
+					try {
+						refresh(logged);
+					} finally {
+						refreshing.set(false);
+					}
+				});
+			}
+		}
+		return snapshot.stats();
+	}
+
+	/*
+	 * Primo accesso o Redis svuotato: anche qui passa dal lock, altrimenti ogni richiesta concorrente
+	 * di ogni nodo rifarebbe tutte le aggregazioni. Chi perde aspetta che lo snapshot compaia
+	 * per al massimo cold-wait, poi risponde 503 con Retry-After.
+	 */
+	private GlobalStatsDTO coldStart(boolean logged) {
+		Snapshot computed = refresh(logged);
+		if (computed != null) {
+			return computed.stats();
+		}
+
+		long deadline = System.currentTimeMillis() + coldWait.toMillis();
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(COLD_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+
+			Snapshot snapshot = read(logged);
+			if (snapshot != null) {
+				return snapshot.stats();
+			}
+		}
+
+		throw new ServiceUnavailableException("statistiche globali in calcolo", Math.max(1L, coldWait.toSeconds()));
+	}
+
+	/*
+	 * Ricalcolo protetto da un lock su Redis: con piu' nodi solo uno esegue le aggregazioni,
+	 * gli altri continuano a servire lo snapshot precedente.
+	 * Il lock si prende con un solo SET NX PX (mai una chiave senza scadenza se il nodo muore a meta')
+	 * e contiene un token del nodo: a fine ricalcolo si cancella solo se e' ancora nostro,
+	 * cosi' un ricalcolo piu' lungo di lock-ttl non libera il lock gia' preso da un altro nodo.
+	 * Restituisce lo snapshot calcolato, null se il lock e' di un altro nodo o il calcolo e' fallito.
+	 */
+	private Snapshot refresh(boolean logged) {
+		String lock = LOCK_PREFIX + classKey(logged);
+		String token = UUID.randomUUID().toString();
+		if (ds.execute("SET", lock, token, "NX", "PX", String.valueOf(lockTtl.toMillis())) == null) {
+			return null;
+		}
+
+		try {
+			return compute(logged);
+		} catch (Exception e) {
+			LOG.errorf(e, "errore ricalcolo statistiche globali (%s)", classKey(logged));
+			return null;
+		} finally {
+			try {
+				ds.execute("EVAL", RELEASE_LOCK, "1", lock, token);
+			} catch (Exception e) {
+				// il lock scade comunque dopo lock-ttl
+				LOG.warnf(e, "rilascio lock statistiche globali (%s) fallito", classKey(logged));
+			}
+		}
+	}
+
+	private Snapshot compute(boolean logged) {
+		long start = System.currentTimeMillis();
+		Snapshot snapshot = new Snapshot(start, statsService.computeGlobalStats(logged));
+
+		try {
+			valueCommands.set(KEY_PREFIX + classKey(logged), objectMapper.writeValueAsString(snapshot));
+		} catch (JsonProcessingException e) {
+			LOG.error("snapshot statistiche globali non serializzabile", e);
+		}
+
+		LOG.debugf("statistiche globali (%s) ricalcolate in %d ms", classKey(logged), System.currentTimeMillis() - start);
+		return snapshot;
+	}
+
+	private Snapshot read(boolean logged) {
+		String json = valueCommands.get(KEY_PREFIX + classKey(logged));
+		if (json == null) {
+			return null;
+		}
+
+		try {
+			return objectMapper.readValue(json, Snapshot.class);
+		} catch (JsonProcessingException e) {
+			// formato cambiato tra due versioni: lo trattiamo come assente
+			LOG.warn("snapshot statistiche globali illeggibile, verra' ricalcolato", e);
+			return null;
+		}
+	}
+
+	// le librerie dell'utente sostituiscono quelle gia' presenti (stessa etichetta id_nome) o si aggiungono
+	private GlobalStatsDTO withOwnLibraries(GlobalStatsDTO stats, String userId) {
+		Map<String, Long> own = librariesRepository.getUserLibrariesViewsMap(userId, true, true);
+		if (own.isEmpty()) {
+			return stats;
+		}
+
+		Map<String, Long> merged = new LinkedHashMap<>();
+		ChartData libraries = stats.mostVisitedLibraries();
+		for (int i = 0; i < libraries.labels().size(); i++) {
+			merged.put(libraries.labels().get(i), libraries.data().get(i));
+		}
+		merged.putAll(own);
+
+		ChartData mergedLibraries = new ChartData(new ArrayList<>(merged.keySet()), new ArrayList<>(merged.values()));
+
+		return new GlobalStatsDTO(
+				stats.totalBooks(), stats.totalCopies(), stats.totalLoans(),
+				stats.topTag(), stats.maxDistance(), stats.topRequester(), stats.topLoaner(),
+				stats.loansTrend(), stats.weeklyRequests(), stats.paretoBooks(), stats.mostViewedBooks(),
+				mergedLibraries);
+	}
+
+	private static String classKey(boolean logged) {
+		return logged ? "logged" : "guest";
+	}
+}
@@ -151,6 +151,7 @@ public class GoogleBooksService {
 					author,
 					cover,
 					null,
+					null,
 					publicationYear,
 					StringUtils.getFullLanguage(language),
 					"paperback", // default o null
@@ -0,0 +1,362 @@
+package it.unipegaso.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import it.unipegaso.database.IRepository;
+import it.unipegaso.database.model.Library;
+import it.unipegaso.database.model.Location;
+import it.unipegaso.service.geo.GeoGrid;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+/**
+ * Indice in memoria delle posizioni di tutte le librerie.
+ * Risolve "quali librerie stanno entro X km" senza andare su Mongo:
+ * la ricerca e i suggerimenti chiedono poi a Mongo solo le copie di quelle librerie.
+ *
+ * Caricato all'avvio e tenuto aggiornato con i change stream su libraries e locations.
+ * Se il deployment non li supporta (mongod standalone) resta il ricaricamento periodico.
+ */
+@ApplicationScoped
+public class LibraryGeoIndex {
+
+	private static final Logger LOG = Logger.getLogger(LibraryGeoIndex.class);
+
+	// codice restituito da $changeStream su istanze non replica set
+	private static final int CHANGE_STREAM_NOT_SUPPORTED = 40573;
+	private static final long RETRY_MILLIS = 5000;
+
+	@Inject
+	MongoClient mongoClient;
+
+	@Inject
+	MongoCollection<Library> libraries;
+
+	@Inject
+	MongoCollection<Location> locations;
+
+	@ConfigProperty(name = "quarkus.mongodb.database", defaultValue = "bibliomap")
+	String databaseName;
+
+	@ConfigProperty(name = "geo-index.cell-size-deg", defaultValue = "0.05")
+	double cellSizeDeg;
+
+	@ConfigProperty(name = "geo-index.change-streams", defaultValue = "true")
+	boolean changeStreamsEnabled;
+
+	public record LibraryPoint(String libraryId, String locationId, String ownerId, String visibility, double lat, double lng) {}
+
+	public record Hit(String libraryId, String ownerId, double lat, double lng, double distanceKm) {}
+
+	private record Snapshot(LibraryPoint[] points, GeoGrid grid, Map<String, LibraryPoint> byId) {}
+
+	private static final Comparator<Hit> BY_DISTANCE = Comparator.comparingDouble(Hit::distanceKm).thenComparing(Hit::libraryId);
+
+	// fonte di verita' per le modifiche puntuali, protetta da synchronized
+	private Map<String, LibraryPoint> byId = new HashMap<>();
+
+	// letto senza lock dalle ricerche
+	private volatile Snapshot snapshot;
+
+	private volatile boolean running;
+	private final List<MongoChangeStreamCursor<?>> cursors = new ArrayList<>();
+
+	void onStart(@Observes StartupEvent ev) {
+		running = true;
+
+		try {
+			reload();
+		} catch (Exception e) {
+			LOG.error("errore caricamento indice geografico librerie all'avvio", e);
+		}
+
+		if (changeStreamsEnabled) {
+			watch("libraries", this::onLibraryChange);
+			watch("locations", this::onLocationChange);
+		}
+	}
+
+	void onStop(@Observes ShutdownEvent ev) {
+		running = false;
+		synchronized (cursors) {
+			for (MongoChangeStreamCursor<?> cursor : cursors) {
+				try {
+					cursor.close();
+				} catch (Exception e) {
+					LOG.debug("chiusura change stream: " + e.getMessage());
+				}
+			}
+			cursors.clear();
+		}
+	}
+
+	// rete di sicurezza: riallinea anche senza change stream o dopo eventi persi
+	@Scheduled(every = "{geo-index.reload-every}", delayed = "{geo-index.reload-every}")
+	void scheduledReload() {
+		try {
+			reload();
+		} catch (Exception e) {
+			LOG.error("errore ricaricamento periodico indice geografico", e);
+		}
+	}
+
+	/**
+	 * Ricarica tutto l'indice: una query sulle librerie e una sulle location.
+	 */
+	public void reload() {
+		Map<String, Library> libs = new HashMap<>();
+		libraries.find().forEach(l -> libs.put(l.getId(), l));
+
+		List<String> locationIds = libs.values().stream().map(Library::getLocationId).distinct().toList();
+		Map<String, Location> locs = new HashMap<>();
+		locations.find(Filters.in(IRepository.ID, locationIds)).forEach(l -> locs.put(l.getId(), l));
+
+		Map<String, LibraryPoint> fresh = new HashMap<>();
+		for (Library lib : libs.values()) {
+			LibraryPoint point = toPoint(lib, locs.get(lib.getLocationId()));
+			if (point != null) {
+				fresh.put(point.libraryId(), point);
+			}
+		}
+
+		synchronized (this) {
+			byId = fresh;
+			publish();
+		}
+
+		LOG.debugf("indice geografico librerie caricato: %d punti", fresh.size());
+	}
+
+	/**
+	 * Rilegge una singola libreria da Mongo (o la rimuove se non esiste piu').
+	 */
+	public void refreshLibrary(String libraryId) {
+		if (libraryId == null) return;
+
+		Library lib = libraries.find(Filters.eq(IRepository.ID, libraryId)).first();
+		if (lib == null) {
+			removeLibrary(libraryId);
+			return;
+		}
+
+		Location loc = locations.find(Filters.eq(IRepository.ID, lib.getLocationId())).first();
+		LibraryPoint point = toPoint(lib, loc);
+
+		synchronized (this) {
+			if (point == null) {
+				byId.remove(libraryId);
+			} else {
+				byId.put(libraryId, point);
+			}
+			publish();
+		}
+	}
+
+	public synchronized void removeLibrary(String libraryId) {
+		if (byId.remove(libraryId) != null) {
+			publish();
+		}
+	}
+
+	public Optional<LibraryPoint> get(String libraryId) {
+		if (libraryId == null) return Optional.empty();
+		return Optional.ofNullable(current().byId().get(libraryId));
+	}
+
+	/**
+	 * Librerie entro radiusKm, ordinate per distanza crescente (a parita' per id).
+	 * @param visibilities visibilita' ammesse
+	 * @param excludeOwnerId proprietario da escludere, puo' essere null
+	 */
+	public List<Hit> within(double lat, double lng, double radiusKm, Collection<String> visibilities, String excludeOwnerId) {
+		Snapshot snap = current();
+		LibraryPoint[] points = snap.points();
+		List<Hit> hits = new ArrayList<>();
+
+		snap.grid().within(lat, lng, radiusKm, (i, d) -> {
+			LibraryPoint p = points[i];
+			if (!visibilities.contains(p.visibility())) return;
+			if (excludeOwnerId != null && excludeOwnerId.equals(p.ownerId())) return;
+			hits.add(new Hit(p.libraryId(), p.ownerId(), p.lat(), p.lng(), d));
+		});
+
+		hits.sort(BY_DISTANCE);
+		return hits;
+	}
+
+	/**
+	 * Librerie dentro il rettangolo della vista, con gli stessi filtri di within.
+	 */
+	public List<LibraryPoint> inBox(double minLat, double minLng, double maxLat, double maxLng, Collection<String> visibilities, String excludeOwnerId) {
+		Snapshot snap = current();
+		LibraryPoint[] points = snap.points();
+		List<LibraryPoint> found = new ArrayList<>();
+
+		snap.grid().withinBox(minLat, minLng, maxLat, maxLng, (i, d) -> {
+			LibraryPoint p = points[i];
+			if (!visibilities.contains(p.visibility())) return;
+			if (excludeOwnerId != null && excludeOwnerId.equals(p.ownerId())) return;
+			found.add(p);
+		});
+
+		return found;
+	}
+
+	public int size() {
+		return current().points().length;
+	}
+
+	private Snapshot current() {
+		Snapshot snap = snapshot;
+		if (snap == null) {
+			// avvio fallito (es. Mongo non raggiungibile): riproviamo alla prima richiesta
+			reload();
+			snap = snapshot;
+		}
+		return snap;
+	}
+
+	// chiamato sempre dentro synchronized(this)
+	private void publish() {
+		LibraryPoint[] points = byId.values().toArray(new LibraryPoint[0]);
+		double[] lat = new double[points.length];
+		double[] lng = new double[points.length];
+		for (int i = 0; i < points.length; i++) {
+			lat[i] = points[i].lat();
+			lng[i] = points[i].lng();
+		}
+		snapshot = new Snapshot(points, new GeoGrid(lat, lng, cellSizeDeg), Map.copyOf(byId));
+	}
+
+	private LibraryPoint toPoint(Library lib, Location loc) {
+		if (loc == null || loc.getLocation() == null) {
+			return null;
+		}
+		List<Double> coords = loc.getLocation().getPosition().getValues();
+		return new LibraryPoint(lib.getId(), lib.getLocationId(), lib.getOwnerId(), lib.getVisibility(), coords.get(1), coords.get(0));
+	}
+
+	/* ---------- change stream ---------- */
+
+	private void watch(String collection, Consumer<ChangeStreamDocument<Document>> handler) {
+		Thread.ofVirtual().name("geo-index-" + collection).start(() -> {
+			MongoCollection<Document> col = mongoClient.getDatabase(databaseName).getCollection(collection);
+			boolean reconnect = false;
+
+			while (running) {
+				MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = null;
+				try {
+					cursor = col.watch().fullDocument(FullDocument.UPDATE_LOOKUP).cursor();
+					synchronized (cursors) {
+						cursors.add(cursor);
+					}
+					LOG.infof("change stream su %s attivo", collection);
+
+					// eventi persi mentre lo stream era giu'
+					if (reconnect) reload();
+					reconnect = true;
+
+					while (running) {
+						handler.accept(cursor.next());
+					}
+
+				} catch (MongoCommandException e) {
+					if (e.getErrorCode() == CHANGE_STREAM_NOT_SUPPORTED) {
+						LOG.warnf("change stream non supportati su %s, resta il ricaricamento periodico", collection);
+						return;
+					}
+					retryLater(collection, e);
+				} catch (Exception e) {
+					if (!running) return;
+					retryLater(collection, e);
+				} finally {
+					if (cursor != null) {
+						synchronized (cursors) {
+							cursors.remove(cursor);
+						}
+						try {
+							cursor.close();
+						} catch (Exception ignored) {
+							// gia' chiuso
+						}
+					}
+				}
+			}
+		});
+	}
+
+	private void retryLater(String collection, Exception e) {
+		LOG.warnf("change stream su %s interrotto (%s), nuovo tentativo tra %d ms", collection, e.getMessage(), RETRY_MILLIS);
+		try {
+			Thread.sleep(RETRY_MILLIS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			running = false;
+		}
+	}
+
+	private void onLibraryChange(ChangeStreamDocument<Document> ev) {
+		String id = keyOf(ev);
+		if (id == null) {
+			reload();
+			return;
+		}
+
+		switch (ev.getOperationType()) {
+		case INSERT, UPDATE, REPLACE -> refreshLibrary(id);
+		case DELETE -> removeLibrary(id);
+		default -> reload(); // drop, rename, invalidate
+		}
+	}
+
+	private void onLocationChange(ChangeStreamDocument<Document> ev) {
+		String id = keyOf(ev);
+		if (id == null) {
+			reload();
+			return;
+		}
+
+		switch (ev.getOperationType()) {
+		// una location nuova non e' ancora collegata: arrivera' l'evento della libreria
+		case INSERT -> { }
+		case UPDATE, REPLACE, DELETE -> {
+			List<String> affected = new ArrayList<>();
+			synchronized (this) {
+				byId.values().stream().filter(p -> p.locationId().equals(id)).forEach(p -> affected.add(p.libraryId()));
+			}
+			affected.forEach(this::refreshLibrary);
+		}
+		default -> reload();
+		}
+	}
+
+	private static String keyOf(ChangeStreamDocument<Document> ev) {
+		if (ev.getDocumentKey() == null) return null;
+		BsonValue id = ev.getDocumentKey().get(IRepository.ID);
+		return (id != null && id.isString()) ? id.asString().getValue() : null;
+	}
+}
@@ -45,6 +45,15 @@ public class LibraryService {
 	@Inject
 	LocationsRepository locationsRepository;
 
+	@Inject
+	BookMapService bookMapService;
+
+	@Inject
+	UserStatsService userStatsService;
+
+	@Inject
+	ViewCounterService viewCounterService;
+
 	/**
 	 * Crea una nuova libreria e la collega all'utente e alla sua posizione.
 	 * @return id libreria creata
@@ -133,7 +142,14 @@ public class LibraryService {
 		library.setModifiedAt(now);
 
 		try {
-			return librariesRepository.update(library);
+			boolean updated = librariesRepository.update(library);
+			if (updated) {
+				// nome, visibilita', blur e posizione sono copiati nel read model della mappa
+				bookMapService.syncLibrary(library.getId());
+				// nome e visibilita' entrano nelle statistiche del profilo
+				userStatsService.reconcileQuietly(library.getOwnerId());
+			}
+			return updated;
 		} catch (Exception e) {
 			throw new RuntimeException("fallimento modifica libreria db", e);
 		}
@@ -170,7 +186,7 @@ public class LibraryService {
 		LOG.debug("current user id: " + currentUserId);
 		LOG.debug("is owner: " + isOwner);
 
-		librariesRepository.addView(libraryId);
+		viewCounterService.addLibraryView(libraryId);
 
 		// gestione visibilita
 		if (!isOwner && "private".equals(lib.getVisibility())) {
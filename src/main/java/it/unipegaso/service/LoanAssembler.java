@@ -0,0 +1,67 @@
+package it.unipegaso.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import it.unipegaso.api.dto.LoanDTO;
+import it.unipegaso.database.UsersRepository;
+import it.unipegaso.database.model.Loan;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Costruisce i LoanDTO di una lista di prestiti risolvendo gli username
+ * di richiedenti e proprietari con una sola query, invece di due per prestito.
+ */
+@ApplicationScoped
+public class LoanAssembler {
+
+	public static final String ANONYMOUS = "utente anonimo";
+
+	@Inject
+	UsersRepository userRepository;
+
+	public List<LoanDTO> toDTOs(List<Loan> loans) {
+		Map<String, String> usernames = usernames(loans);
+
+		List<LoanDTO> result = new ArrayList<>(loans.size());
+		for (Loan loan : loans) {
+			result.add(toDTO(loan, usernames));
+		}
+		return result;
+	}
+
+	/**
+	 * Username di tutti gli utenti coinvolti nei prestiti (richiedenti e proprietari), per id.
+	 */
+	public Map<String, String> usernames(List<Loan> loans) {
+		Set<String> userIds = new HashSet<>();
+		for (Loan loan : loans) {
+			userIds.add(loan.getRequesterId());
+			userIds.add(loan.getOwnerId());
+		}
+		return userRepository.getUsernames(userIds);
+	}
+
+	private LoanDTO toDTO(Loan loan, Map<String, String> usernames) {
+		String requesterUsername = usernames.getOrDefault(loan.getRequesterId(), ANONYMOUS);
+		String ownerUsername = usernames.getOrDefault(loan.getOwnerId(), ANONYMOUS);
+
+		return new LoanDTO(
+				loan.getId(),
+				loan.getTitle(),
+				loan.getRequesterId(),
+				loan.getOwnerId(),
+				loan.getCopyId(),
+				loan.getStatus(),
+				loan.getLoanStartDate(),
+				loan.getExpectedReturnDate(),
+				loan.getOwnerNotes(),
+				ownerUsername,
+				requesterUsername,
+				loan.getUpdatedAt());
+	}
+}
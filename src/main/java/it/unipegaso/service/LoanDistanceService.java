@@ -0,0 +1,154 @@
+package it.unipegaso.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+import io.quarkus.scheduler.Scheduled;
+import it.unipegaso.database.CopiesRepository;
+import it.unipegaso.database.IRepository;
+import it.unipegaso.database.LibrariesRepository;
+import it.unipegaso.database.LoanDistanceRepository;
+import it.unipegaso.database.LoansRepository;
+import it.unipegaso.database.LocationsRepository;
+import it.unipegaso.database.UsersRepository;
+import it.unipegaso.database.model.Copy;
+import it.unipegaso.database.model.Library;
+import it.unipegaso.database.model.Loan;
+import it.unipegaso.database.model.Location;
+import it.unipegaso.database.model.User;
+import it.unipegaso.service.geo.GeoGrid;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Distanza percorsa da un libro in prestito: dalla libreria del proprietario alla casa del richiedente.
+ * Viene calcolata una volta, alla restituzione, e salvata sul prestito; i massimi per proprietario
+ * e globale sono mantenuti in LoanDistanceRepository. Il backfill completa i prestiti restituiti
+ * prima che il campo esistesse.
+ */
+@ApplicationScoped
+public class LoanDistanceService {
+
+	private static final Logger LOG = Logger.getLogger(LoanDistanceService.class);
+
+	@Inject
+	LoansRepository loansRepository;
+
+	@Inject
+	CopiesRepository copiesRepository;
+
+	@Inject
+	LibrariesRepository librariesRepository;
+
+	@Inject
+	UsersRepository usersRepository;
+
+	@Inject
+	LocationsRepository locationsRepository;
+
+	@Inject
+	LoanDistanceRepository loanDistanceRepository;
+
+	@ConfigProperty(name = "loan-distance.backfill-batch", defaultValue = "500")
+	int backfillBatch;
+
+	/**
+	 * Da chiamare quando il prestito passa a RETURNED.
+	 */
+	public void recordReturned(Loan loan) {
+		record(List.of(loan));
+	}
+
+	@Scheduled(every = "{loan-distance.backfill-every}", delayed = "30s", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+	void backfill() {
+		try {
+			int total = 0;
+			List<Loan> batch;
+
+			// ogni blocco scrive distance_km su tutti i suoi prestiti, quindi il ciclo termina
+			while (!(batch = loansRepository.findFinishedWithoutDistance(backfillBatch)).isEmpty()) {
+				record(batch);
+				total += batch.size();
+			}
+
+			if (total > 0) {
+				LOG.infof("backfill distanze prestiti completato: %d prestiti", total);
+			}
+		} catch (Exception e) {
+			LOG.error("errore backfill distanze prestiti", e);
+		}
+	}
+
+	/*
+	 * Copie, librerie, richiedenti e posizioni del blocco vengono letti con una query $in ciascuno.
+	 */
+	private void record(List<Loan> loans) {
+		Map<String, Copy> copies = new HashMap<>();
+		copiesRepository.find(Filters.in(IRepository.ID, loans.stream().map(Loan::getCopyId).filter(Objects::nonNull).distinct().toList()))
+		.projection(Projections.include("libraryId"))
+		.forEach(c -> copies.put(c.getId(), c));
+
+		Map<String, Library> libraries = new HashMap<>();
+		librariesRepository.find(Filters.in(IRepository.ID, copies.values().stream().map(Copy::getLibraryId).filter(Objects::nonNull).distinct().toList()))
+		.projection(Projections.include("locationId"))
+		.forEach(l -> libraries.put(l.getId(), l));
+
+		Map<String, User> requesters = new HashMap<>();
+		usersRepository.find(Filters.in(IRepository.ID, loans.stream().map(Loan::getRequesterId).filter(Objects::nonNull).distinct().toList()))
+		.projection(Projections.include("locationId"))
+		.forEach(u -> requesters.put(u.getId(), u));
+
+		List<String> locationIds = new ArrayList<>();
+		libraries.values().forEach(l -> locationIds.add(l.getLocationId()));
+		requesters.values().forEach(u -> locationIds.add(u.getLocationId()));
+
+		Map<String, Location> locations = new HashMap<>();
+		locationsRepository.find(Filters.in(IRepository.ID, locationIds.stream().filter(Objects::nonNull).distinct().toList()))
+		.forEach(l -> locations.put(l.getId(), l));
+
+		Map<String, Double> distances = new HashMap<>();
+		Map<String, Double> maxByOwner = new HashMap<>();
+
+		for (Loan loan : loans) {
+			Copy copy = copies.get(loan.getCopyId());
+			Library library = (copy != null) ? libraries.get(copy.getLibraryId()) : null;
+			User requester = requesters.get(loan.getRequesterId());
+
+			Double km = null;
+			if (library != null && requester != null) {
+				km = distance(locations.get(library.getLocationId()), locations.get(requester.getLocationId()));
+			}
+
+			loan.setDistanceKm(km);
+			distances.put(loan.getId(), km);
+
+			if (km != null) {
+				maxByOwner.merge(loan.getOwnerId(), km, Math::max);
+			}
+		}
+
+		loansRepository.setDistances(distances);
+		maxByOwner.forEach(loanDistanceRepository::raise);
+	}
+
+	private static Double distance(Location from, Location to) {
+		if (from == null || to == null || from.getLocation() == null || to.getLocation() == null) {
+			return null;
+		}
+
+		List<Double> a = from.getLocation().getPosition().getValues();
+		List<Double> b = to.getLocation().getPosition().getValues();
+
+		// GeoJSON: [lng, lat]
+		return GeoGrid.haversine(a.get(1), a.get(0), b.get(1), b.get(0));
+	}
+}
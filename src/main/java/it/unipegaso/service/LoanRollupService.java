@@ -0,0 +1,240 @@
+package it.unipegaso.service;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.mongodb.client.model.Projections;
+
+import io.quarkus.runtime.StartupEvent;
+import it.unipegaso.database.LoanRollupRepository;
+import it.unipegaso.database.LoanRollupRepository.BucketKey;
+import it.unipegaso.database.LoansRepository;
+import it.unipegaso.database.model.Loan;
+import it.unipegaso.database.model.LoanStatus;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+/**
+ * Trend dei prestiti letti da loan_rollups.
+ * Ogni evento (richiesta creata, prestito iniziato, libro restituito) incrementa il bucket
+ * del giorno, della settimana, del mese e dell'anno, sia per il proprietario sia globale:
+ * un grafico costa tanti documenti quanti sono i bucket, qualunque sia il numero di prestiti.
+ * Bucket in UTC, settimane da lunedi'.
+ */
+@ApplicationScoped
+public class LoanRollupService {
+
+	private static final Logger LOG = Logger.getLogger(LoanRollupService.class);
+
+	public static final String REQUESTS = "requests";
+	public static final String STARTED = "started";
+	public static final String RETURNED = "returned";
+
+	private static final Set<String> METRICS = Set.of(REQUESTS, STARTED, RETURNED);
+
+	private static final String SCOPE_GLOBAL = "global";
+	private static final String SCOPE_OWNER = "owner";
+
+	private static final DateTimeFormatter DAY_MONTH = DateTimeFormatter.ofPattern("dd/MM");
+	private static final DateTimeFormatter DAY_MONTH_YEAR = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+	public enum Granularity {
+		DAY, WEEK, MONTH, YEAR;
+
+		ZonedDateTime truncate(Instant instant) {
+			ZonedDateTime day = instant.atZone(ZoneOffset.UTC).truncatedTo(ChronoUnit.DAYS);
+			return switch (this) {
+				case DAY -> day;
+				case WEEK -> day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+				case MONTH -> day.withDayOfMonth(1);
+				case YEAR -> day.withDayOfYear(1);
+			};
+		}
+
+		ZonedDateTime plus(ZonedDateTime start, long n) {
+			return switch (this) {
+				case DAY -> start.plusDays(n);
+				case WEEK -> start.plusWeeks(n);
+				case MONTH -> start.plusMonths(n);
+				case YEAR -> start.plusYears(n);
+			};
+		}
+
+		// stesse etichette dei vecchi grafici: "3/2025" per i mesi, "03/03 - 09/03" per le settimane
+		String label(ZonedDateTime start) {
+			return switch (this) {
+				case DAY -> DAY_MONTH_YEAR.format(start);
+				case WEEK -> DAY_MONTH.format(start) + " - " + DAY_MONTH.format(start.plusDays(6));
+				case MONTH -> start.getMonthValue() + "/" + start.getYear();
+				case YEAR -> String.valueOf(start.getYear());
+			};
+		}
+
+		String dbValue() {
+			return name().toLowerCase();
+		}
+
+		public static Granularity from(String value) {
+			if (value == null) {
+				throw new IllegalArgumentException("granularita' mancante");
+			}
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	@Inject
+	LoanRollupRepository loanRollupRepository;
+
+	@Inject
+	LoansRepository loansRepository;
+
+	@ConfigProperty(name = "loan-rollups.rebuild-on-startup", defaultValue = "false")
+	boolean rebuildOnStartup;
+
+	@ConfigProperty(name = "loan-rollups.max-buckets", defaultValue = "400")
+	int maxBuckets;
+
+	void onStart(@Observes StartupEvent ev) {
+		try {
+			loanRollupRepository.ensureIndexes();
+
+			// primo avvio con prestiti gia' presenti: i contatori partono dallo storico
+			if (rebuildOnStartup || (loanRollupRepository.count() == 0 && loansRepository.count() > 0)) {
+				rebuild();
+			}
+		} catch (Exception e) {
+			LOG.error("errore ricostruzione loan_rollups all'avvio", e);
+		}
+	}
+
+	public void recordRequest(Loan loan) {
+		record(loan.getOwnerId(), REQUESTS, loan.getCreatedAt());
+	}
+
+	public void recordStarted(Loan loan) {
+		record(loan.getOwnerId(), STARTED, loan.getLoanStartDate());
+	}
+
+	public void recordReturned(Loan loan) {
+		record(loan.getOwnerId(), RETURNED, loan.getActualReturnDate());
+	}
+
+	/**
+	 * Ultimi n bucket fino a quello corrente compreso. ownerId null = globale.
+	 */
+	public Map<String, Long> lastBuckets(String ownerId, Granularity granularity, String metric, int n) {
+		return lastBuckets(ownerId, granularity, metric, n, Instant.now());
+	}
+
+	public Map<String, Long> lastBuckets(String ownerId, Granularity granularity, String metric, int n, Instant to) {
+		Instant from = granularity.plus(granularity.truncate(to), -(n - 1)).toInstant();
+		return trend(ownerId, granularity, metric, from, to);
+	}
+
+	/**
+	 * Valori per bucket tra from e to (estremi inclusi nel rispettivo bucket), con zero dove non ci sono eventi.
+	 */
+	public Map<String, Long> trend(String ownerId, Granularity granularity, String metric, Instant from, Instant to) {
+		if (!METRICS.contains(metric)) {
+			throw new IllegalArgumentException("metrica non valida: " + metric);
+		}
+
+		ZonedDateTime first = granularity.truncate(from);
+		ZonedDateTime end = granularity.plus(granularity.truncate(to), 1);
+
+		if (!first.isBefore(end)) {
+			throw new IllegalArgumentException("intervallo vuoto");
+		}
+
+		List<ZonedDateTime> buckets = new ArrayList<>();
+		for (ZonedDateTime b = first; b.isBefore(end); b = granularity.plus(b, 1)) {
+			if (buckets.size() == maxBuckets) {
+				throw new IllegalArgumentException("troppi bucket, massimo " + maxBuckets);
+			}
+			buckets.add(b);
+		}
+
+		String scope = ownerId == null ? SCOPE_GLOBAL : SCOPE_OWNER;
+		String owner = ownerId == null ? LoanRollupRepository.GLOBAL : ownerId;
+
+		Map<Date, Long> stored = loanRollupRepository.range(scope, owner, granularity.dbValue(),
+				Date.from(first.toInstant()), Date.from(end.toInstant()), metric);
+
+		Map<String, Long> trend = new LinkedHashMap<>();
+		for (ZonedDateTime b : buckets) {
+			trend.put(granularity.label(b), stored.getOrDefault(Date.from(b.toInstant()), 0L));
+		}
+		return trend;
+	}
+
+	/**
+	 * Ricalcola tutti i contatori dai prestiti. Pensato per l'avvio:
+	 * gli eventi registrati durante la ricostruzione potrebbero andare persi.
+	 */
+	public void rebuild() {
+		Map<BucketKey, Map<String, Long>> counters = new HashMap<>();
+
+		loansRepository.find(new Document())
+			.projection(Projections.include("owner_id", "status", "created_at", "loan_start_date", "actual_return_date"))
+			.forEach(loan -> {
+				accumulate(counters, loan.getOwnerId(), REQUESTS, loan.getCreatedAt());
+				accumulate(counters, loan.getOwnerId(), STARTED, loan.getLoanStartDate());
+				if (LoanStatus.RETURNED.toString().equals(loan.getStatus())) {
+					accumulate(counters, loan.getOwnerId(), RETURNED, loan.getActualReturnDate());
+				}
+			});
+
+		loanRollupRepository.replaceAll(counters);
+	}
+
+	// le statistiche non devono bloccare il flusso del prestito: in caso di errore si logga e basta
+	private void record(String ownerId, String metric, Date at) {
+		if (at == null) {
+			return;
+		}
+
+		try {
+			loanRollupRepository.increment(keys(ownerId, at), metric, 1);
+		} catch (Exception e) {
+			LOG.errorf(e, "errore aggiornamento loan_rollups (%s)", metric);
+		}
+	}
+
+	private static void accumulate(Map<BucketKey, Map<String, Long>> counters, String ownerId, String metric, Date at) {
+		if (at == null) {
+			return;
+		}
+		for (BucketKey key : keys(ownerId, at)) {
+			counters.computeIfAbsent(key, k -> new HashMap<>()).merge(metric, 1L, Long::sum);
+		}
+	}
+
+	private static List<BucketKey> keys(String ownerId, Date at) {
+		List<BucketKey> keys = new ArrayList<>();
+		for (Granularity g : Granularity.values()) {
+			Date start = Date.from(g.truncate(at.toInstant()).toInstant());
+			keys.add(new BucketKey(SCOPE_GLOBAL, LoanRollupRepository.GLOBAL, g.dbValue(), start));
+			if (ownerId != null) {
+				keys.add(new BucketKey(SCOPE_OWNER, ownerId, g.dbValue(), start));
+			}
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,95 @@
+package it.unipegaso.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import it.unipegaso.api.dto.BookMapDTO;
+
+/**
+ * Cursore opaco per la paginazione keyset di /api/books/nearby.
+ * Contiene l'ultima riga restituita nella chiave di ordinamento della pagina:
+ *  - distance: (distanza, libraryId, copyId)
+ *  - title / author: (titolo o autore, copyId)
+ * Il client lo rimanda cosi' com'e' nel parametro "cursor".
+ */
+public record NearbyCursor(String sort, String key, String libraryId, String copyId) {
+
+	public static final String SORT_DISTANCE = "distance";
+	public static final String SORT_TITLE = "title";
+	public static final String SORT_AUTHOR = "author";
+
+	private static final String SEP = "\u0000";
+	private static final String NULL_KEY = "-";
+	private static final String VALUE_KEY = "+";
+
+	// ordinamenti non riconosciuti ricadono sulla distanza, come prima
+	public static String normalizeSort(String sortBy) {
+		if (SORT_TITLE.equals(sortBy) || SORT_AUTHOR.equals(sortBy)) {
+			return sortBy;
+		}
+		return SORT_DISTANCE;
+	}
+
+	public static NearbyCursor after(String sort, BookMapDTO last) {
+		return switch (sort) {
+		case SORT_TITLE -> new NearbyCursor(sort, last.title(), last.libraryId(), last.id());
+		case SORT_AUTHOR -> new NearbyCursor(sort, last.author(), last.libraryId(), last.id());
+		default -> new NearbyCursor(SORT_DISTANCE, Double.toString(last.distance()), last.libraryId(), last.id());
+		};
+	}
+
+	public double distance() {
+		return Double.parseDouble(key);
+	}
+
+	// ordinamento per distanza: true se la riga (distanza, libreria, copia) viene dopo il cursore
+	public boolean precedes(double distanceKm, String rowLibraryId, String rowCopyId) {
+		int c = Double.compare(distanceKm, distance());
+		if (c == 0) c = rowLibraryId.compareTo(libraryId);
+		if (c == 0) c = rowCopyId.compareTo(copyId);
+		return c > 0;
+	}
+
+	// ordinamento per titolo o autore: true se la riga (chiave, copia) viene dopo il cursore
+	public boolean precedes(String rowKey, String rowCopyId) {
+		int c;
+		if (rowKey == null || key == null) {
+			// i null vengono prima, come in Mongo
+			c = (rowKey == null ? 0 : 1) - (key == null ? 0 : 1);
+		} else {
+			c = rowKey.compareTo(key);
+		}
+		if (c == 0) c = rowCopyId.compareTo(copyId);
+		return c > 0;
+	}
+
+	public String encode() {
+		String k = (key == null) ? NULL_KEY : VALUE_KEY + key;
+		String raw = String.join(SEP, sort, k, libraryId, copyId);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @throws IllegalArgumentException se il cursore e' malformato o appartiene a un altro ordinamento
+	 */
+	public static NearbyCursor decode(String cursor, String expectedSort) {
+		String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+		String[] parts = raw.split(SEP, -1);
+
+		if (parts.length != 4 || parts[1].isEmpty() || parts[3].isEmpty()) {
+			throw new IllegalArgumentException("cursore malformato");
+		}
+		if (!parts[0].equals(expectedSort)) {
+			throw new IllegalArgumentException("cursore generato con un ordinamento diverso");
+		}
+
+		String key = parts[1].startsWith(VALUE_KEY) ? parts[1].substring(1) : null;
+
+		NearbyCursor c = new NearbyCursor(parts[0], key, parts[2], parts[3]);
+		if (SORT_DISTANCE.equals(c.sort())) {
+			if (key == null) throw new IllegalArgumentException("cursore malformato");
+			c.distance(); // NumberFormatException e' gia' una IllegalArgumentException
+		}
+		return c;
+	}
+}
@@ -0,0 +1,140 @@
+package it.unipegaso.service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Function;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.quarkus.runtime.StartupEvent;
+import it.unipegaso.service.geo.GeoGrid;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+/**
+ * Cache dei risultati di /api/books/nearby per utenti vicini tra loro.
+ * La chiave e' una cella di griglia (lato cell-size-deg) piu' il raggio arrotondato
+ * per eccesso e i filtri; il valore e' l'elenco delle copie nel raggio allargato
+ * attorno al centro della cella. Le distanze esatte e la pagina vengono ricalcolate
+ * a ogni richiesta da BookService.
+ *
+ * Oltre al TTL, le scritture su copie e librerie invalidano le celle che coprono
+ * la libreria toccata (invalidateAround).
+ * Metriche: cache_gets, cache_evictions, cache_size con tag cache=nearby_search.
+ */
+@ApplicationScoped
+public class NearbySearchCache {
+
+	private static final Logger LOG = Logger.getLogger(NearbySearchCache.class);
+
+	private static final double KM_PER_DEGREE = GeoGrid.EARTH_RADIUS_KM * Math.PI / 180.0;
+
+	// raggi arrotondati per eccesso al primo gradino; oltre l'ultimo la cella conterrebbe troppe copie
+	private static final double[] RADIUS_BUCKETS = {1, 2, 5, 10};
+
+	@Inject
+	MeterRegistry registry;
+
+	@ConfigProperty(name = "nearby-cache.enabled", defaultValue = "true")
+	boolean enabled;
+
+	@ConfigProperty(name = "nearby-cache.cell-size-deg", defaultValue = "0.01")
+	double cellSizeDeg;
+
+	@ConfigProperty(name = "nearby-cache.max-rows", defaultValue = "200000")
+	long maxRows;
+
+	@ConfigProperty(name = "nearby-cache.ttl", defaultValue = "60s")
+	Duration ttl;
+
+	/**
+	 * Cella + filtri. sort fa parte della chiave perche' per titolo e autore
+	 * l'ordine delle righe e' quello restituito da Mongo.
+	 */
+	public record Key(long cellLat, long cellLng, double radiusKm, String visibility, String excludeUserId, String search, String sort) {}
+
+	/**
+	 * Una copia del risultato: sortKey e' titolo o autore (null per l'ordinamento per distanza).
+	 */
+	public record Row(String copyId, String libraryId, String sortKey) {}
+
+	public record Entry(double centerLat, double centerLng, double radiusKm, List<Row> rows) {}
+
+	private Cache<Key, Entry> cache;
+
+	void onStart(@Observes StartupEvent ev) {
+		cache = Caffeine.newBuilder()
+				.maximumWeight(maxRows)
+				.weigher((Key k, Entry e) -> Math.max(1, e.rows().size()))
+				.expireAfterWrite(ttl)
+				.recordStats()
+				.build();
+
+		CaffeineCacheMetrics.monitor(registry, cache, "nearby_search");
+	}
+
+	public boolean accepts(double radiusKm) {
+		return enabled && cache != null && radiusKm <= RADIUS_BUCKETS[RADIUS_BUCKETS.length - 1];
+	}
+
+	public Key key(double lat, double lng, double radiusKm, String visibility, String excludeUserId, String search, String sort) {
+		double bucket = RADIUS_BUCKETS[RADIUS_BUCKETS.length - 1];
+		for (double b : RADIUS_BUCKETS) {
+			if (radiusKm <= b) {
+				bucket = b;
+				break;
+			}
+		}
+
+		String normalizedSearch = (search == null || search.isBlank()) ? null : search.trim().toLowerCase();
+		String exclude = (excludeUserId == null || excludeUserId.isBlank()) ? null : excludeUserId;
+
+		return new Key(
+				(long) Math.floor(lat / cellSizeDeg),
+				(long) Math.floor(lng / cellSizeDeg),
+				bucket,
+				"logged_in".equals(visibility) ? "logged_in" : "all",
+				exclude,
+				normalizedSearch,
+				sort);
+	}
+
+	/**
+	 * Centro della cella e raggio allargato della meta' diagonale:
+	 * qualunque punto della cella con raggio <= key.radiusKm() e' contenuto qui.
+	 */
+	public double[] area(Key key) {
+		double centerLat = (key.cellLat() + 0.5) * cellSizeDeg;
+		double centerLng = (key.cellLng() + 0.5) * cellSizeDeg;
+		double halfDiagonalKm = cellSizeDeg * KM_PER_DEGREE * Math.sqrt(2) / 2;
+		return new double[] {centerLat, centerLng, key.radiusKm() + halfDiagonalKm};
+	}
+
+	public Entry get(Key key, Function<Key, Entry> loader) {
+		return cache.get(key, loader);
+	}
+
+	/**
+	 * Rimuove le celle il cui raggio allargato contiene il punto (posizione di una libreria modificata).
+	 */
+	public void invalidateAround(double lat, double lng) {
+		if (cache == null) return;
+
+		int before = (int) cache.estimatedSize();
+		cache.asMap().entrySet().removeIf(e ->
+				GeoGrid.haversine(lat, lng, e.getValue().centerLat(), e.getValue().centerLng()) <= e.getValue().radiusKm());
+
+		LOG.debugf("cache nearby invalidata attorno a %.5f,%.5f: %d -> %d celle", lat, lng, before, cache.estimatedSize());
+	}
+
+	public void invalidateAll() {
+		if (cache != null) cache.invalidateAll();
+	}
+}
@@ -0,0 +1,90 @@
+package it.unipegaso.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+/**
+ * Posizione pubblica (sfocata) di una libreria.
+ * Lo spostamento e' deterministico: dipende da libreria, posizione reale e raggio
+ * tramite HMAC con un segreto del server. La stessa libreria compare sempre nello
+ * stesso punto, quindi mediare piu' risposte non restituisce la posizione reale,
+ * e senza il segreto lo spostamento non si puo' ricalcolare.
+ */
+@ApplicationScoped
+public class PrivacyBlurService {
+
+	private static final String HMAC = "HmacSHA256";
+
+	// stesso fattore metri -> gradi usato finora dalla ricerca
+	private static final double METERS_PER_DEGREE = 111000.0;
+
+	@ConfigProperty(name = "privacy.blur-secret")
+	String secret;
+
+	/**
+	 * @return la posizione da mostrare: quella reale se blurRadius <= 0
+	 */
+	public Point fuzz(String libraryId, Point location, int blurRadius) {
+		if (location == null) {
+			return null;
+		}
+		if (blurRadius <= 0) {
+			return location;
+		}
+
+		List<Double> coords = location.getPosition().getValues();
+		double lng = coords.get(0);
+		double lat = coords.get(1);
+
+		byte[] digest = hmac(libraryId + "|" + lng + "|" + lat + "|" + blurRadius);
+		ByteBuffer buf = ByteBuffer.wrap(digest);
+
+		double offset = blurRadius / METERS_PER_DEGREE;
+		double fuzzedLat = lat + (unit(buf.getLong()) * 2 - 1) * offset;
+		double fuzzedLng = lng + (unit(buf.getLong()) * 2 - 1) * offset;
+
+		return new Point(new Position(fuzzedLng, fuzzedLat));
+	}
+
+	/**
+	 * Posizione pubblica [lat, lng] di una riga di book_map: quella salvata se presente,
+	 * altrimenti calcolata al volo (righe scritte prima che il campo esistesse).
+	 */
+	public double[] publicPosition(Document stored, String libraryId, double lat, double lng, int blurRadius) {
+		if (stored != null) {
+			List<?> coords = stored.getList("coordinates", Object.class);
+			return new double[] {((Number) coords.get(1)).doubleValue(), ((Number) coords.get(0)).doubleValue()};
+		}
+
+		List<Double> coords = fuzz(libraryId, new Point(new Position(lng, lat)), blurRadius).getPosition().getValues();
+		return new double[] {coords.get(1), coords.get(0)};
+	}
+
+	// 53 bit casuali -> [0, 1), come Random.nextDouble
+	private static double unit(long bits) {
+		return (bits >>> 11) * 0x1.0p-53;
+	}
+
+	private byte[] hmac(String message) {
+		try {
+			Mac mac = Mac.getInstance(HMAC);
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC));
+			return mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HMAC non disponibile", e);
+		}
+	}
+}
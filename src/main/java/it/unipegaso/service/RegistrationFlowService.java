@@ -2,6 +2,7 @@ package it.unipegaso.service;
 
 import java.util.Map;
 
+import it.unipegaso.database.model.User;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
@@ -11,10 +12,12 @@ public class RegistrationFlowService {
 
     @Inject
     SessionDataService sessionDataService;
+
+    @Inject
+    SessionPrincipalService sessionPrincipalService;
     
     private static final String FIELD_EMAIL = "email";
     private static final String FIELD_USERNAME = "username";
-    private static final String FIELD_USER_ID = "userId"; 
     private static final int OTP_SESSION_DURATION_SECONDS = 5 * 60; // 5 minuti per OTP    
 
     
@@ -37,16 +40,13 @@ public class RegistrationFlowService {
    
     public void deleteSession(String sessionId) {
         sessionDataService.delete(sessionId);
+        sessionPrincipalService.invalidate(sessionId);
     }
 
 
-    public void saveAuthenticatedUser(String sessionId, String userId, String username, int maxAgeSeconds) {
-        Map<String, String> authData = Map.of(
-            FIELD_USER_ID, userId,
-            FIELD_USERNAME, username
-        );
-        
-        // Salvataggio con scadenza lunga per l'autenticazione
-        sessionDataService.save(sessionId, authData, maxAgeSeconds); 
+    public void saveAuthenticatedUser(String sessionId, User user, int maxAgeSeconds) {
+        // Salvataggio con scadenza lunga per l'autenticazione: id, username ed email,
+        // cosi' gli endpoint che chiedono solo l'identita' non leggono l'utente da Mongo
+        sessionPrincipalService.store(sessionId, user, maxAgeSeconds);
     }
 }
\ No newline at end of file
@@ -0,0 +1,9 @@
+package it.unipegaso.service;
+
+/**
+ * Identita' dell'utente autenticato, letta dalla sessione senza passare da Mongo.
+ * Contiene solo i campi che la maggior parte degli endpoint usa; per il resto
+ * c'e' UserService.getUserFromSession.
+ */
+public record SessionPrincipal(String id, String username, String email) {
+}
@@ -0,0 +1,113 @@
+package it.unipegaso.service;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import it.unipegaso.database.model.User;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Principal della sessione: userId, username ed email sono salvati nell'hash Redis
+ * della sessione al login, e una near-cache locale con TTL breve evita anche
+ * l'HGETALL per le richieste ravvicinate della stessa sessione.
+ *
+ * Logout ed eliminazione dell'account invalidano la near-cache di questa istanza;
+ * sulle altre la voce scade dopo session-principal.local-ttl.
+ * Metriche: cache_gets, cache_size con tag cache=session_principal.
+ */
+@ApplicationScoped
+public class SessionPrincipalService {
+
+	public static final String FIELD_USER_ID = "userId";
+	public static final String FIELD_USERNAME = "username";
+	public static final String FIELD_EMAIL = "email";
+
+	@Inject
+	SessionDataService sessionDataService;
+
+	@Inject
+	MeterRegistry registry;
+
+	@ConfigProperty(name = "session-principal.local-ttl", defaultValue = "30s")
+	Duration localTtl;
+
+	@ConfigProperty(name = "session-principal.local-max-size", defaultValue = "10000")
+	long localMaxSize;
+
+	private Cache<String, SessionPrincipal> local;
+
+	@PostConstruct
+	void initCache() {
+		local = Caffeine.newBuilder()
+				.maximumSize(localMaxSize)
+				.expireAfterWrite(localTtl)
+				.recordStats()
+				.build();
+
+		CaffeineCacheMetrics.monitor(registry, local, "session_principal");
+	}
+
+	public void store(String sessionId, User user, int maxAgeSeconds) {
+		sessionDataService.save(sessionId, toFields(user), maxAgeSeconds);
+		local.put(sessionId, toPrincipal(user));
+	}
+
+	/**
+	 * Aggiorna i campi di una sessione gia' esistente (es. cambio username), senza toccare il TTL.
+	 */
+	public void update(String sessionId, User user) {
+		toFields(user).forEach((field, value) -> sessionDataService.updateField(sessionId, field, value));
+		local.put(sessionId, toPrincipal(user));
+	}
+
+	/**
+	 * @return vuoto se la sessione non esiste o non e' una sessione autenticata (es. flusso OTP)
+	 */
+	public Optional<SessionPrincipal> get(String sessionId) {
+		SessionPrincipal cached = local.getIfPresent(sessionId);
+		if (cached != null) {
+			return Optional.of(cached);
+		}
+
+		Map<String, String> fields = sessionDataService.getAll(sessionId);
+		String userId = fields.get(FIELD_USER_ID);
+		String username = fields.get(FIELD_USERNAME);
+
+		if (userId == null || username == null) {
+			return Optional.empty();
+		}
+
+		SessionPrincipal principal = new SessionPrincipal(userId, username, fields.get(FIELD_EMAIL));
+		local.put(sessionId, principal);
+		return Optional.of(principal);
+	}
+
+	public void invalidate(String sessionId) {
+		local.invalidate(sessionId);
+	}
+
+	private static SessionPrincipal toPrincipal(User user) {
+		return new SessionPrincipal(user.getId(), user.getUsername(), user.getEmail());
+	}
+
+	private static Map<String, String> toFields(User user) {
+		Map<String, String> fields = new HashMap<>();
+		fields.put(FIELD_USER_ID, user.getId());
+		fields.put(FIELD_USERNAME, user.getUsername());
+		if (user.getEmail() != null) {
+			fields.put(FIELD_EMAIL, user.getEmail());
+		}
+		return fields;
+	}
+}
@@ -0,0 +1,92 @@
+package it.unipegaso.service;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Esegue in parallelo, un virtual thread ciascuna, le query indipendenti di una pagina statistiche.
+ * La latenza diventa quella della query piu' lenta invece della somma.
+ *
+ * Ogni query ha un timeout contato dal momento in cui parte. Le query opzionali (grafici, classifiche)
+ * in caso di errore o timeout restituiscono il valore di ripiego e la risposta esce parziale;
+ * quelle obbligatorie propagano l'errore.
+ *
+ * Da usare in un try-with-resources: alla chiusura le query non ancora lette vengono interrotte.
+ */
+public final class StatsFanOut implements AutoCloseable {
+
+	private static final Logger LOG = Logger.getLogger(StatsFanOut.class);
+
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	private final Duration timeout;
+
+	public StatsFanOut(Duration timeout) {
+		this.timeout = timeout;
+	}
+
+	public final class Query<T> {
+
+		private final String name;
+		private final Future<T> future;
+		private final long deadline;
+		private final boolean optional;
+		private final T fallback;
+
+		private Query(String name, Supplier<T> supplier, boolean optional, T fallback) {
+			this.name = name;
+			this.optional = optional;
+			this.fallback = fallback;
+			this.deadline = System.nanoTime() + timeout.toNanos();
+			this.future = executor.submit(supplier::get);
+		}
+
+		public T get() {
+			try {
+				return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				return fail(new IllegalStateException("timeout query statistiche " + name + " (" + timeout.toMillis() + " ms)"));
+			} catch (ExecutionException e) {
+				return fail(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return fail(e);
+			}
+		}
+
+		private T fail(Throwable cause) {
+			if (!optional) {
+				throw (cause instanceof RuntimeException re) ? re : new IllegalStateException("query statistiche " + name + " fallita", cause);
+			}
+			LOG.warnf("query statistiche %s non disponibile, risposta parziale: %s", name, cause.getMessage());
+			return fallback;
+		}
+	}
+
+	/**
+	 * Query senza la quale la risposta non ha senso: errori e timeout vengono propagati da get().
+	 */
+	public <T> Query<T> required(String name, Supplier<T> supplier) {
+		return new Query<>(name, supplier, false, null);
+	}
+
+	/**
+	 * Query di cui si puo' fare a meno: errori e timeout restituiscono fallback.
+	 */
+	public <T> Query<T> optional(String name, Supplier<T> supplier, T fallback) {
+		return new Query<>(name, supplier, true, fallback);
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+}
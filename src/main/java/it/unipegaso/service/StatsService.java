@@ -1,13 +1,14 @@
 package it.unipegaso.service;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
 import com.mongodb.client.MongoClient;
@@ -24,12 +25,13 @@ import it.unipegaso.api.dto.UserStatsDTO;
 import it.unipegaso.database.BooksRepository;
 import it.unipegaso.database.CopiesRepository;
 import it.unipegaso.database.LibrariesRepository;
+import it.unipegaso.database.LoanDistanceRepository;
 import it.unipegaso.database.LoansRepository;
-import it.unipegaso.database.LocationsRepository;
+import it.unipegaso.database.Lookups;
+import it.unipegaso.database.UserStatsRepository.UserStats;
 import it.unipegaso.database.UsersRepository;
-import it.unipegaso.database.model.Library;
-import it.unipegaso.database.model.Loan;
 import it.unipegaso.database.model.User;
+import it.unipegaso.service.LoanRollupService.Granularity;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
@@ -49,69 +51,113 @@ public class StatsService {
 	@Inject 
 	UsersRepository usersRepository;
 
-	@Inject 
-	LocationsRepository locationsRepository;
+	@Inject
+	BooksRepository booksRepository;
 
 	@Inject
-	LibraryService libraryService;
+	MongoClient mongoClient;
 
 	@Inject
-	BooksRepository booksRepository;
+	LoanDistanceRepository loanDistanceRepository;
 
 	@Inject
-	MongoClient mongoClient;
+	LoanRollupService loanRollupService;
+
+	@Inject
+	UserStatsService userStatsService;
 
 	private static final Logger LOG = Logger.getLogger(StatsService.class);
 
-	public UserStatsDTO getAllUserStats(String userId, boolean isOwner, boolean isLogged) {
+	// finestre dei grafici di trend nelle pagine statistiche
+	private static final int TREND_MONTHS = 6;
+	private static final int TREND_WEEKS = 4;
+	// voci nelle classifiche del profilo (titoli, richiedenti)
+	private static final int TOP_CHART = 5;
+
+	// grafico mostrato quando la sua query fallisce o scade
+	private static final ChartData EMPTY_CHART = new ChartData(List.of(), List.of());
+
+	@ConfigProperty(name = "stats.query-timeout", defaultValue = "3s")
+	Duration queryTimeout;
+
+	/**
+	 * Statistiche del profilo da user_stats: chi non e' il proprietario vede solo i dati delle librerie non private.
+	 */
+	public UserStatsDTO getAllUserStats(String userId, boolean isProfileOwner) {
 
 		LOG.debug("******** USER STATS ************");
-		// Conteggi base
-		long myBooks = libraryService.countCopies(userId, true);
-		long loansOut = loansRepository.count(userId, true);
-		long loansIn = loansRepository.count(userId, false);
-
-		// Analisi Personali
-
-		List<String> userLibIds = librariesRepository.getUserLibIds(userId, isLogged, isOwner);
-		String topTag = copiesRepository.findTopTagByLibraryIds(userLibIds);
-
-		String bffId = loansRepository.findTopPartnerId(userId);
-		
-		String partner = "nessuno";
-		
-		if(bffId != null) {
-			
-			Optional<User> op = usersRepository.get(bffId);
-			
-			if(op.isPresent()) {
-				
-				User user = op.get();
-				
-				partner = user.getUsername() + "_" + user.getId();
-			}
-			
+
+		try (StatsFanOut fanOut = new StatsFanOut(queryTimeout)) {
+
+			// distanza e trend non dipendono da user_stats: partono insieme alla sua lettura
+			StatsFanOut.Query<UserStats> statsQuery = fanOut.required("user_stats", () -> userStatsService.get(userId));
+			StatsFanOut.Query<Double> maxDistQuery = fanOut.optional("distanza massima", () -> loanDistanceRepository.getMax(userId), 0.0);
+			StatsFanOut.Query<Map<String, Long>> trendQuery = fanOut.optional("trend prestiti",
+					() -> loanRollupService.lastBuckets(userId, Granularity.MONTH, LoanRollupService.STARTED, TREND_MONTHS), Map.of());
+
+			UserStats stats = statsQuery.get();
+
+			return toUserStats(stats, isProfileOwner, fanOut, maxDistQuery.get(), trendQuery.get());
 		}
+	}
+
+	private UserStatsDTO toUserStats(UserStats stats, boolean isProfileOwner, StatsFanOut fanOut, double maxDist, Map<String, Long> trendMap) {
+
+		Map<String, Long> tags = isProfileOwner ? stats.tags() : stats.tagsVisible();
+		Map<String, Long> bookViews = isProfileOwner ? stats.bookViews() : stats.bookViewsVisible();
+		Map<String, Long> libraryViews = isProfileOwner ? stats.libraryViews() : stats.libraryViewsVisible();
+
+		Map<String, Long> topRequesters = top(stats.requesters(), TOP_CHART);
+
+		// username dei richiedenti in classifica (il primo e' anche il partner) con una sola query
+		Map<String, String> usernames = fanOut.optional("username richiedenti",
+				() -> usersRepository.getUsernames(topRequesters.keySet()), Map.<String, String>of()).get();
+
+		String partner = topRequesters.keySet().stream()
+				.filter(usernames::containsKey)
+				.findFirst()
+				.map(id -> usernames.get(id) + "_" + id)
+				.orElse("nessuno");
+
+		Map<String, Long> requesters = new LinkedHashMap<>();
+		topRequesters.forEach((id, n) -> {
+			if (usernames.containsKey(id)) requesters.put(usernames.get(id), n);
+		});
 
-		// Calcolo Distanza Massima Geografica
-		double maxDist = calculateRealMaxDistance(userId);
-		
 		// Preparazione Grafici
-		ChartData trend = mapToChartData(loansRepository.getMonthlyTrend(userId));
-		ChartData tags = mapToChartData(copiesRepository.getTags(userLibIds));
-		ChartData titlesRanking = mapToChartData(loansRepository.getTitlesRanking(userId));
-		ChartData requesters = mapToChartData(loansRepository.getTopRequesters(userId));
-		ChartData mostViewedBooks = mapToChartData(calculateMostViewedBooks(userLibIds)); 
-		ChartData mostVisitedLibraries = mapToChartData(librariesRepository.getUserLibrariesViewsMap(userId, isOwner, isLogged));
+		ChartData trend = mapToChartData(trendMap);
+		ChartData tagsChart = mapToChartData(top(tags, Integer.MAX_VALUE));
+		ChartData titlesRanking = mapToChartData(labeled(top(stats.titles(), TOP_CHART), stats.labels()));
+		ChartData requestersChart = mapToChartData(requesters);
+		ChartData mostViewedBooks = mapToChartData(labeled(top(bookViews, Integer.MAX_VALUE), stats.labels()));
+		ChartData mostVisitedLibraries = mapToChartData(labeled(top(libraryViews, Integer.MAX_VALUE), stats.labels()));
 
 		return new UserStatsDTO(
-				myBooks, loansIn, loansOut, 
-				topTag, Math.round(maxDist * 100.0) / 100.0, partner,
-				trend, tags, titlesRanking, requesters,
+				isProfileOwner ? stats.copies() : stats.copiesVisible(), stats.loansIn(), stats.loansOut(),
+				tags.isEmpty() ? "nessuno" : top(tags, 1).keySet().iterator().next(),
+				Math.round(maxDist * 100.0) / 100.0, partner,
+				trend, tagsChart, titlesRanking, requestersChart,
 				mostViewedBooks, mostVisitedLibraries
 				);
 	}
 
+	// prime n voci per conteggio decrescente
+	private static Map<String, Long> top(Map<String, Long> counts, int n) {
+		Map<String, Long> result = new LinkedHashMap<>();
+		counts.entrySet().stream()
+				.sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+				.limit(n)
+				.forEach(e -> result.put(e.getKey(), e.getValue()));
+		return result;
+	}
+
+	// chiavi dei grafici nel formato id_etichetta, come nelle statistiche globali
+	private static Map<String, Long> labeled(Map<String, Long> counts, Map<String, String> labels) {
+		Map<String, Long> result = new LinkedHashMap<>();
+		counts.forEach((id, n) -> result.put(id + "_" + labels.getOrDefault(id, id), n));
+		return result;
+	}
+
 	private Map<String, Long> calculateMostViewedBooks(List<String> libIds) {
 	    Map<String, Long> rawViews = copiesRepository.getViews(libIds);
 
@@ -143,76 +189,45 @@ public class StatsService {
 	    return mostViewedBooks;
 	}
 
-	private double calculateRealMaxDistance(String userId) {
-		List<Loan> finishedLoans = loansRepository.findFinishedByOwner(userId);
-		double max = 0.0;
-
-		for (Loan loan : finishedLoans) {
-			// Recupero location della libreria 
-			String ownerLocId = copiesRepository.get(loan.getCopyId())
-					.flatMap(copy -> librariesRepository.get(copy.getLibraryId()))
-					.map(Library::getLocationId)
-					.orElse(null);
-
-			// Recupero location dell'Utente (Richiedente)
-			String reqLocId = usersRepository.get(loan.getRequesterId())
-					.map(User::getLocationId)
-					.orElse(null);
-
-			if (ownerLocId != null && reqLocId != null) {
-				double[] c1 = locationsRepository.getCoordinates(ownerLocId);
-				double[] c2 = locationsRepository.getCoordinates(reqLocId);
-
-				if (c1 != null && c2 != null) {
-					double d = haversine(c1[0], c1[1], c2[0], c2[1]);
-					if (d > max) max = d;
-				}
-			}
-		}
-		return max;
-	}
-
 	private ChartData mapToChartData(Map<String, Long> map) {
 		return new ChartData(new ArrayList<>(map.keySet()), new ArrayList<>(map.values()));
 	}
 
-	private double haversine(double lat1, double lon1, double lat2, double lon2) {
-		double R = 6378.1; // raggio terra all'equatore in km
-		double dLat = Math.toRadians(lat2 - lat1);
-		double dLon = Math.toRadians(lon2 - lon1);
-		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
-				Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
-				Math.sin(dLon / 2) * Math.sin(dLon / 2);
-		return R * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-	}
-
-	public GlobalStatsDTO getGlobalStats(boolean logged, String userId) {
-
-		long totalBooks = booksRepository.count(); 
-		long totalCopies = copiesRepository.count(); 
-		long totalLoans = loansRepository.count(); 
-
-		String topTag = findTopTagGlobal();
-		String topRequester = findTopUser(logged, false, userId);
-		String topLoaner = findTopUser(logged, true, userId);
-
-		List<String> visibleLibraryIds = librariesRepository.getVisibleLibraryIds(logged, userId);
-		
-		// calcolo Distanza Massima Globale (viaggio piu' lungo mai fatto)
-		double maxDistGlobal = calculateGlobalMaxDistance();
-
-		// preparazione Grafici 
-		ChartData trend = mapToChartData(loansRepository.getMonthlyTrend(null));
-		ChartData weekly = mapToChartData(loansRepository.getWeeklyRequests());
-		ChartData pareto = mapToChartData(loansRepository.getTitlesRanking(null));
-		ChartData mostViewedBooks = mapToChartData(calculateMostViewedBooks(visibleLibraryIds)); 
-		ChartData mostVisitedLibraries = mapToChartData(librariesRepository.getAllLibrariesViewsMap(userId, logged));
-
-		return new GlobalStatsDTO(
-				totalBooks, totalCopies, totalLoans, 
-				topTag, Math.round(maxDistGlobal * 100.0) / 100.0, topRequester, topLoaner,
-				trend, weekly, pareto, mostViewedBooks, mostVisitedLibraries
-				);
+	// calcolo completo per una classe di visibilita', senza parti legate all'utente: lo usa GlobalStatsSnapshotService
+	public GlobalStatsDTO computeGlobalStats(boolean logged) {
+
+		try (StatsFanOut fanOut = new StatsFanOut(queryTimeout)) {
+
+			// tutte le query sono indipendenti: partono insieme, i conteggi sono obbligatori, il resto ha un ripiego
+			StatsFanOut.Query<Long> totalBooks = fanOut.required("totale libri", booksRepository::count);
+			StatsFanOut.Query<Long> totalCopies = fanOut.required("totale copie", copiesRepository::count);
+			StatsFanOut.Query<Long> totalLoans = fanOut.required("totale prestiti", loansRepository::count);
+
+			StatsFanOut.Query<String> topTag = fanOut.optional("tag principale", this::findTopTagGlobal, null);
+			StatsFanOut.Query<String> topRequester = fanOut.optional("top richiedente", () -> findTopUser(logged, false, null), null);
+			StatsFanOut.Query<String> topLoaner = fanOut.optional("top prestatore", () -> findTopUser(logged, true, null), null);
+
+			// calcolo Distanza Massima Globale (viaggio piu' lungo mai fatto)
+			StatsFanOut.Query<Double> maxDistGlobal = fanOut.optional("distanza massima", loanDistanceRepository::getGlobalMax, 0.0);
+
+			// preparazione Grafici 
+			StatsFanOut.Query<ChartData> trend = fanOut.optional("trend prestiti",
+					() -> mapToChartData(loanRollupService.lastBuckets(null, Granularity.MONTH, LoanRollupService.STARTED, TREND_MONTHS)), EMPTY_CHART);
+			StatsFanOut.Query<ChartData> weekly = fanOut.optional("richieste settimanali",
+					() -> mapToChartData(loanRollupService.lastBuckets(null, Granularity.WEEK, LoanRollupService.REQUESTS, TREND_WEEKS)), EMPTY_CHART);
+			StatsFanOut.Query<ChartData> pareto = fanOut.optional("classifica titoli",
+					() -> mapToChartData(loansRepository.getTitlesRanking(null)), EMPTY_CHART);
+			StatsFanOut.Query<ChartData> mostViewedBooks = fanOut.optional("libri piu' visti",
+					() -> mapToChartData(calculateMostViewedBooks(librariesRepository.getVisibleLibraryIds(logged, null))), EMPTY_CHART);
+			StatsFanOut.Query<ChartData> mostVisitedLibraries = fanOut.optional("librerie piu' visitate",
+					() -> mapToChartData(librariesRepository.getAllLibrariesViewsMap(null, logged)), EMPTY_CHART);
+
+			return new GlobalStatsDTO(
+					totalBooks.get(), totalCopies.get(), totalLoans.get(), 
+					topTag.get(), Math.round(maxDistGlobal.get() * 100.0) / 100.0, topRequester.get(), topLoaner.get(),
+					trend.get(), weekly.get(), pareto.get(), mostViewedBooks.get(), mostVisitedLibraries.get()
+					);
+		}
 	}
 
 	private String findTopTagGlobal() {
@@ -240,7 +255,7 @@ public class StatsService {
 	    List<Bson> pipeline = new ArrayList<>();
 
 	    // prende utente
-	    pipeline.add(Aggregates.lookup("users", owner ? "owner_id" : "requester_id", "_id", "user"));
+	    pipeline.add(Lookups.lookup("users", owner ? "owner_id" : "requester_id", "_id", User.IDENTITY, "user"));
 	    pipeline.add(Aggregates.unwind("$user"));
 
 	    //filtra in base alla visibilità
@@ -271,32 +286,5 @@ public class StatsService {
 	    Document result = loans.aggregate(pipeline).first();
 	    return result != null ? result.getString("username") : null;
 	}
-	private double calculateGlobalMaxDistance() {
-		List<Loan> finishedLoans = loansRepository.findFinished();
-		double max = 0.0;
-
-		for (Loan loan : finishedLoans) {
-
-			String ownerLocId = copiesRepository.get(loan.getCopyId())
-					.flatMap(copy -> librariesRepository.get(copy.getLibraryId()))
-					.map(Library::getLocationId)
-					.orElse(null);
-
-			String reqLocId = usersRepository.get(loan.getRequesterId())
-					.map(User::getLocationId)
-					.orElse(null);
-
-			if (ownerLocId != null && reqLocId != null) {
-				double[] c1 = locationsRepository.getCoordinates(ownerLocId);
-				double[] c2 = locationsRepository.getCoordinates(reqLocId);
-
-				if (c1 != null && c2 != null) {
-					double d = haversine(c1[0], c1[1], c2[0], c2[1]);
-					if (d > max) max = d;
-				}
-			}
-		}
-		return max;
-	}
 
 }
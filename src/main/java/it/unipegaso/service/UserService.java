@@ -7,8 +7,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
+import org.bson.conversions.Bson;
 import org.jboss.logging.Logger;
 
+import com.mongodb.client.model.Projections;
+
 import it.unipegaso.api.dto.ErrorResponse;
 import it.unipegaso.api.dto.UserProfileDTO;
 import it.unipegaso.database.BooksRepository;
@@ -17,6 +20,7 @@ import it.unipegaso.database.LibrariesRepository;
 import it.unipegaso.database.LoansRepository;
 import it.unipegaso.database.UsersRepository;
 import it.unipegaso.database.model.Book;
+import it.unipegaso.database.model.Copy;
 import it.unipegaso.database.model.Library;
 import it.unipegaso.database.model.Loan;
 import it.unipegaso.database.model.User;
@@ -32,9 +36,6 @@ public class UserService {
 
 	private static final Logger LOG = Logger.getLogger(UserService.class); 
 
-	@Inject
-	SessionDataService sessionDataService;
-
 	@Inject
 	UsersRepository userRepository;
 
@@ -53,9 +54,24 @@ public class UserService {
 	@Inject 
 	BooksRepository booksRepository;
 
+	@Inject
+	BookMapService bookMapService;
 
+	@Inject
+	UserStatsService userStatsService;
 
-	public User getUserFromSession(String sessionId) {
+	@Inject
+	LoanAssembler loanAssembler;
+
+	@Inject
+	SessionPrincipalService sessionPrincipalService;
+
+
+
+	/**
+	 * Identita' dell'utente della sessione (id, username, email) senza leggere l'utente da Mongo.
+	 */
+	public SessionPrincipal getPrincipal(String sessionId) {
 
 		// verifica la presenza della sessione
 		if(sessionId == null || sessionId.isEmpty()) {
@@ -68,25 +84,44 @@ public class UserService {
 					);
 		}
 
-		// recupera l'username 
-		String username = sessionDataService.get(sessionId, "username").orElse(null);
+		Optional<SessionPrincipal> principal = sessionPrincipalService.get(sessionId);
 
-		if(username == null) {
-			Map<String, String> allData = sessionDataService.getAll(sessionId);
-   		 	LOG.warnf("Dati mancanti per ID: %s. Contenuto Redis attuale: %s", sessionId, allData);
+		if(principal.isEmpty()) {
+			LOG.warnf("Dati utente mancanti per la sessione: %s", sessionId);
 			// 401 Unauthorized 
 			throw new NotAuthorizedException(
-					"SESSION_DATA_MISSING: Dati username mancanti nella sessione.",
+					"SESSION_DATA_MISSING: Dati utente mancanti nella sessione.",
 					Response.status(Response.Status.UNAUTHORIZED)
-					.entity(new ErrorResponse("SESSION_DATA_MISSING", "Dati username mancanti nella sessione."))
+					.entity(new ErrorResponse("SESSION_DATA_MISSING", "Dati utente mancanti nella sessione."))
 					.build()
 					);
 		}
 
-		Optional<User> userOpt = userRepository.findByUsername(username);
+		return principal.get();
+	}
+
+	/**
+	 * Utente completo della sessione, letto da Mongo: solo per gli endpoint che ne hanno bisogno,
+	 * per il resto basta getPrincipal.
+	 */
+	public User getUserFromSession(String sessionId) {
+		return getUserFromSession(sessionId, null);
+	}
+
+	/**
+	 * Come sopra ma legge solo i campi di projection (es. User.PROFILE) piu' username ed email,
+	 * che servono a riallineare la sessione. Il risultato e' parziale: non va passato a update().
+	 */
+	public User getUserFromSession(String sessionId, Bson projection) {
+
+		SessionPrincipal principal = getPrincipal(sessionId);
+
+		Optional<User> userOpt = (projection == null)
+				? userRepository.get(principal.id())
+				: userRepository.get(principal.id(), Projections.fields(projection, User.CONTACT));
 
 		if(userOpt.isEmpty()) {
-			LOG.errorf("Impossibile trovare User DB tramite username: %s (Sessione: %s)", username, sessionId);
+			LOG.errorf("Impossibile trovare User DB tramite id: %s (Sessione: %s)", principal.id(), sessionId);
 
 			// usa WebApplicationException per forzare il 500
 			throw new WebApplicationException(
@@ -96,13 +131,20 @@ public class UserService {
 					);
 		}
 
+		User user = userOpt.get();
+
+		// username cambiato da un'altra sessione: riallineiamo questa
+		if (!user.getUsername().equals(principal.username())) {
+			sessionPrincipalService.update(sessionId, user);
+		}
+
 		// Successo
-		return userOpt.get();
+		return user;
 	}
 
 	public UserProfileDTO getProfile (String userId, boolean logged, boolean isOwner) {
 
-		Optional<User> opuser = userRepository.get(userId);
+		Optional<User> opuser = userRepository.get(userId, User.PROFILE);
 
 		if(opuser.isEmpty()) {
 			return null;
@@ -167,10 +209,12 @@ public class UserService {
 			copiesRepository.deleteByLibraryId(lib.getId());
 			// elimina la libreria stessa
 			librariesRepository.delete(lib.getId());
+			bookMapService.syncLibrary(lib.getId());
 		}
 
 		// elimina utente
 		userRepository.delete(userId);
+		userStatsService.delete(userId);
 
 		LOG.infof("Eliminazione a cascata completata per utente: %s", userId);
 
@@ -222,11 +266,12 @@ public class UserService {
 	        }
 
 	        List<Map<String, Object>> booksInfo = new ArrayList<>();
-	        copiesRepository.findByLibrary(lib.getId()).forEach(copy -> {
-	            Optional<Book> bookOpt = booksRepository.get(copy.getBookIsbn());
+	        List<Copy> copies = copiesRepository.findByLibrary(lib.getId());
+	        Map<String, Book> booksByIsbn = booksRepository.getAll(copies.stream().map(Copy::getBookIsbn).toList());
+	        copies.forEach(copy -> {
+	            Book book = booksByIsbn.get(copy.getBookIsbn());
 	            Map<String, Object> b = new HashMap<>();
-	            if (bookOpt.isPresent()) {
-	                Book book = bookOpt.get();
+	            if (book != null) {
 	                b.put("title", book.getTitle());
 	                b.put("author", book.getAuthor());
 	                b.put("year", book.getPublication_year());
@@ -250,7 +295,10 @@ public class UserService {
 	    List<Map<String, Object>> received = new ArrayList<>();
 	    List<Map<String, Object>> made = new ArrayList<>();
 
-	    loansRepository.findAllUserLoans(user.getId()).forEach(loan -> {
+	    List<Loan> loans = loansRepository.findAllUserLoans(user.getId());
+	    Map<String, String> usernames = loanAssembler.usernames(loans);
+
+	    loans.forEach(loan -> {
 	        Map<String, Object> l = new HashMap<>();
 	        l.put("title", loan.getTitle());
 	        l.put("status", loan.getStatus());
@@ -258,8 +306,7 @@ public class UserService {
 	        l.put("expectedReturn", loan.getExpectedReturnDate() != null ? sdf.format(loan.getExpectedReturnDate()) : "-");
 
 	        String partnerId = loan.getOwnerId().equals(user.getId()) ? loan.getRequesterId() : loan.getOwnerId();
-	        Optional<User> p = userRepository.get(partnerId);
-	        l.put("partner", p.isPresent() ? p.get().getUsername() : "Utente Privato");
+	        l.put("partner", usernames.getOrDefault(partnerId, "Utente Privato"));
 
 	        if (loan.getOwnerId().equals(user.getId())) received.add(l);
 	        else made.add(l);
@@ -0,0 +1,387 @@
+package it.unipegaso.service;
+
+import static it.unipegaso.database.UserStatsRepository.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+
+import io.quarkus.scheduler.Scheduled;
+import it.unipegaso.database.BooksRepository;
+import it.unipegaso.database.CopiesRepository;
+import it.unipegaso.database.IRepository;
+import it.unipegaso.database.LibrariesRepository;
+import it.unipegaso.database.LoansRepository;
+import it.unipegaso.database.UserStatsRepository;
+import it.unipegaso.database.UserStatsRepository.UserStats;
+import it.unipegaso.database.UsersRepository;
+import it.unipegaso.database.model.Book;
+import it.unipegaso.database.model.Copy;
+import it.unipegaso.database.model.Library;
+import it.unipegaso.database.model.Loan;
+import it.unipegaso.database.model.VisibilityOptions;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Mantiene user_stats, le statistiche del profilo di ogni utente.
+ *
+ * Copie aggiunte, modificate o rimosse, prestiti creati e flush dei contatori di visualizzazione
+ * applicano solo la differenza. Le operazioni su un'intera libreria (creazione, modifica, eliminazione)
+ * ricalcolano il documento del proprietario, e il job di riconciliazione ricalcola tutti gli utenti
+ * dai dati originali per correggere le derive (scritture perse, prestiti cancellati, ecc.).
+ *
+ * Ogni mappa esiste in due versioni: completa per il proprietario e "_visible" (solo librerie
+ * non private) per chi guarda il profilo di un altro.
+ */
+@ApplicationScoped
+public class UserStatsService {
+
+	private static final Logger LOG = Logger.getLogger(UserStatsService.class);
+
+	@Inject
+	UserStatsRepository userStatsRepository;
+
+	@Inject
+	LibrariesRepository librariesRepository;
+
+	@Inject
+	CopiesRepository copiesRepository;
+
+	@Inject
+	LoansRepository loansRepository;
+
+	@Inject
+	BooksRepository booksRepository;
+
+	@Inject
+	UsersRepository usersRepository;
+
+	@ConfigProperty(name = "user-stats.top-k", defaultValue = "50")
+	int topK;
+
+	/**
+	 * Statistiche dell'utente; se il documento non esiste ancora viene calcolato adesso.
+	 */
+	public UserStats get(String userId) {
+		return userStatsRepository.get(userId).orElseGet(() -> {
+			reconcile(userId);
+			return userStatsRepository.get(userId).orElseThrow();
+		});
+	}
+
+	public void copyAdded(Copy copy, Library library) {
+		applyCopyDelta(library.getOwnerId(), null, false, tagsOf(copy.getTags()), isVisible(library));
+	}
+
+	public void copyRemoved(Copy copy, Library library) {
+		applyCopyDelta(library.getOwnerId(), tagsOf(copy.getTags()), isVisible(library), null, false);
+	}
+
+	// tag modificati o copia spostata tra due librerie dello stesso proprietario
+	public void copyUpdated(List<String> tagsBefore, Library libraryBefore, Copy copy, Library libraryAfter) {
+		applyCopyDelta(libraryAfter.getOwnerId(), tagsOf(tagsBefore), isVisible(libraryBefore), tagsOf(copy.getTags()), isVisible(libraryAfter));
+	}
+
+	public void loanCreated(Loan loan) {
+		String ownerId = loan.getOwnerId();
+		String requesterId = loan.getRequesterId();
+		if (ownerId == null || requesterId == null) return;
+
+		Map<String, List<Bson>> updates = new HashMap<>();
+		List<Bson> owner = updates.computeIfAbsent(ownerId, k -> new ArrayList<>());
+		owner.add(Updates.inc(LOANS_OUT, 1L));
+		owner.add(Updates.inc(REQUESTERS + "." + requesterId, 1L));
+		owner.add(Updates.inc(TITLES + "." + loan.getCopyId(), 1L));
+		if (loan.getTitle() != null) {
+			owner.add(Updates.set(LABELS + "." + loan.getCopyId(), loan.getTitle()));
+		}
+		updates.computeIfAbsent(requesterId, k -> new ArrayList<>()).add(Updates.inc(LOANS_IN, 1L));
+
+		safely("prestito " + loan.getId(), () -> {
+			write(updates);
+			userStatsRepository.trim(List.of(ownerId), List.of(REQUESTERS, TITLES), topK);
+		});
+	}
+
+	/**
+	 * Incrementi di visualizzazione appena scritti da ViewCounterService, attribuiti ai proprietari.
+	 */
+	public void addViews(Map<String, Long> copyIncrements, Map<String, Long> libraryIncrements) {
+		if (copyIncrements.isEmpty() && libraryIncrements.isEmpty()) {
+			return;
+		}
+
+		safely("visualizzazioni", () -> {
+			Map<String, Copy> copies = new HashMap<>();
+			if (!copyIncrements.isEmpty()) {
+				copiesRepository.find(Filters.in(IRepository.ID, copyIncrements.keySet()))
+					.projection(Projections.include("libraryId", "book_isbn"))
+					.forEach(c -> copies.put(c.getId(), c));
+			}
+
+			Set<String> libIds = new HashSet<>(libraryIncrements.keySet());
+			copies.values().forEach(c -> libIds.add(c.getLibraryId()));
+
+			Map<String, Library> libraries = new HashMap<>();
+			librariesRepository.find(Filters.in(IRepository.ID, libIds))
+				.projection(Projections.include("ownerId", "name", "visibility"))
+				.forEach(l -> libraries.put(l.getId(), l));
+
+			Map<String, Book> books = booksRepository.getAll(copies.values().stream().map(Copy::getBookIsbn).distinct().toList());
+
+			Map<String, List<Bson>> updates = new HashMap<>();
+
+			copyIncrements.forEach((copyId, n) -> {
+				Copy copy = copies.get(copyId);
+				Library library = (copy != null) ? libraries.get(copy.getLibraryId()) : null;
+				if (library == null || library.getOwnerId() == null) return;
+
+				List<Bson> list = updates.computeIfAbsent(library.getOwnerId(), k -> new ArrayList<>());
+				list.add(Updates.inc(BOOK_VIEWS + "." + copyId, n));
+				if (isVisible(library)) {
+					list.add(Updates.inc(BOOK_VIEWS_VISIBLE + "." + copyId, n));
+				}
+				Book book = books.get(copy.getBookIsbn());
+				if (book != null && book.getTitle() != null) {
+					list.add(Updates.set(LABELS + "." + copyId, book.getTitle()));
+				}
+			});
+
+			libraryIncrements.forEach((libraryId, n) -> {
+				Library library = libraries.get(libraryId);
+				if (library == null || library.getOwnerId() == null) return;
+
+				List<Bson> list = updates.computeIfAbsent(library.getOwnerId(), k -> new ArrayList<>());
+				list.add(Updates.inc(LIBRARY_VIEWS + "." + libraryId, n));
+				if (isVisible(library)) {
+					list.add(Updates.inc(LIBRARY_VIEWS_VISIBLE + "." + libraryId, n));
+				}
+				if (library.getName() != null) {
+					list.add(Updates.set(LABELS + "." + libraryId, library.getName()));
+				}
+			});
+
+			write(updates);
+			userStatsRepository.trim(updates.keySet(), List.of(BOOK_VIEWS, BOOK_VIEWS_VISIBLE), topK);
+		});
+	}
+
+	@Scheduled(every = "{user-stats.reconcile-every}", delayed = "1m", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+	void reconcileAll() {
+		List<String> userIds = new ArrayList<>();
+		usersRepository.find(Filters.empty())
+			.projection(Projections.include(IRepository.ID))
+			.forEach(u -> userIds.add(u.getId()));
+
+		int failed = 0;
+		for (String userId : userIds) {
+			try {
+				reconcile(userId);
+			} catch (Exception e) {
+				failed++;
+				LOG.errorf(e, "errore riconciliazione user_stats per %s", userId);
+			}
+		}
+		LOG.infof("user_stats riconciliate: %d utenti, %d errori", userIds.size(), failed);
+	}
+
+	/**
+	 * Ricalcola il documento dell'utente da librerie, copie e prestiti e lo sostituisce.
+	 * Gli incrementi arrivati durante il calcolo possono andare persi: li recupera la riconciliazione successiva.
+	 */
+	public void reconcile(String userId) {
+		Map<String, String> labels = new HashMap<>();
+		Map<String, Boolean> visibleByLibrary = new HashMap<>();
+		Map<String, Long> libraryViews = new HashMap<>();
+		Map<String, Long> libraryViewsVisible = new HashMap<>();
+
+		librariesRepository.find(Filters.eq("ownerId", userId))
+			.projection(Projections.include("name", "visibility", "viewsCounter"))
+			.forEach(lib -> {
+				boolean visible = isVisible(lib);
+				visibleByLibrary.put(lib.getId(), visible);
+				libraryViews.put(lib.getId(), lib.getViewsCounter());
+				if (visible) libraryViewsVisible.put(lib.getId(), lib.getViewsCounter());
+				if (lib.getName() != null) labels.put(lib.getId(), lib.getName());
+			});
+
+		long copies = 0;
+		long copiesVisible = 0;
+		Map<String, Long> tags = new HashMap<>();
+		Map<String, Long> tagsVisible = new HashMap<>();
+		Map<String, Long> bookViews = new HashMap<>();
+		Map<String, Long> bookViewsVisible = new HashMap<>();
+		Map<String, String> isbnByCopy = new HashMap<>();
+
+		if (!visibleByLibrary.isEmpty()) {
+			List<Copy> owned = copiesRepository.find(Filters.in("libraryId", visibleByLibrary.keySet()))
+					.projection(Projections.include("libraryId", "book_isbn", "tags", "views_counter"))
+					.into(new ArrayList<>());
+
+			for (Copy copy : owned) {
+				boolean visible = visibleByLibrary.getOrDefault(copy.getLibraryId(), false);
+				copies++;
+				bookViews.put(copy.getId(), copy.getViewsCounter());
+				isbnByCopy.put(copy.getId(), copy.getBookIsbn());
+				addTags(tags, copy.getTags(), 1);
+
+				if (visible) {
+					copiesVisible++;
+					bookViewsVisible.put(copy.getId(), copy.getViewsCounter());
+					addTags(tagsVisible, copy.getTags(), 1);
+				}
+			}
+		}
+
+		Map<String, Long> requesters = new HashMap<>();
+		Map<String, Long> titles = new HashMap<>();
+		long loansOut = 0;
+
+		for (Loan loan : loansRepository.find(Filters.eq("owner_id", userId))
+				.projection(Projections.include("requester_id", "copy_id", "title"))) {
+			loansOut++;
+			if (loan.getRequesterId() != null) requesters.merge(loan.getRequesterId(), 1L, Long::sum);
+			if (loan.getCopyId() != null) {
+				titles.merge(loan.getCopyId(), 1L, Long::sum);
+				if (loan.getTitle() != null) labels.putIfAbsent(loan.getCopyId(), loan.getTitle());
+			}
+		}
+
+		bookViews = top(bookViews);
+		bookViewsVisible = top(bookViewsVisible);
+
+		// titoli delle copie mostrate tra le piu' viste (libri in cache, i mancanti con una query)
+		List<String> isbns = bookViews.keySet().stream().map(isbnByCopy::get).distinct().toList();
+		Map<String, Book> books = booksRepository.getAll(isbns);
+		bookViews.keySet().forEach(copyId -> {
+			Book book = books.get(isbnByCopy.get(copyId));
+			if (book != null && book.getTitle() != null) labels.put(copyId, book.getTitle());
+		});
+
+		Document stats = new Document()
+				.append(COPIES, copies)
+				.append(COPIES_VISIBLE, copiesVisible)
+				.append(LOANS_OUT, loansOut)
+				.append(LOANS_IN, loansRepository.count(userId, false))
+				.append(TAGS, encoded(tags))
+				.append(TAGS_VISIBLE, encoded(tagsVisible))
+				.append(REQUESTERS, document(top(requesters)))
+				.append(TITLES, document(top(titles)))
+				.append(BOOK_VIEWS, document(bookViews))
+				.append(BOOK_VIEWS_VISIBLE, document(bookViewsVisible))
+				.append(LIBRARY_VIEWS, document(libraryViews))
+				.append(LIBRARY_VIEWS_VISIBLE, document(libraryViewsVisible))
+				.append(LABELS, document(labels))
+				.append(RECONCILED_AT, new Date());
+
+		userStatsRepository.replace(userId, stats);
+	}
+
+	public void delete(String userId) {
+		userStatsRepository.delete(userId);
+	}
+
+	// ricalcolo dopo un'operazione su un'intera libreria; un errore non deve bloccare la richiesta
+	public void reconcileQuietly(String userId) {
+		if (userId == null) return;
+		safely("riconciliazione " + userId, () -> reconcile(userId));
+	}
+
+	/*
+	 * visibleBefore/After indicano se la copia stava in una libreria non privata;
+	 * tags null = copia assente in quello stato (aggiunta o rimozione).
+	 */
+	private void applyCopyDelta(String ownerId, List<String> tagsBefore, boolean visibleBefore, List<String> tagsAfter, boolean visibleAfter) {
+		if (ownerId == null) return;
+
+		boolean existedBefore = tagsBefore != null;
+		boolean existsAfter = tagsAfter != null;
+
+		long copies = (existsAfter ? 1 : 0) - (existedBefore ? 1 : 0);
+		long copiesVisible = (existsAfter && visibleAfter ? 1 : 0) - (existedBefore && visibleBefore ? 1 : 0);
+
+		Map<String, Long> tags = new HashMap<>();
+		Map<String, Long> tagsVisible = new HashMap<>();
+		addTags(tags, tagsBefore, -1);
+		addTags(tags, tagsAfter, 1);
+		if (visibleBefore) addTags(tagsVisible, tagsBefore, -1);
+		if (visibleAfter) addTags(tagsVisible, tagsAfter, 1);
+
+		List<Bson> incs = new ArrayList<>();
+		if (copies != 0) incs.add(Updates.inc(COPIES, copies));
+		if (copiesVisible != 0) incs.add(Updates.inc(COPIES_VISIBLE, copiesVisible));
+		tags.forEach((tag, n) -> { if (n != 0) incs.add(Updates.inc(TAGS + "." + encodeKey(tag), n)); });
+		tagsVisible.forEach((tag, n) -> { if (n != 0) incs.add(Updates.inc(TAGS_VISIBLE + "." + encodeKey(tag), n)); });
+
+		if (incs.isEmpty()) return;
+
+		safely("copie " + ownerId, () -> userStatsRepository.update(Map.of(ownerId, Updates.combine(incs))));
+	}
+
+	private void write(Map<String, List<Bson>> updates) {
+		Map<String, Bson> combined = new HashMap<>();
+		updates.forEach((userId, list) -> combined.put(userId, Updates.combine(list)));
+		userStatsRepository.update(combined);
+	}
+
+	// le statistiche non devono far fallire la scrittura principale: la riconciliazione recupera
+	private static void safely(String what, Runnable action) {
+		try {
+			action.run();
+		} catch (Exception e) {
+			LOG.errorf(e, "errore aggiornamento user_stats (%s)", what);
+		}
+	}
+
+	private Map<String, Long> top(Map<String, Long> counts) {
+		Map<String, Long> result = new HashMap<>();
+		counts.entrySet().stream()
+			.sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+			.limit(topK)
+			.forEach(e -> result.put(e.getKey(), e.getValue()));
+		return result;
+	}
+
+	private static void addTags(Map<String, Long> counts, List<String> tags, long sign) {
+		if (tags == null) return;
+		for (String tag : tags) {
+			// un tag vuoto non puo' diventare un nome di campo
+			if (tag == null || tag.isBlank()) continue;
+			counts.merge(tag, sign, Long::sum);
+		}
+	}
+
+	private static List<String> tagsOf(List<String> tags) {
+		return tags != null ? tags : List.of();
+	}
+
+	private static Document document(Map<String, ?> map) {
+		Document doc = new Document();
+		doc.putAll(map);
+		return doc;
+	}
+
+	private static Document encoded(Map<String, Long> counts) {
+		Document doc = new Document();
+		counts.forEach((k, v) -> doc.append(encodeKey(k), v));
+		return doc;
+	}
+
+	private static boolean isVisible(Library library) {
+		return library != null && !VisibilityOptions.PRIVATE.toDbValue().equals(library.getVisibility());
+	}
+}
@@ -0,0 +1,167 @@
+package it.unipegaso.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.scheduler.Scheduled;
+import it.unipegaso.database.BookMapRepository;
+import it.unipegaso.database.CopiesRepository;
+import it.unipegaso.database.LibrariesRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+/**
+ * Contatori di visualizzazione di copie e librerie in write-behind.
+ * Le richieste incrementano un LongAdder in memoria; ogni view-counters.flush-every
+ * gli incrementi vengono scritti con un bulkWrite di $inc per collection,
+ * e un ultimo flush parte allo shutdown.
+ * Se la scrittura fallisce gli incrementi non scritti tornano nei contatori per il flush successivo.
+ */
+@ApplicationScoped
+public class ViewCounterService {
+
+	private static final Logger LOG = Logger.getLogger(ViewCounterService.class);
+
+	@Inject
+	CopiesRepository copiesRepository;
+
+	@Inject
+	BookMapRepository bookMapRepository;
+
+	@Inject
+	LibrariesRepository librariesRepository;
+
+	@Inject
+	UserStatsService userStatsService;
+
+	@Inject
+	MeterRegistry registry;
+
+	private final ConcurrentHashMap<String, LongAdder> copyViews = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, LongAdder> libraryViews = new ConcurrentHashMap<>();
+
+	@PostConstruct
+	void initMetrics() {
+		// voci in attesa di flush
+		registry.gauge("view_counters_pending", Tags.of("type", "copy"), copyViews, Map::size);
+		registry.gauge("view_counters_pending", Tags.of("type", "library"), libraryViews, Map::size);
+	}
+
+	public void addCopyView(String copyId) {
+		increment(copyViews, copyId, 1);
+	}
+
+	public void addLibraryView(String libraryId) {
+		increment(libraryViews, libraryId, 1);
+	}
+
+	@Scheduled(every = "{view-counters.flush-every}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+	void scheduledFlush() {
+		flush();
+	}
+
+	void onStop(@Observes ShutdownEvent ev) {
+		flush();
+	}
+
+	public synchronized void flush() {
+		Map<String, Long> copies = write(drain(copyViews), copyViews, copiesRepository::addViews);
+		if (!copies.isEmpty()) {
+			// book_map riceve gli stessi incrementi; se fallisce la fonte resta copies (rebuild)
+			try {
+				bookMapRepository.addViews(copies);
+			} catch (Exception e) {
+				LOG.error("errore scrittura contatori visualizzazioni su book_map", e);
+			}
+		}
+		Map<String, Long> libraries = write(drain(libraryViews), libraryViews, librariesRepository::addViews);
+
+		// statistiche dei proprietari solo per gli incrementi effettivamente scritti
+		userStatsService.addViews(copies, libraries);
+
+		if (!copies.isEmpty() || !libraries.isEmpty()) {
+			LOG.debugf("contatori visualizzazioni scritti: %d copie, %d librerie", copies.size(), libraries.size());
+		}
+	}
+
+	/*
+	 * L'add avviene dentro compute, con il lock della voce: drain non puo' rimuovere un contatore
+	 * tra il momento in cui lo si prende e quello in cui lo si incrementa.
+	 */
+	private static void increment(ConcurrentHashMap<String, LongAdder> counters, String id, long n) {
+		if (id == null || id.trim().isEmpty()) {
+			return;
+		}
+		counters.compute(id, (k, adder) -> {
+			LongAdder target = adder != null ? adder : new LongAdder();
+			target.add(n);
+			return target;
+		});
+	}
+
+	/*
+	 * Legge e azzera i contatori. Le voci rimaste a zero per un intero intervallo vengono rimosse,
+	 * cosi' la mappa contiene solo le copie viste di recente; la rimozione ricontrolla sum() sotto lock,
+	 * quindi un incremento arrivato dopo sumThenReset resta per il flush successivo.
+	 * L'ordine delle voci e' quello in cui i repository costruiscono il bulkWrite (serve per gli indici degli errori).
+	 */
+	private static Map<String, Long> drain(ConcurrentHashMap<String, LongAdder> counters) {
+		Map<String, Long> increments = new LinkedHashMap<>();
+
+		counters.forEach((id, adder) -> {
+			long n = adder.sumThenReset();
+			if (n > 0) {
+				increments.put(id, n);
+			} else {
+				counters.computeIfPresent(id, (k, current) -> current == adder && current.sum() == 0 ? null : current);
+			}
+		});
+
+		return increments;
+	}
+
+	/*
+	 * Scrive gli incrementi e restituisce quelli andati a buon fine. Il bulkWrite non e' ordinato:
+	 * se fallisce solo qualche voce tornano nei contatori solo quelle, le altre sono gia' state applicate.
+	 */
+	private static Map<String, Long> write(Map<String, Long> increments, ConcurrentHashMap<String, LongAdder> counters, Consumer<Map<String, Long>> writer) {
+		if (increments.isEmpty()) {
+			return Map.of();
+		}
+
+		try {
+			writer.accept(increments);
+			return increments;
+		} catch (MongoBulkWriteException e) {
+			List<String> ids = new ArrayList<>(increments.keySet());
+			Map<String, Long> written = new LinkedHashMap<>(increments);
+
+			for (BulkWriteError error : e.getWriteErrors()) {
+				String id = ids.get(error.getIndex());
+				increment(counters, id, written.remove(id));
+			}
+			LOG.errorf(e, "errore scrittura di %d contatori visualizzazioni su %d, riprovo al prossimo flush",
+					e.getWriteErrors().size(), ids.size());
+			return written;
+		} catch (Exception e) {
+			LOG.error("errore scrittura contatori visualizzazioni, riprovo al prossimo flush", e);
+			increments.forEach((id, n) -> increment(counters, id, n));
+			return Map.of();
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package it.unipegaso.service.cover;
+
+import java.util.Optional;
+
+/**
+ * Archivio delle copertine caricate dagli utenti. La chiave deriva dall'hash del contenuto
+ * (hash dell'originale + formato): stessa chiave = stessi byte, put di una chiave gia' presente non fa nulla.
+ */
+public interface CoverStore {
+
+	boolean exists(String key);
+
+	void put(String key, byte[] image);
+
+	Optional<byte[]> get(String key);
+}
@@ -0,0 +1,59 @@
+package it.unipegaso.service.cover;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+/**
+ * Copertine su disco, per sviluppo e test: root/ab/abcdef... (prime due cifre della chiave come sottocartella).
+ * Scrittura su file temporaneo e rename, cosi' una lettura non vede mai un file a meta'.
+ */
+public final class FileSystemCoverStore implements CoverStore {
+
+	private final Path root;
+
+	public FileSystemCoverStore(Path root) {
+		this.root = root;
+	}
+
+	@Override
+	public boolean exists(String key) {
+		return Files.exists(path(key));
+	}
+
+	@Override
+	public void put(String key, byte[] image) {
+		Path target = path(key);
+		if (Files.exists(target)) {
+			return;
+		}
+
+		try {
+			Files.createDirectories(target.getParent());
+			Path tmp = Files.createTempFile(target.getParent(), key, ".tmp");
+			Files.write(tmp, image);
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new UncheckedIOException("scrittura copertina " + key + " fallita", e);
+		}
+	}
+
+	@Override
+	public Optional<byte[]> get(String key) {
+		try {
+			return Optional.of(Files.readAllBytes(path(key)));
+		} catch (NoSuchFileException e) {
+			return Optional.empty();
+		} catch (IOException e) {
+			throw new UncheckedIOException("lettura copertina " + key + " fallita", e);
+		}
+	}
+
+	private Path path(String key) {
+		return root.resolve(key.substring(0, 2)).resolve(key);
+	}
+}
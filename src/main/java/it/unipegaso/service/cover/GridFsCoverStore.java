@@ -0,0 +1,57 @@
+package it.unipegaso.service.cover;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Optional;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Copertine in GridFS (bucket "covers"): la chiave e' il filename, l'_id e' un ObjectId diverso per ogni upload.
+ * Cosi' un upload fallito (il driver in abort cancella i chunk del proprio _id) non tocca mai quelli di un altro;
+ * due upload concorrenti della stessa immagine lasciano al massimo due file uguali e si legge il piu' recente.
+ * Le copertine salvate prima con _id = chiave hanno comunque filename = chiave e restano leggibili.
+ */
+public final class GridFsCoverStore implements CoverStore {
+
+	private final GridFSBucket bucket;
+
+	public GridFsCoverStore(MongoDatabase database) {
+		this.bucket = GridFSBuckets.create(database, "covers");
+	}
+
+	@Override
+	public boolean exists(String key) {
+		return find(key) != null;
+	}
+
+	@Override
+	public void put(String key, byte[] image) {
+		if (exists(key)) {
+			return;
+		}
+		bucket.uploadFromStream(key, new ByteArrayInputStream(image));
+	}
+
+	@Override
+	public Optional<byte[]> get(String key) {
+		GridFSFile file = find(key);
+		if (file == null) {
+			return Optional.empty();
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bucket.downloadToStream(file.getId(), out);
+		return Optional.of(out.toByteArray());
+	}
+
+	// il documento in covers.files si scrive solo a upload completato: se c'e', i chunk ci sono tutti
+	private GridFSFile find(String key) {
+		return bucket.find(Filters.eq("filename", key)).sort(Sorts.descending("uploadDate")).first();
+	}
+}
@@ -0,0 +1,186 @@
+package it.unipegaso.service.geo;
+
+import java.util.Arrays;
+
+/**
+ * Indice spaziale immutabile su array primitivi.
+ * I punti sono ordinati per cella di una griglia regolare in gradi:
+ * una ricerca per raggio visita solo le celle del bounding box e
+ * verifica la distanza reale con haversine.
+ *
+ * Non e' thread-safe in scrittura perche' non si scrive: per aggiornare
+ * si costruisce una nuova istanza e si sostituisce il riferimento.
+ */
+public final class GeoGrid {
+
+	// stesso raggio usato da $geoNear sferico: haversine qui sotto (LoanDistanceService, BookService, NearbySearchCache) resta coerente con Mongo
+	public static final double EARTH_RADIUS_KM = 6378.1;
+
+	private static final double KM_PER_DEGREE = EARTH_RADIUS_KM * Math.PI / 180.0;
+
+	private final double cellSizeDeg;
+
+	// punti ordinati per cella
+	private final double[] lat;
+	private final double[] lng;
+	private final int[] ref; // posizione del punto nell'array passato al costruttore
+
+	// celle non vuote, ordinate, con l'offset del primo punto
+	private final long[] cellKeys;
+	private final int[] cellStart;
+
+	public GeoGrid(double[] lat, double[] lng, double cellSizeDeg) {
+		if (lat.length != lng.length) throw new IllegalArgumentException("lat e lng devono avere la stessa lunghezza");
+		if (cellSizeDeg <= 0) throw new IllegalArgumentException("cellSizeDeg deve essere > 0");
+
+		this.cellSizeDeg = cellSizeDeg;
+
+		int n = lat.length;
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = cellKey(cell(lat[i]), cell(lng[i]));
+		}
+
+		// celle distinte, ordinate
+		long[] sorted = keys.clone();
+		Arrays.sort(sorted);
+		int cells = 0;
+		for (int i = 0; i < n; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) sorted[cells++] = sorted[i];
+		}
+		this.cellKeys = Arrays.copyOf(sorted, cells);
+
+		// ordina gli indici per cella senza boxing: posizione della cella nei 32 bit alti, indice nei bassi
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = ((long) Arrays.binarySearch(cellKeys, keys[i]) << 32) | i;
+		}
+		Arrays.sort(order);
+
+		this.lat = new double[n];
+		this.lng = new double[n];
+		this.ref = new int[n];
+		this.cellStart = new int[cells + 1];
+
+		int c = -1;
+		for (int i = 0; i < n; i++) {
+			int src = (int) order[i];
+			int cellIndex = (int) (order[i] >>> 32);
+			this.lat[i] = lat[src];
+			this.lng[i] = lng[src];
+			this.ref[i] = src;
+			if (cellIndex != c) {
+				c = cellIndex;
+				cellStart[c] = i;
+			}
+		}
+		cellStart[cells] = n;
+	}
+
+	public int size() {
+		return lat.length;
+	}
+
+	/**
+	 * Punti entro radiusKm dal centro.
+	 * @param visitor riceve l'indice originale del punto e la distanza in km
+	 */
+	public void within(double centerLat, double centerLng, double radiusKm, HitVisitor visitor) {
+		if (lat.length == 0) return;
+
+		double dLat = radiusKm / KM_PER_DEGREE;
+		double cos = Math.cos(Math.toRadians(centerLat));
+		// vicino ai poli il bounding box in longitudine copre tutto
+		double dLng = cos < 1e-6 ? 180.0 : Math.min(180.0, dLat / cos);
+
+		long minLatCell = cell(centerLat - dLat);
+		long maxLatCell = cell(centerLat + dLat);
+		long minLngCell = cell(centerLng - dLng);
+		long maxLngCell = cell(centerLng + dLng);
+
+		long boxCells = (maxLatCell - minLatCell + 1) * (maxLngCell - minLngCell + 1);
+
+		// se il box copre piu' celle di quante ne esistono conviene la scansione lineare
+		if (boxCells >= cellKeys.length) {
+			scan(0, lat.length, centerLat, centerLng, radiusKm, visitor);
+			return;
+		}
+
+		for (long la = minLatCell; la <= maxLatCell; la++) {
+			for (long lo = minLngCell; lo <= maxLngCell; lo++) {
+				int c = Arrays.binarySearch(cellKeys, cellKey(la, lo));
+				if (c >= 0) {
+					scan(cellStart[c], cellStart[c + 1], centerLat, centerLng, radiusKm, visitor);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Punti dentro il rettangolo [minLat, maxLat] x [minLng, maxLng] (senza attraversare l'antimeridiano).
+	 * @param visitor riceve l'indice originale del punto e distanza 0
+	 */
+	public void withinBox(double minLat, double minLng, double maxLat, double maxLng, HitVisitor visitor) {
+		if (lat.length == 0) return;
+
+		long minLatCell = cell(minLat);
+		long maxLatCell = cell(maxLat);
+		long minLngCell = cell(minLng);
+		long maxLngCell = cell(maxLng);
+
+		long boxCells = (maxLatCell - minLatCell + 1) * (maxLngCell - minLngCell + 1);
+
+		if (boxCells >= cellKeys.length) {
+			scanBox(0, lat.length, minLat, minLng, maxLat, maxLng, visitor);
+			return;
+		}
+
+		for (long la = minLatCell; la <= maxLatCell; la++) {
+			for (long lo = minLngCell; lo <= maxLngCell; lo++) {
+				int c = Arrays.binarySearch(cellKeys, cellKey(la, lo));
+				if (c >= 0) {
+					scanBox(cellStart[c], cellStart[c + 1], minLat, minLng, maxLat, maxLng, visitor);
+				}
+			}
+		}
+	}
+
+	private void scanBox(int from, int to, double minLat, double minLng, double maxLat, double maxLng, HitVisitor visitor) {
+		for (int i = from; i < to; i++) {
+			if (lat[i] >= minLat && lat[i] <= maxLat && lng[i] >= minLng && lng[i] <= maxLng) {
+				visitor.hit(ref[i], 0);
+			}
+		}
+	}
+
+	private void scan(int from, int to, double centerLat, double centerLng, double radiusKm, HitVisitor visitor) {
+		for (int i = from; i < to; i++) {
+			double d = haversine(centerLat, centerLng, lat[i], lng[i]);
+			if (d <= radiusKm) {
+				visitor.hit(ref[i], d);
+			}
+		}
+	}
+
+	private long cell(double deg) {
+		return (long) Math.floor(deg / cellSizeDeg);
+	}
+
+	private static long cellKey(long latCell, long lngCell) {
+		return (latCell << 32) ^ (lngCell & 0xffffffffL);
+	}
+
+	public static double haversine(double lat1, double lon1, double lat2, double lon2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+				Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+				Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		return EARTH_RADIUS_KM * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+	}
+
+	@FunctionalInterface
+	public interface HitVisitor {
+		void hit(int index, double distanceKm);
+	}
+}
@@ -0,0 +1,183 @@
+package it.unipegaso.service.search;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Indice invertito a trigrammi, solo in append.
+ * Ogni documento e' una chiave (es. isbn) con uno o piu' campi di testo:
+ * il testo viene normalizzato (minuscolo, senza accenti, solo lettere e cifre)
+ * e ogni trigramma punta alla lista ordinata dei documenti che lo contengono.
+ *
+ * La ricerca richiede che ogni parola della query compaia come sottostringa
+ * in almeno uno dei campi (AND tra le parole). I trigrammi restringono i candidati,
+ * la verifica finale sul testo normalizzato elimina i falsi positivi.
+ */
+public final class TrigramIndex {
+
+	private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+	private static final Pattern NON_ALNUM = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	// separa i campi nel testo indicizzato: non e' mai parte di una parola normalizzata
+	private static final char FIELD_SEP = '|';
+
+	private final List<String> keys = new ArrayList<>();
+	private final List<String> texts = new ArrayList<>();
+	private final Map<String, Integer> docByKey = new HashMap<>();
+	private final Map<Long, IntList> postings = new HashMap<>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Minuscolo, accenti rimossi, tutto cio' che non e' lettera o cifra diventa uno spazio singolo.
+	 */
+	public static String normalize(String text) {
+		if (text == null) return "";
+		String folded = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+		return NON_ALNUM.matcher(folded.toLowerCase()).replaceAll(" ").trim();
+	}
+
+	/**
+	 * Aggiunge un documento; se la chiave e' gia' presente non fa nulla.
+	 */
+	public void add(String key, String... fields) {
+		if (key == null) return;
+
+		StringBuilder sb = new StringBuilder();
+		for (String f : fields) {
+			String n = normalize(f);
+			if (n.isEmpty()) continue;
+			if (sb.length() > 0) sb.append(FIELD_SEP);
+			sb.append(n);
+		}
+		String text = sb.toString();
+
+		lock.writeLock().lock();
+		try {
+			if (docByKey.containsKey(key)) return;
+
+			int doc = keys.size();
+			keys.add(key);
+			texts.add(text);
+			docByKey.put(key, doc);
+
+			for (long gram : trigrams(text)) {
+				IntList list = postings.computeIfAbsent(gram, g -> new IntList());
+				// i documenti arrivano in ordine crescente: basta controllare l'ultimo
+				if (list.size == 0 || list.data[list.size - 1] != doc) {
+					list.add(doc);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return keys.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Chiavi dei documenti che contengono tutte le parole della query.
+	 * Una query senza parole restituisce un insieme vuoto.
+	 */
+	public Set<String> search(String query) {
+		String[] terms = Arrays.stream(normalize(query).split(" "))
+				.filter(t -> !t.isEmpty())
+				.distinct()
+				.toArray(String[]::new);
+
+		Set<String> result = new LinkedHashSet<>();
+		if (terms.length == 0) return result;
+
+		lock.readLock().lock();
+		try {
+			int[] candidates = null; // null = tutti i documenti
+
+			for (String term : terms) {
+				if (term.length() < 3) continue; // troppo corta per i trigrammi, solo verifica
+
+				for (long gram : trigrams(term)) {
+					IntList list = postings.get(gram);
+					if (list == null) return result;
+					candidates = (candidates == null) ? Arrays.copyOf(list.data, list.size) : intersect(candidates, list);
+					if (candidates.length == 0) return result;
+				}
+			}
+
+			if (candidates == null) {
+				for (int doc = 0; doc < keys.size(); doc++) {
+					if (containsAll(texts.get(doc), terms)) result.add(keys.get(doc));
+				}
+			} else {
+				for (int doc : candidates) {
+					if (containsAll(texts.get(doc), terms)) result.add(keys.get(doc));
+				}
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static boolean containsAll(String text, String[] terms) {
+		for (String t : terms) {
+			if (!text.contains(t)) return false;
+		}
+		return true;
+	}
+
+	private static int[] intersect(int[] a, IntList b) {
+		int[] out = new int[Math.min(a.length, b.size)];
+		int i = 0, j = 0, k = 0;
+		while (i < a.length && j < b.size) {
+			if (a[i] < b.data[j]) i++;
+			else if (a[i] > b.data[j]) j++;
+			else {
+				out[k++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(out, k);
+	}
+
+	// trigrammi distinti delle parole del testo, tre char impacchettati in un long
+	private static Set<Long> trigrams(String text) {
+		Set<Long> grams = new LinkedHashSet<>();
+		for (int i = 0; i + 3 <= text.length(); i++) {
+			char a = text.charAt(i), b = text.charAt(i + 1), c = text.charAt(i + 2);
+			if (isSep(a) || isSep(b) || isSep(c)) continue;
+			grams.add(((long) a << 32) | ((long) b << 16) | c);
+		}
+		return grams;
+	}
+
+	private static boolean isSep(char c) {
+		return c == ' ' || c == FIELD_SEP;
+	}
+
+	private static final class IntList {
+		int[] data = new int[4];
+		int size;
+
+		void add(int v) {
+			if (size == data.length) data = Arrays.copyOf(data, size * 2);
+			data[size++] = v;
+		}
+	}
+}
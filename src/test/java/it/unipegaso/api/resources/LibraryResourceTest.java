@@ -0,0 +1,88 @@
+package it.unipegaso.api.resources;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import it.unipegaso.database.LibrariesRepository;
+import it.unipegaso.database.UsersRepository;
+import it.unipegaso.database.model.Library;
+import it.unipegaso.database.model.User;
+import it.unipegaso.service.SessionDataService;
+import it.unipegaso.service.SessionPrincipalService;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.MediaType;
+
+@QuarkusTest
+public class LibraryResourceTest {
+
+	@Inject
+	UsersRepository usersRepository;
+
+	@Inject
+	LibrariesRepository librariesRepository;
+
+	@Inject
+	SessionPrincipalService sessionPrincipalService;
+
+	@Inject
+	SessionDataService sessionDataService;
+
+	private final String suffix = UUID.randomUUID().toString().substring(0, 8);
+	private final String sessionId = "test_session_" + UUID.randomUUID();
+	private final String locationId = "test_location_" + suffix;
+
+	private String userId;
+	private String libraryId;
+
+	@BeforeEach
+	public void setup() {
+		User user = new User();
+		user.setUsername("libtest_" + suffix);
+		user.setEmail("libtest_" + suffix + "@bibliomap.it");
+		user.setHashedPassword("somehash");
+		user.setAcceptedTerms(true);
+		user.setVisibility("all");
+		user.setLocationId(locationId);
+		userId = usersRepository.create(user);
+
+		// sessione gia' autenticata, senza passare dal login
+		sessionPrincipalService.store(sessionId, user, 600);
+	}
+
+	@AfterEach
+	public void cleanup() {
+		if (libraryId != null) {
+			librariesRepository.delete(libraryId);
+		}
+		sessionPrincipalService.invalidate(sessionId);
+		sessionDataService.delete(sessionId);
+		usersRepository.delete(userId);
+	}
+
+	@Test
+	public void testCreateLibraryAtProfileLocationKeepsLocationId() {
+		libraryId = given()
+				.contentType(MediaType.APPLICATION_JSON)
+				.header("Cookie", "SESSION_ID=" + sessionId)
+				.body(Map.of("name", "Libreria di prova", "locationType", "user_default", "visibility", "all"))
+				.when().post("/api/libraries")
+				.then()
+				.statusCode(201)
+				.extract().path("libraryId");
+
+		Optional<Library> saved = librariesRepository.get(libraryId);
+
+		assertTrue(saved.isPresent(), "La libreria deve essere salvata.");
+		assertEquals(locationId, saved.get().getLocationId(), "La libreria deve usare la posizione del profilo.");
+	}
+}
@@ -0,0 +1,124 @@
+package it.unipegaso.benchmark;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import it.unipegaso.api.util.ImageUtils;
+
+/**
+ * Ridimensionamento delle copertine: il vecchio percorso di BookService (getScaledInstance SCALE_SMOOTH
+ * + ImageIO.write, un solo formato da 400 px) contro ImageUtils.downscale (dimezzamenti bilineari)
+ * + toJpeg, sia per il solo formato dettaglio sia per tutti e tre i formati come fa CoverService.
+ *
+ * L'immagine sorgente e' sintetica (gradiente + rumore, come una foto), gia' decodificata:
+ * la decodifica e' uguale per tutti i percorsi e non viene misurata.
+ *
+ * Esecuzione:
+ *   mvn test-compile
+ *   mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=it.unipegaso.benchmark.CoverResizeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoverResizeBenchmark {
+
+	private static final int DETAIL = 400;
+	private static final int LIST = 200;
+	private static final int MARKER = 64;
+	private static final float QUALITY = 0.85f;
+
+	// lato lungo della foto caricata: scansione piccola, foto da telefono
+	@Param({"1200", "4000"})
+	int sourceSize;
+
+	private BufferedImage source;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		int width = sourceSize * 3 / 4;
+		int height = sourceSize;
+		source = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+		Random rand = new Random(42);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int r = (x * 255 / width + rand.nextInt(32)) & 0xFF;
+				int g = (y * 255 / height + rand.nextInt(32)) & 0xFF;
+				int b = ((x + y) * 255 / (width + height) + rand.nextInt(32)) & 0xFF;
+				source.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+	}
+
+	@Benchmark
+	public byte[] legacyScaledInstance() throws IOException {
+		int newWidth = source.getWidth();
+		int newHeight = source.getHeight();
+		if (newWidth > newHeight) {
+			newHeight = (DETAIL * newHeight) / newWidth;
+			newWidth = DETAIL;
+		} else {
+			newWidth = (DETAIL * newWidth) / newHeight;
+			newHeight = DETAIL;
+		}
+
+		Image resultingImage = source.getScaledInstance(newWidth, newHeight, Image.SCALE_SMOOTH);
+		BufferedImage outputImage = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = outputImage.createGraphics();
+		g2d.drawImage(resultingImage, 0, 0, null);
+		g2d.dispose();
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		ImageIO.write(outputImage, "jpg", os);
+		return os.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] stepwiseBilinear() throws IOException {
+		return ImageUtils.toJpeg(ImageUtils.downscale(source, DETAIL), QUALITY);
+	}
+
+	@Benchmark
+	public int stepwiseBilinearAllSizes() throws IOException {
+		int bytes = 0;
+		BufferedImage image = source;
+		for (int size : new int[] {DETAIL, LIST, MARKER}) {
+			image = ImageUtils.downscale(image, size);
+			bytes += ImageUtils.toJpeg(image, QUALITY).length;
+		}
+		return bytes;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options opt = new OptionsBuilder()
+				.include(CoverResizeBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+}
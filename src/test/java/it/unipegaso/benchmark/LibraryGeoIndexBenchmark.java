@@ -0,0 +1,165 @@
+package it.unipegaso.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+
+import it.unipegaso.service.geo.GeoGrid;
+
+/**
+ * Confronto tra la risoluzione delle librerie nel raggio via $geoNear (locations + $lookup libraries,
+ * come faceva searchBooks) e la stessa ricerca sull'indice in memoria GeoGrid.
+ *
+ * Popola un database usa e getta (bibliomap_bench) con librerie casuali attorno a Roma.
+ * Serve un Mongo raggiungibile in MONGODB_CONNECTION_STRING (default localhost).
+ *
+ * Esecuzione:
+ *   mvn test-compile
+ *   mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=it.unipegaso.benchmark.LibraryGeoIndexBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LibraryGeoIndexBenchmark {
+
+	private static final String DB_NAME = "bibliomap_bench";
+	private static final double CENTER_LAT = 41.9028;
+	private static final double CENTER_LNG = 12.4964;
+	private static final String[] VISIBILITIES = {"all", "logged_in", "private"};
+
+	@Param({"1000", "10000"})
+	int libraries;
+
+	@Param({"2", "10", "50"})
+	double radiusKm;
+
+	private MongoClient client;
+	private MongoCollection<Document> locations;
+
+	private GeoGrid grid;
+	private String[] libraryIds;
+	private String[] visibility;
+
+	private final Set<String> allowed = Set.of("all", "logged_in");
+
+	@Setup(Level.Trial)
+	public void setup() {
+		String uri = System.getenv().getOrDefault("MONGODB_CONNECTION_STRING", "mongodb://localhost:27017");
+		client = MongoClients.create(uri);
+		MongoDatabase db = client.getDatabase(DB_NAME);
+		db.drop();
+
+		locations = db.getCollection("locations");
+		MongoCollection<Document> libs = db.getCollection("libraries");
+
+		Random rand = new Random(42);
+		double[] lat = new double[libraries];
+		double[] lng = new double[libraries];
+		libraryIds = new String[libraries];
+		visibility = new String[libraries];
+
+		List<Document> locDocs = new ArrayList<>();
+		List<Document> libDocs = new ArrayList<>();
+
+		for (int i = 0; i < libraries; i++) {
+			// circa 100 km attorno al centro
+			lat[i] = CENTER_LAT + (rand.nextDouble() * 2 - 1) * 0.9;
+			lng[i] = CENTER_LNG + (rand.nextDouble() * 2 - 1) * 1.2;
+			libraryIds[i] = "lib-" + i;
+			visibility[i] = VISIBILITIES[rand.nextInt(VISIBILITIES.length)];
+
+			locDocs.add(new Document("_id", "loc-" + i)
+					.append("geolocation", new Document("type", "Point").append("coordinates", Arrays.asList(lng[i], lat[i]))));
+			libDocs.add(new Document("_id", libraryIds[i])
+					.append("locationId", "loc-" + i)
+					.append("ownerId", "user-" + i)
+					.append("visibility", visibility[i]));
+		}
+
+		locations.insertMany(locDocs);
+		libs.insertMany(libDocs);
+		locations.createIndex(Indexes.geo2dsphere("geolocation"));
+		libs.createIndex(Indexes.ascending("locationId"));
+
+		grid = new GeoGrid(lat, lng, 0.05);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.getDatabase(DB_NAME).drop();
+		client.close();
+	}
+
+	@Benchmark
+	public void geoNear(Blackhole bh) {
+		List<Bson> pipeline = Arrays.asList(
+				new Document("$geoNear", new Document()
+						.append("near", new Document("type", "Point").append("coordinates", Arrays.asList(CENTER_LNG, CENTER_LAT)))
+						.append("distanceField", "distance")
+						.append("maxDistance", radiusKm * 1000)
+						.append("spherical", true)),
+				new Document("$lookup", new Document()
+						.append("from", "libraries")
+						.append("localField", "_id")
+						.append("foreignField", "locationId")
+						.append("as", "library")),
+				new Document("$unwind", "$library"),
+				Aggregates.match(Filters.in("library.visibility", allowed)),
+				Aggregates.project(new Document("library._id", 1).append("distance", 1)));
+
+		for (Document doc : locations.aggregate(pipeline)) {
+			bh.consume(doc);
+		}
+	}
+
+	@Benchmark
+	public void inMemoryGrid(Blackhole bh) {
+		grid.within(CENTER_LAT, CENTER_LNG, radiusKm, (i, d) -> {
+			if (allowed.contains(visibility[i])) {
+				bh.consume(libraryIds[i]);
+				bh.consume(d);
+			}
+		});
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options opt = new OptionsBuilder()
+				.include(LibraryGeoIndexBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+}
@@ -0,0 +1,202 @@
+package it.unipegaso.benchmark;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+import it.unipegaso.service.StatsFanOut;
+
+/**
+ * Latenza del calcolo delle statistiche globali: le stesse query (conteggi, tag principale,
+ * top richiedente/prestatore, classifica titoli, visualizzazioni) eseguite una dopo l'altra
+ * oppure in parallelo con StatsFanOut.
+ *
+ * Popola un database usa e getta (bibliomap_bench) con utenti, librerie, copie e prestiti casuali.
+ * Serve un Mongo raggiungibile in MONGODB_CONNECTION_STRING (default localhost).
+ *
+ * Esecuzione:
+ *   mvn test-compile
+ *   mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=it.unipegaso.benchmark.StatsFanOutBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatsFanOutBenchmark {
+
+	private static final String DB_NAME = "bibliomap_bench";
+	private static final String[] TAGS = {"giallo", "fantasy", "storia", "saggio", "ragazzi", "poesia", "classico", "fumetto"};
+	private static final String[] VISIBILITIES = {"all", "logged_in", "private"};
+
+	@Param({"10000", "100000"})
+	int loans;
+
+	private MongoClient client;
+	private MongoCollection<Document> users;
+	private MongoCollection<Document> libraries;
+	private MongoCollection<Document> copies;
+	private MongoCollection<Document> loanColl;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		String uri = System.getenv().getOrDefault("MONGODB_CONNECTION_STRING", "mongodb://localhost:27017");
+		client = MongoClients.create(uri);
+		MongoDatabase db = client.getDatabase(DB_NAME);
+		db.drop();
+
+		users = db.getCollection("users");
+		libraries = db.getCollection("libraries");
+		copies = db.getCollection("copies");
+		loanColl = db.getCollection("loans");
+
+		Random rand = new Random(42);
+		int userCount = Math.max(100, loans / 20);
+		int libraryCount = userCount;
+		int copyCount = loans / 2;
+
+		List<Document> docs = new ArrayList<>();
+		for (int i = 0; i < userCount; i++) {
+			docs.add(new Document("_id", "user-" + i).append("username", "utente" + i).append("visibility", VISIBILITIES[rand.nextInt(VISIBILITIES.length)]));
+		}
+		users.insertMany(docs);
+
+		docs = new ArrayList<>();
+		for (int i = 0; i < libraryCount; i++) {
+			docs.add(new Document("_id", "lib-" + i).append("ownerId", "user-" + i).append("name", "libreria " + i)
+					.append("visibility", VISIBILITIES[rand.nextInt(VISIBILITIES.length)]).append("views", (long) rand.nextInt(500)));
+		}
+		libraries.insertMany(docs);
+
+		docs = new ArrayList<>();
+		for (int i = 0; i < copyCount; i++) {
+			docs.add(new Document("_id", "copy-" + i).append("library_id", "lib-" + rand.nextInt(libraryCount))
+					.append("book_isbn", "isbn-" + rand.nextInt(copyCount / 4 + 1))
+					.append("tags", Arrays.asList(TAGS[rand.nextInt(TAGS.length)], TAGS[rand.nextInt(TAGS.length)]))
+					.append("views", (long) rand.nextInt(200)));
+		}
+		copies.insertMany(docs);
+
+		docs = new ArrayList<>();
+		for (int i = 0; i < loans; i++) {
+			docs.add(new Document("_id", "loan-" + i).append("copy_id", "copy-" + rand.nextInt(copyCount))
+					.append("owner_id", "user-" + rand.nextInt(userCount)).append("requester_id", "user-" + rand.nextInt(userCount))
+					.append("title", "titolo " + rand.nextInt(copyCount / 4 + 1)));
+			if (docs.size() == 10000) {
+				loanColl.insertMany(docs);
+				docs = new ArrayList<>();
+			}
+		}
+		if (!docs.isEmpty()) {
+			loanColl.insertMany(docs);
+		}
+
+		copies.createIndex(Indexes.ascending("library_id"));
+		loanColl.createIndex(Indexes.ascending("owner_id"));
+		loanColl.createIndex(Indexes.ascending("requester_id"));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.getDatabase(DB_NAME).drop();
+		client.close();
+	}
+
+	@Benchmark
+	public void sequential(Blackhole bh) {
+		for (Supplier<Object> query : queries()) {
+			bh.consume(query.get());
+		}
+	}
+
+	@Benchmark
+	public void fanOut(Blackhole bh) {
+		try (StatsFanOut fan = new StatsFanOut(Duration.ofSeconds(30))) {
+			List<StatsFanOut.Query<Object>> pending = new ArrayList<>();
+			for (Supplier<Object> query : queries()) {
+				pending.add(fan.optional("bench", query, null));
+			}
+			for (StatsFanOut.Query<Object> q : pending) {
+				bh.consume(q.get());
+			}
+		}
+	}
+
+	// le query indipendenti di computeGlobalStats, nella forma in cui arrivano a Mongo
+	private List<Supplier<Object>> queries() {
+		return List.of(
+				() -> copies.estimatedDocumentCount(),
+				() -> loanColl.estimatedDocumentCount(),
+				() -> copies.aggregate(Arrays.asList(
+						Aggregates.unwind("$tags"),
+						Aggregates.group("$tags", Accumulators.sum("count", 1)),
+						Aggregates.sort(Sorts.descending("count")),
+						Aggregates.limit(1))).first(),
+				() -> topUser("requester_id"),
+				() -> topUser("owner_id"),
+				() -> loanColl.aggregate(Arrays.asList(
+						Aggregates.group("$title", Accumulators.sum("count", 1)),
+						Aggregates.sort(Sorts.descending("count")),
+						Aggregates.limit(10))).into(new ArrayList<>()),
+				() -> copies.find(Filters.gt("views", 0))
+						.projection(Projections.include("views"))
+						.sort(Sorts.descending("views")).limit(10).into(new ArrayList<>()),
+				() -> libraries.find(Filters.ne("visibility", "private"))
+						.projection(Projections.include("name", "views"))
+						.sort(Sorts.descending("views")).limit(10).into(new ArrayList<>()));
+	}
+
+	private Object topUser(String field) {
+		List<Bson> pipeline = Arrays.asList(
+				Aggregates.group("$" + field, Accumulators.sum("count", 1)),
+				Aggregates.sort(Sorts.descending("count")),
+				Aggregates.lookup("users", "_id", "_id", "user"),
+				Aggregates.unwind("$user"),
+				Aggregates.match(Filters.ne("user.visibility", "private")),
+				Aggregates.limit(1));
+		return loanColl.aggregate(pipeline).first();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options opt = new OptionsBuilder()
+				.include(StatsFanOutBenchmark.class.getSimpleName())
+				.build();
+		new Runner(opt).run();
+	}
+}
@@ -0,0 +1,38 @@
+package it.unipegaso.database;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+/**
+ * Conta i comandi inviati a Mongo dal thread che ha chiamato start().
+ * Il driver sync invoca il listener sul thread della chiamata, quindi
+ * change stream e scheduler in background non vengono contati.
+ */
+@ApplicationScoped
+public class MongoCommandCounter implements CommandListener {
+
+	private final List<String> commands = new CopyOnWriteArrayList<>();
+	private volatile Thread watched;
+
+	public void start() {
+		commands.clear();
+		watched = Thread.currentThread();
+	}
+
+	public List<String> stop() {
+		watched = null;
+		return List.copyOf(commands);
+	}
+
+	@Override
+	public void commandStarted(CommandStartedEvent event) {
+		if (Thread.currentThread() == watched) {
+			commands.add(event.getCommandName());
+		}
+	}
+}
@@ -1,10 +1,14 @@
 package it.unipegaso.database;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
 
 import org.junit.jupiter.api.AfterEach;
@@ -100,4 +104,19 @@ public class UsersRepositoryTest {
         // updateUtente deve ritornare false (0 modificati)
         assertFalse(usersRepository.update(nonExistingUser), "Aggiornamento utente non esistente deve ritornare false.");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetWithProjection_OnlyNamedFields() {
+        testUser.addToHistory(Map.of("action", "TEST"));
+        String id = usersRepository.create(testUser);
+
+        Optional<User> contact = usersRepository.get(id, User.CONTACT);
+
+        assertTrue(contact.isPresent(), "L'utente deve essere trovato con la projection.");
+        assertEquals(TEST_USERNAME, contact.get().getUsername());
+        assertEquals(TEST_EMAIL, contact.get().getEmail());
+        // campi fuori dall'insieme: non arrivano dal db
+        assertNull(contact.get().getHashedPassword(), "La password non deve essere letta.");
+        assertNull(contact.get().getHistory(), "La history non deve essere letta.");
+    }
+}
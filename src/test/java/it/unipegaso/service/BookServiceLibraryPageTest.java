@@ -0,0 +1,93 @@
+package it.unipegaso.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+
+import io.quarkus.test.junit.QuarkusTest;
+import it.unipegaso.api.dto.BookDetailDTO;
+import it.unipegaso.database.CopiesRepository;
+import it.unipegaso.database.MongoCommandCounter;
+import it.unipegaso.database.model.Book;
+import it.unipegaso.database.model.Copy;
+import jakarta.inject.Inject;
+
+@QuarkusTest
+public class BookServiceLibraryPageTest {
+
+	private static final int BOOKS = 10;
+	private static final int COPIES_PER_BOOK = 5;
+
+	@Inject
+	BookService bookService;
+
+	@Inject
+	CopiesRepository copiesRepository;
+
+	@Inject
+	MongoCollection<Book> books;
+
+	@Inject
+	MongoCommandCounter commandCounter;
+
+	private final String libraryId = "test_lib_" + UUID.randomUUID();
+	private final List<String> isbns = new ArrayList<>();
+
+	@BeforeEach
+	public void setup() {
+		// inseriti direttamente: BooksRepository.create aggiornerebbe anche l'indice testuale
+		for (int i = 0; i < BOOKS; i++) {
+			Book book = new Book();
+			book.setIsbn("test_isbn_" + UUID.randomUUID());
+			book.setTitle("Libro di prova " + i);
+			book.setAuthor("Autore di prova");
+			books.insertOne(book);
+			isbns.add(book.getIsbn());
+
+			for (int j = 0; j < COPIES_PER_BOOK; j++) {
+				Copy copy = new Copy();
+				copy.setLibraryId(libraryId);
+				copy.setBookIsbn(book.getIsbn());
+				copy.setStatus("available");
+				copiesRepository.create(copy);
+			}
+		}
+	}
+
+	@AfterEach
+	public void cleanup() {
+		copiesRepository.deleteByLibraryId(libraryId);
+		books.deleteMany(Filters.in("_id", isbns));
+	}
+
+	@Test
+	public void testGetBooksByLibrary_FixedNumberOfQueries() {
+		commandCounter.start();
+		List<BookDetailDTO> result = bookService.getBooksByLibrary(libraryId, 0.0);
+		List<String> commands = commandCounter.stop();
+
+		assertEquals(BOOKS * COPIES_PER_BOOK, result.size(), "Tutte le copie della libreria devono essere restituite.");
+
+		// una find sulle copie e una sui libri, indipendentemente dal numero di copie
+		assertEquals(List.of("find", "find"), commands, "La pagina libreria deve usare due query: " + commands);
+	}
+
+	@Test
+	public void testGetBooksByLibrary_EmptyLibrary() {
+		commandCounter.start();
+		List<BookDetailDTO> result = bookService.getBooksByLibrary("test_lib_vuota_" + UUID.randomUUID(), 0.0);
+		List<String> commands = commandCounter.stop();
+
+		assertEquals(0, result.size(), "Una libreria senza copie non deve restituire libri.");
+		assertEquals(List.of("find"), commands, "Senza copie non deve partire la query sui libri: " + commands);
+	}
+}
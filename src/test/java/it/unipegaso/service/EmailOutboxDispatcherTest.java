@@ -0,0 +1,170 @@
+package it.unipegaso.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import it.unipegaso.api.dto.BrevoRequest;
+import it.unipegaso.database.EmailOutboxRepository;
+import it.unipegaso.database.IRepository;
+import it.unipegaso.service.client.BrevoStub;
+import jakarta.inject.Inject;
+
+@QuarkusTest
+@TestProfile(EmailOutboxTestProfile.class)
+public class EmailOutboxDispatcherTest {
+
+	private static final String TITLE = "Il nome della rosa";
+
+	@Inject
+	EmailService emailService;
+
+	@Inject
+	EmailOutboxDispatcher dispatcher;
+
+	@Inject
+	BrevoStub brevo;
+
+	@Inject
+	EmailOutboxRepository outboxRepository;
+
+	@Inject
+	MongoClient mongoClient;
+
+	// destinatario diverso per ogni test: la collection e' condivisa
+	private final String recipient = "outbox_test_" + UUID.randomUUID() + "@bibliomap.it";
+
+	private MongoCollection<Document> outbox() {
+		return mongoClient.getDatabase("bibliomap").getCollection(EmailOutboxRepository.COLLECTION);
+	}
+
+	private Document outboxEmail() {
+		return outbox().find(Filters.eq(EmailOutboxRepository.TO, recipient)).first();
+	}
+
+	private Document claimOwn(Duration lease) {
+		return outboxRepository.claim(100, lease).stream()
+				.filter(doc -> recipient.equals(doc.getString(EmailOutboxRepository.TO)))
+				.findFirst().orElse(null);
+	}
+
+	@BeforeEach
+	public void setup() {
+		brevo.reset();
+	}
+
+	@AfterEach
+	public void cleanup() {
+		outbox().deleteMany(Filters.eq(EmailOutboxRepository.TO, recipient));
+	}
+
+	@Test
+	public void testQueuedEmailIsSentByDispatcher() throws Exception {
+		assertTrue(emailService.sendReturnConfirmationEmail(recipient, "outboxtest", TITLE));
+
+		// accodata, Brevo non ancora chiamato
+		assertEquals(EmailOutboxRepository.PENDING, outboxEmail().getString(EmailOutboxRepository.STATUS));
+		assertTrue(brevo.receivedBy(recipient).isEmpty());
+
+		dispatcher.dispatch();
+
+		List<BrevoRequest> sent = brevo.receivedBy(recipient);
+		assertEquals(1, sent.size());
+		assertTrue(sent.get(0).subject().contains(TITLE));
+		assertTrue(brevo.apiKeys().contains("test-key"));
+
+		Document doc = outboxEmail();
+		assertEquals(EmailOutboxRepository.SENT, doc.getString(EmailOutboxRepository.STATUS));
+		assertEquals(1, doc.getInteger(EmailOutboxRepository.ATTEMPTS));
+		assertNotNull(doc.getDate(EmailOutboxRepository.SENT_AT));
+
+		// gia' inviata: un altro giro non la rimanda
+		dispatcher.dispatch();
+		assertEquals(1, brevo.receivedBy(recipient).size());
+	}
+
+	@Test
+	public void testTransientFailureIsRetried() throws Exception {
+		assertTrue(emailService.sendReturnConfirmationEmail(recipient, "outboxtest", TITLE));
+		brevo.failNext(1);
+
+		dispatcher.dispatch();
+
+		Document doc = outboxEmail();
+		assertEquals(EmailOutboxRepository.PENDING, doc.getString(EmailOutboxRepository.STATUS));
+		assertEquals(1, doc.getInteger(EmailOutboxRepository.ATTEMPTS));
+		assertNotNull(doc.getString(EmailOutboxRepository.LAST_ERROR));
+		assertTrue(brevo.receivedBy(recipient).isEmpty());
+
+		// backoff a 0 nel profilo di test: il tentativo successivo e' subito dovuto
+		dispatcher.dispatch();
+
+		assertEquals(1, brevo.receivedBy(recipient).size());
+		doc = outboxEmail();
+		assertEquals(EmailOutboxRepository.SENT, doc.getString(EmailOutboxRepository.STATUS));
+		assertEquals(2, doc.getInteger(EmailOutboxRepository.ATTEMPTS));
+	}
+
+	@Test
+	public void testEmailIsDeadLetteredAfterMaxAttempts() throws Exception {
+		assertTrue(emailService.sendReturnConfirmationEmail(recipient, "outboxtest", TITLE));
+		brevo.failNext(Integer.MAX_VALUE);
+
+		// max-attempts = 3 nel profilo di test
+		for (int i = 0; i < 3; i++) {
+			dispatcher.dispatch();
+		}
+
+		Document doc = outboxEmail();
+		assertEquals(EmailOutboxRepository.DEAD, doc.getString(EmailOutboxRepository.STATUS));
+		assertEquals(3, doc.getInteger(EmailOutboxRepository.ATTEMPTS));
+
+		// Brevo torna disponibile ma l'email scartata non riparte
+		brevo.reset();
+		dispatcher.dispatch();
+		assertTrue(brevo.receivedBy(recipient).isEmpty());
+		assertEquals(EmailOutboxRepository.DEAD, outboxEmail().getString(EmailOutboxRepository.STATUS));
+	}
+
+	@Test
+	public void testExpiredLeaseCountsAsAttemptAndStaleOutcomeIsIgnored() throws Exception {
+		assertTrue(emailService.sendReturnConfirmationEmail(recipient, "outboxtest", TITLE));
+
+		// primo worker: lease gia' scaduto, come se fosse morto a meta' invio
+		Document first = claimOwn(Duration.ZERO);
+		assertNotNull(first);
+		assertEquals(1, first.getInteger(EmailOutboxRepository.ATTEMPTS));
+		Thread.sleep(5);
+
+		Document second = claimOwn(Duration.ofMinutes(5));
+		assertNotNull(second);
+		assertEquals(2, second.getInteger(EmailOutboxRepository.ATTEMPTS));
+
+		// il primo worker si risveglia: il suo esito non vale piu'
+		String id = first.getString(IRepository.ID);
+		assertFalse(outboxRepository.retry(id, first.getString(EmailOutboxRepository.LEASE_ID), new Date(), "tardi"));
+		assertEquals(EmailOutboxRepository.SENDING, outboxEmail().getString(EmailOutboxRepository.STATUS));
+
+		assertTrue(outboxRepository.markSent(id, second.getString(EmailOutboxRepository.LEASE_ID)));
+		Document doc = outboxEmail();
+		assertEquals(EmailOutboxRepository.SENT, doc.getString(EmailOutboxRepository.STATUS));
+		assertEquals(2, doc.getInteger(EmailOutboxRepository.ATTEMPTS));
+	}
+}
@@ -0,0 +1,23 @@
+package it.unipegaso.service;
+
+import java.util.Map;
+
+import io.quarkus.test.junit.QuarkusTestProfile;
+
+public class EmailOutboxTestProfile implements QuarkusTestProfile {
+
+	@Override
+	public Map<String, String> getConfigOverrides() {
+		return Map.of(
+			// invii reali verso BrevoStub, sulla porta dei test
+			"email.debug-mode", "false",
+			"quarkus.rest-client.brevo-api.url", "http://localhost:${quarkus.http.test-port:8081}",
+			"brevo.api.key", "test-key",
+			// il dispatcher lo chiamano i test, niente invii in background
+			"email.outbox.poll-every", "off",
+			"email.outbox.max-attempts", "3",
+			"email.outbox.backoff-base", "0s",
+			"email.outbox.backoff-max", "0s"
+		);
+	}
+}
@@ -0,0 +1,106 @@
+package it.unipegaso.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+
+// niente Quarkus: il cursore e' un record puro
+public class NearbyCursorTest {
+
+	private static String raw(String s) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testDistanceCursorRoundTrip() {
+		NearbyCursor cursor = new NearbyCursor(NearbyCursor.SORT_DISTANCE, Double.toString(1.25), "lib-1", "copy-1");
+
+		NearbyCursor decoded = NearbyCursor.decode(cursor.encode(), NearbyCursor.SORT_DISTANCE);
+
+		assertEquals(cursor, decoded);
+		assertEquals(1.25, decoded.distance());
+	}
+
+	@Test
+	public void testTitleCursorRoundTripKeepsNullAndEmptyKeysApart() {
+		NearbyCursor withTitle = new NearbyCursor(NearbyCursor.SORT_TITLE, "Il nome della rosa è qui", "lib-1", "copy-1");
+		NearbyCursor nullTitle = new NearbyCursor(NearbyCursor.SORT_TITLE, null, "lib-1", "copy-2");
+		NearbyCursor emptyTitle = new NearbyCursor(NearbyCursor.SORT_TITLE, "", "lib-1", "copy-3");
+
+		assertEquals(withTitle, NearbyCursor.decode(withTitle.encode(), NearbyCursor.SORT_TITLE));
+		assertNull(NearbyCursor.decode(nullTitle.encode(), NearbyCursor.SORT_TITLE).key());
+		assertEquals("", NearbyCursor.decode(emptyTitle.encode(), NearbyCursor.SORT_TITLE).key());
+	}
+
+	@Test
+	public void testCursorFromAnotherSortIsRejected() {
+		String encoded = new NearbyCursor(NearbyCursor.SORT_TITLE, "Emma", "lib-1", "copy-1").encode();
+
+		assertThrows(IllegalArgumentException.class, () -> NearbyCursor.decode(encoded, NearbyCursor.SORT_AUTHOR));
+		assertThrows(IllegalArgumentException.class, () -> NearbyCursor.decode(encoded, NearbyCursor.SORT_DISTANCE));
+	}
+
+	@Test
+	public void testGarbageAndTamperedCursorsAreRejected() {
+		// non base64
+		assertThrows(IllegalArgumentException.class, () -> NearbyCursor.decode("%%%non-base64%%%", NearbyCursor.SORT_DISTANCE));
+		// base64 valido ma non un cursore
+		assertThrows(IllegalArgumentException.class, () -> NearbyCursor.decode(raw("ciao"), NearbyCursor.SORT_DISTANCE));
+		// parti in piu' o in meno
+		assertThrows(IllegalArgumentException.class, () -> NearbyCursor.decode(raw("distance\u0000+1.0\u0000lib"), NearbyCursor.SORT_DISTANCE));
+		assertThrows(IllegalArgumentException.class, () -> NearbyCursor.decode(raw("distance\u0000+1.0\u0000lib\u0000copy\u0000x"), NearbyCursor.SORT_DISTANCE));
+		// distanza non numerica o mancante
+		assertThrows(IllegalArgumentException.class, () -> NearbyCursor.decode(raw("distance\u0000+abc\u0000lib\u0000copy"), NearbyCursor.SORT_DISTANCE));
+		assertThrows(IllegalArgumentException.class, () -> NearbyCursor.decode(raw("distance\u0000-\u0000lib\u0000copy"), NearbyCursor.SORT_DISTANCE));
+		// copia mancante
+		assertThrows(IllegalArgumentException.class, () -> NearbyCursor.decode(raw("title\u0000+Emma\u0000lib\u0000"), NearbyCursor.SORT_TITLE));
+	}
+
+	@Test
+	public void testUnknownSortFallsBackToDistance() {
+		assertEquals(NearbyCursor.SORT_DISTANCE, NearbyCursor.normalizeSort(null));
+		assertEquals(NearbyCursor.SORT_DISTANCE, NearbyCursor.normalizeSort("views"));
+		assertEquals(NearbyCursor.SORT_AUTHOR, NearbyCursor.normalizeSort(NearbyCursor.SORT_AUTHOR));
+	}
+
+	@Test
+	public void testDistanceTiesAreBrokenByLibraryThenCopy() {
+		NearbyCursor cursor = new NearbyCursor(NearbyCursor.SORT_DISTANCE, "2.0", "lib-b", "copy-b");
+
+		assertTrue(cursor.precedes(2.5, "lib-a", "copy-a"));
+		assertFalse(cursor.precedes(1.5, "lib-z", "copy-z"));
+
+		// stessa distanza: decide la libreria
+		assertTrue(cursor.precedes(2.0, "lib-c", "copy-a"));
+		assertFalse(cursor.precedes(2.0, "lib-a", "copy-z"));
+
+		// stessa distanza e libreria: decide la copia, e la riga del cursore non viene ripetuta
+		assertTrue(cursor.precedes(2.0, "lib-b", "copy-c"));
+		assertFalse(cursor.precedes(2.0, "lib-b", "copy-a"));
+		assertFalse(cursor.precedes(2.0, "lib-b", "copy-b"));
+	}
+
+	@Test
+	public void testTitleTiesAreBrokenByCopyAndNullsComeFirst() {
+		NearbyCursor cursor = new NearbyCursor(NearbyCursor.SORT_TITLE, "Emma", "lib-1", "copy-m");
+
+		assertTrue(cursor.precedes("Fahrenheit 451", "copy-a"));
+		assertFalse(cursor.precedes("Dracula", "copy-z"));
+		assertTrue(cursor.precedes("Emma", "copy-n"));
+		assertFalse(cursor.precedes("Emma", "copy-m"));
+		assertFalse(cursor.precedes(null, "copy-z"));
+
+		NearbyCursor nullCursor = new NearbyCursor(NearbyCursor.SORT_TITLE, null, "lib-1", "copy-m");
+
+		assertTrue(nullCursor.precedes("Dracula", "copy-a"));
+		assertTrue(nullCursor.precedes(null, "copy-n"));
+		assertFalse(nullCursor.precedes(null, "copy-a"));
+	}
+}
@@ -0,0 +1,55 @@
+package it.unipegaso.service.client;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.unipegaso.api.dto.BrevoRequest;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Finto endpoint Brevo per i test: registra le richieste ricevute e puo' rispondere 500
+ * alle prossime n chiamate. BrevoClient lo raggiunge con quarkus.rest-client.brevo-api.url sulla porta di test.
+ */
+@Path("/v3/smtp/email")
+@ApplicationScoped
+public class BrevoStub {
+
+	private final List<BrevoRequest> received = new CopyOnWriteArrayList<>();
+	private final List<String> apiKeys = new CopyOnWriteArrayList<>();
+	private final AtomicInteger failures = new AtomicInteger();
+
+	@POST
+	public Response send(@HeaderParam("api-key") String apiKey, BrevoRequest request) {
+		if (failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+			return Response.serverError().build();
+		}
+
+		received.add(request);
+		apiKeys.add(apiKey);
+		return Response.status(Response.Status.CREATED).build();
+	}
+
+	// richieste accettate per un destinatario
+	public List<BrevoRequest> receivedBy(String email) {
+		return received.stream().filter(r -> r.to().stream().anyMatch(c -> email.equals(c.email()))).toList();
+	}
+
+	public List<String> apiKeys() {
+		return apiKeys;
+	}
+
+	public void failNext(int n) {
+		failures.set(n);
+	}
+
+	public void reset() {
+		received.clear();
+		apiKeys.clear();
+		failures.set(0);
+	}
+}
@@ -0,0 +1,80 @@
+package it.unipegaso.service.search;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// niente Quarkus: l'indice e' una classe pura
+public class TrigramIndexTest {
+
+	private TrigramIndex index;
+
+	@BeforeEach
+	public void setup() {
+		index = new TrigramIndex();
+		index.add("rosa", "Il nome della rosa", "Umberto Eco");
+		index.add("pendolo", "Il pendolo di Foucault", "Umberto Eco");
+		index.add("zeno", "La coscienza di Zeno", "Italo Svevo");
+		index.add("perche", "Perché leggere i classici", "Italo Calvino");
+		index.add("io", "Io e te", "Niccolò Ammaniti");
+	}
+
+	@Test
+	public void testNormalizeFoldsCaseAccentsAndPunctuation() {
+		assertEquals("perche leggere i classici", TrigramIndex.normalize("  Perché, leggere... i CLASSICI!"));
+		assertEquals("niccolo ammaniti", TrigramIndex.normalize("Niccolò Ammaniti"));
+		assertEquals("", TrigramIndex.normalize(null));
+	}
+
+	@Test
+	public void testAccentsAreIgnoredOnBothSides() {
+		assertEquals(Set.of("perche"), index.search("perche"));
+		assertEquals(Set.of("perche"), index.search("PERCHÉ"));
+		assertEquals(Set.of("io"), index.search("niccolò"));
+		assertEquals(Set.of("io"), index.search("niccolo"));
+	}
+
+	@Test
+	public void testAllTermsMustMatch() {
+		assertEquals(Set.of("rosa", "pendolo"), index.search("umberto eco"));
+		assertEquals(Set.of("pendolo"), index.search("eco foucault"));
+		assertEquals(Set.of(), index.search("eco svevo"));
+
+		// sottostringhe, in qualsiasi campo e in qualsiasi ordine
+		assertEquals(Set.of("zeno"), index.search("sveV cosci"));
+	}
+
+	@Test
+	public void testShortTermsFallBackToFullScan() {
+		// "io" e "te" non hanno trigrammi: si verificano su tutti i documenti
+		assertEquals(Set.of("io"), index.search("io te"));
+		assertEquals(Set.of("zeno", "pendolo"), index.search("di"));
+
+		// termine corto insieme a uno lungo: i trigrammi del lungo restringono, il corto si verifica
+		assertEquals(Set.of("pendolo"), index.search("di umberto"));
+	}
+
+	@Test
+	public void testFieldSeparatorDoesNotBridgeFields() {
+		// titolo "...rosa" e autore "Umberto...": nessuna parola a cavallo dei due campi
+		assertTrue(index.search("rosaumberto").isEmpty());
+		assertTrue(index.search("saum").isEmpty());
+		// ne' a cavallo di due parole dello stesso campo
+		assertTrue(index.search("dellarosa").isEmpty());
+	}
+
+	@Test
+	public void testEmptyQueryAndDuplicateKeys() {
+		assertTrue(index.search("").isEmpty());
+		assertTrue(index.search("  ,;  ").isEmpty());
+
+		// chiave gia' presente: il nuovo testo viene ignorato
+		index.add("rosa", "Dracula", "Bram Stoker");
+		assertEquals(5, index.size());
+		assertTrue(index.search("dracula").isEmpty());
+	}
+}